@@ -26,6 +26,7 @@ import de.viktorreiser.bansheeremote.data.BansheeConnection.Command.Playlist.Mod
 import de.viktorreiser.bansheeremote.data.App;
 import de.viktorreiser.bansheeremote.data.BansheeDatabase;
 import de.viktorreiser.bansheeremote.data.BansheeDatabase.Album;
+import de.viktorreiser.bansheeremote.data.BansheeDatabase.Library;
 import de.viktorreiser.bansheeremote.data.CoverCache;
 import de.viktorreiser.toolbox.content.NetworkStateBroadcast;
 import de.viktorreiser.toolbox.widget.HiddenQuickActionSetup;
@@ -45,6 +46,9 @@ public class AlbumActivity extends Activity implements OnBansheeCommandHandle, O
 	private static final int REQUEST_ACTIVITY = 1;
 	
 	private OnBansheeCommandHandle mOldCommandHandler;
+	private Library mLibrary;
+	private boolean mLibraryRetained = false;
+	private DbCacheSetup mCacheSetup;
 	private Album [] mAlbumEntries;
 	private Object [] mAdapterSections;
 	private ListView mList;
@@ -63,29 +67,6 @@ public class AlbumActivity extends Activity implements OnBansheeCommandHandle, O
 		
 		Object [] data = (Object []) getLastNonConfigurationInstance();
 		
-		if (data != null) {
-			mAlbumEntries = (Album []) data[0];
-			mAdapterSections = (Object []) data[1];
-		} else {
-			mAlbumEntries = BansheeDatabase.getOrderedAlbums();
-			List<SectionEntry> sections = new ArrayList<SectionEntry>();
-			Set<String> characters = new TreeSet<String>();
-			
-			for (int i = 0; i < mAlbumEntries.length; i++) {
-				String c = mAlbumEntries[i].getTitle().substring(0, 1).toUpperCase();
-				
-				if (!characters.contains(c)) {
-					SectionEntry s = new SectionEntry();
-					s.character = c;
-					s.position = i;
-					sections.add(s);
-					characters.add(c);
-				}
-			}
-			
-			mAdapterSections = sections.toArray();
-		}
-		
 		mOldCommandHandler = CurrentSongActivity.getConnection().getHandleCallback();
 		CurrentSongActivity.getConnection().updateHandleCallback(new OnBansheeCommandHandle() {
 			@Override
@@ -113,18 +94,39 @@ public class AlbumActivity extends Activity implements OnBansheeCommandHandle, O
 		setContentView(R.layout.album);
 		
 		mList = (ListView) findViewById(R.id.list);
-		mList.setAdapter(new AlbumAdapter());
 		mList.setOnItemClickListener(this);
 		
-		((TextView) findViewById(R.id.album_title)).setText(
-				getString(R.string.all_albums) + " (" + mAlbumEntries.length + ")");
-		mList.setFastScrollEnabled(true);
+		if (data != null) {
+			mAlbumEntries = (Album []) data[0];
+			mAdapterSections = (Object []) data[1];
+			mLibrary = (Library) data[2];
+			setupList();
+		} else {
+			// list is set up when the memory cache is loaded in background
+			mCacheSetup = new DbCacheSetup(this) {
+				@Override
+				void onDbCacheSetup() {
+					mCacheSetup = null;
+					setupAlbumEntries();
+					setupList();
+				}
+			};
+			mCacheSetup.start();
+		}
 	}
 	
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
 		
+		if (mCacheSetup != null) {
+			mCacheSetup.cancel();
+		}
+		
+		if (mLibrary != null && !mLibraryRetained) {
+			mLibrary.release();
+		}
+		
 		if (CurrentSongActivity.getConnection() != null) {
 			CurrentSongActivity.getConnection().updateHandleCallback(mOldCommandHandler);
 		}
@@ -136,7 +138,14 @@ public class AlbumActivity extends Activity implements OnBansheeCommandHandle, O
 	
 	@Override
 	public Object onRetainNonConfigurationInstance() {
-		return new Object [] {mAlbumEntries, mAdapterSections};
+		if (mLibrary == null) {
+			// cache is still loading, new instance waits for it again
+			return null;
+		}
+		
+		// new instance takes over the acquired library
+		mLibraryRetained = true;
+		return new Object [] {mAlbumEntries, mAdapterSections, mLibrary};
 	}
 	
 	@Override
@@ -199,6 +208,39 @@ public class AlbumActivity extends Activity implements OnBansheeCommandHandle, O
 	
 	// PRIVATE ====================================================================================
 	
+	/**
+	 * Set up entries from the current library (memory cache has to be ready).
+	 */
+	private void setupAlbumEntries() {
+		// artists are resolved while scrolling, so they have to come from the same library
+		mLibrary = BansheeDatabase.getLibrary().acquire();
+		mAlbumEntries = mLibrary.getOrderedAlbums();
+		List<SectionEntry> sections = new ArrayList<SectionEntry>();
+		Set<String> characters = new TreeSet<String>();
+		
+		for (int i = 0; i < mAlbumEntries.length; i++) {
+			String c = mAlbumEntries[i].getTitle().substring(0, 1).toUpperCase();
+			
+			if (!characters.contains(c)) {
+				SectionEntry s = new SectionEntry();
+				s.character = c;
+				s.position = i;
+				sections.add(s);
+				characters.add(c);
+			}
+		}
+		
+		mAdapterSections = sections.toArray();
+	}
+	
+	private void setupList() {
+		mList.setAdapter(new AlbumAdapter());
+		
+		((TextView) findViewById(R.id.album_title)).setText(
+				getString(R.string.all_albums) + " (" + mAlbumEntries.length + ")");
+		mList.setFastScrollEnabled(true);
+	}
+	
 	private static class ViewHolder {
 		public TextView album;
 		public TextView artist;
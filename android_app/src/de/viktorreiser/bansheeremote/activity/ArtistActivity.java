@@ -28,6 +28,7 @@ import de.viktorreiser.bansheeremote.data.BansheeConnection.Command.Playlist.Mod
 import de.viktorreiser.bansheeremote.data.BansheeDatabase;
 import de.viktorreiser.bansheeremote.data.BansheeDatabase.Album;
 import de.viktorreiser.bansheeremote.data.BansheeDatabase.Artist;
+import de.viktorreiser.bansheeremote.data.BansheeDatabase.Library;
 import de.viktorreiser.bansheeremote.data.CoverCache;
 import de.viktorreiser.toolbox.content.NetworkStateBroadcast;
 import de.viktorreiser.toolbox.widget.HiddenQuickActionSetup;
@@ -48,6 +49,9 @@ public class ArtistActivity extends Activity implements OnBansheeCommandHandle,
 	private static final int REQUEST_ACTIVITY = 1;
 	
 	private OnBansheeCommandHandle mOldCommandHandler;
+	private Library mLibrary;
+	private boolean mLibraryRetained = false;
+	private DbCacheSetup mCacheSetup;
 	private int mArtistCount;
 	private List<ArtistEntry> mArtistEntries;
 	private Object [] mAdapterSections;
@@ -73,32 +77,6 @@ public class ArtistActivity extends Activity implements OnBansheeCommandHandle,
 		
 		Object [] data = (Object []) getLastNonConfigurationInstance();
 		
-		if (data != null) {
-			mArtistCount = (Integer) data[0];
-			mArtistEntries = (List<ArtistEntry>) data[1];
-			mAdapterSections = (Object []) data[2];
-		} else {
-			if (getIntent().hasExtra(EXTRA_ARITST_ID)) {
-				Artist info = BansheeDatabase.getArtist(
-						getIntent().getLongExtra(EXTRA_ARITST_ID, -1));
-				mArtistCount = 1;
-				mArtistEntries = new ArrayList<ArtistEntry>(info.getAlbumCount() + 1);
-				
-				ArtistEntry e = new ArtistEntry();
-				e.artist = info;
-				mArtistEntries.add(e);
-				
-				for (int i = 0; i < info.getAlbumCount(); i++) {
-					e = new ArtistEntry();
-					e.artist = info;
-					e.isAlbum = true;
-					mArtistEntries.add(e);
-				}
-			} else {
-				setupAllArtistsInfo();
-			}
-		}
-		
 		mOldCommandHandler = CurrentSongActivity.getConnection().getHandleCallback();
 		CurrentSongActivity.getConnection().updateHandleCallback(new OnBansheeCommandHandle() {
 			@Override
@@ -116,15 +94,25 @@ public class ArtistActivity extends Activity implements OnBansheeCommandHandle,
 		setContentView(R.layout.artist);
 		
 		mList = (ListView) findViewById(R.id.list);
-		mList.setAdapter(new ArtistAdapter());
 		mList.setOnItemClickListener(this);
 		
-		if (mArtistCount == 1) {
-			((TextView) findViewById(R.id.artist_title)).setText(R.string.artist);
+		if (data != null) {
+			mArtistCount = (Integer) data[0];
+			mArtistEntries = (List<ArtistEntry>) data[1];
+			mAdapterSections = (Object []) data[2];
+			mLibrary = (Library) data[3];
+			setupList();
 		} else {
-			((TextView) findViewById(R.id.artist_title)).setText(
-					getString(R.string.all_artists) + " (" + mArtistCount + ")");
-			mList.setFastScrollEnabled(true);
+			// list is set up when the memory cache is loaded in background
+			mCacheSetup = new DbCacheSetup(this) {
+				@Override
+				void onDbCacheSetup() {
+					mCacheSetup = null;
+					setupArtistEntries();
+					setupList();
+				}
+			};
+			mCacheSetup.start();
 		}
 	}
 	
@@ -132,6 +120,14 @@ public class ArtistActivity extends Activity implements OnBansheeCommandHandle,
 	public void onDestroy() {
 		super.onDestroy();
 		
+		if (mCacheSetup != null) {
+			mCacheSetup.cancel();
+		}
+		
+		if (mLibrary != null && !mLibraryRetained) {
+			mLibrary.release();
+		}
+		
 		if (CurrentSongActivity.getConnection() != null) {
 			CurrentSongActivity.getConnection().updateHandleCallback(mOldCommandHandler);
 		}
@@ -143,7 +139,14 @@ public class ArtistActivity extends Activity implements OnBansheeCommandHandle,
 	
 	@Override
 	public Object onRetainNonConfigurationInstance() {
-		return new Object [] {mArtistCount, mArtistEntries, mAdapterSections};
+		if (mLibrary == null) {
+			// cache is still loading, new instance waits for it again
+			return null;
+		}
+		
+		// new instance takes over the acquired library
+		mLibraryRetained = true;
+		return new Object [] {mArtistCount, mArtistEntries, mAdapterSections, mLibrary};
 	}
 	
 	@Override
@@ -242,8 +245,47 @@ public class ArtistActivity extends Activity implements OnBansheeCommandHandle,
 				R.string.quick_remove_artist, R.drawable.remove);
 	}
 	
+	/**
+	 * Set up entries from the current library (memory cache has to be ready).
+	 */
+	private void setupArtistEntries() {
+		// albums are resolved while scrolling, so they have to come from the same library
+		mLibrary = BansheeDatabase.getLibrary().acquire();
+		
+		if (getIntent().hasExtra(EXTRA_ARITST_ID)) {
+			Artist info = mLibrary.getArtist(getIntent().getLongExtra(EXTRA_ARITST_ID, -1));
+			mArtistCount = 1;
+			mArtistEntries = new ArrayList<ArtistEntry>(info.getAlbumCount() + 1);
+			
+			ArtistEntry e = new ArtistEntry();
+			e.artist = info;
+			mArtistEntries.add(e);
+			
+			for (int i = 0; i < info.getAlbumCount(); i++) {
+				e = new ArtistEntry();
+				e.artist = info;
+				e.isAlbum = true;
+				mArtistEntries.add(e);
+			}
+		} else {
+			setupAllArtistsInfo();
+		}
+	}
+	
+	private void setupList() {
+		mList.setAdapter(new ArtistAdapter());
+		
+		if (mArtistCount == 1) {
+			((TextView) findViewById(R.id.artist_title)).setText(R.string.artist);
+		} else {
+			((TextView) findViewById(R.id.artist_title)).setText(
+					getString(R.string.all_artists) + " (" + mArtistCount + ")");
+			mList.setFastScrollEnabled(true);
+		}
+	}
+	
 	private void setupAllArtistsInfo() {
-		Artist [] artistInfo = BansheeDatabase.getOrderedArtists();
+		Artist [] artistInfo = mLibrary.getOrderedArtists();
 		List<SectionEntry> sections = new LinkedList<SectionEntry>();
 		Set<String> characters = new TreeSet<String>();
 		mArtistEntries = new ArrayList<ArtistEntry>();
@@ -352,7 +394,7 @@ public class ArtistActivity extends Activity implements OnBansheeCommandHandle,
 			
 			if (entry.isAlbum) {
 				if (entry.album == null) {
-					Album [] info = BansheeDatabase.getOrderedAlbumsOfArtist(entry.artist.getId());
+					Album [] info = mLibrary.getOrderedAlbumsOfArtist(entry.artist.getId());
 					ArtistEntry tmpEntry = entry;
 					int i = position;
 					
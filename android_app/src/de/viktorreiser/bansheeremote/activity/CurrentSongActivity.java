@@ -2,6 +2,7 @@ package de.viktorreiser.bansheeremote.activity;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -31,9 +32,13 @@ import de.viktorreiser.bansheeremote.data.App;
 import de.viktorreiser.bansheeremote.data.BansheeConnection;
 import de.viktorreiser.bansheeremote.data.BansheeConnection.Command;
 import de.viktorreiser.bansheeremote.data.BansheeConnection.OnBansheeCommandHandle;
+import de.viktorreiser.bansheeremote.data.BansheeConnection.OnBansheeDownloadProgress;
 import de.viktorreiser.bansheeremote.data.BansheeConnection.Repeat;
 import de.viktorreiser.bansheeremote.data.BansheeConnection.Shuffle;
 import de.viktorreiser.bansheeremote.data.BansheeDatabase;
+import de.viktorreiser.bansheeremote.data.BansheeDatabase.OnDatabaseUpdateListener;
+import de.viktorreiser.bansheeremote.data.BansheeDatabase.OnDbCacheListener;
+import de.viktorreiser.bansheeremote.data.BansheeDatabase.OnDeltaListener;
 import de.viktorreiser.bansheeremote.data.BansheeDatabase.Track;
 import de.viktorreiser.bansheeremote.data.BansheeServer;
 import de.viktorreiser.bansheeremote.data.BansheeServerCheckTask;
@@ -110,6 +115,7 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 		
 		private boolean mmRunning = false;
 		private long mmSeekUpdateStart = 0;
+		private final PollScheduler mmScheduler = new PollScheduler();
 		
 		
 		/**
@@ -117,16 +123,56 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 		 */
 		public void start() {
 			mmRunning = true;
-			sendEmptyMessage(MESSAGE_GET_STATUS);
+			mmScheduler.reset();
+			
+			// server pushes status changes if supported, polling is the fallback
+			mConnection.setStatusSubscription(true);
+			
+			if (BansheeDatabase.isOpen()) {
+				sendEmptyMessage(MESSAGE_GET_STATUS);
+			} else {
+				// without synchronized database we need the song info anyway, so request it along
+				// with the player status in a single round trip
+				mCommandHandler.mmSongInfoRequested = true;
+				mConnection.sendCommand(Command.BATCH, Command.Batch.encode(
+						Command.Batch.encode(null, Command.PLAYER_STATUS, null),
+						Command.SONG_INFO, null));
+				sendEmptyMessageDelayed(MESSAGE_GET_STATUS, nextPollInterval());
+			}
 		}
 		
 		/**
 		 * Stop polling.
 		 */
 		public void stop() {
+			if (mmRunning) {
+				mmScheduler.logStatistics();
+			}
+			
 			mmRunning = false;
 			removeMessages(MESSAGE_GET_STATUS);
 			removeMessages(MESSAGE_UPDATE_POSITION);
+			
+			if (mConnection != null) {
+				mConnection.setStatusSubscription(false);
+			}
+		}
+		
+		/**
+		 * Report a received player status to the poll scheduler.<br>
+		 * <br>
+		 * A change resets the poll back off and the next poll is rescheduled accordingly.
+		 * 
+		 * @param changed
+		 *            {@code true} if anything besides the seek position has changed
+		 */
+		public void onStatus(boolean changed) {
+			mmScheduler.onStatus(changed);
+			
+			if (changed && mmRunning && hasMessages(MESSAGE_GET_STATUS)) {
+				removeMessages(MESSAGE_GET_STATUS);
+				sendEmptyMessageDelayed(MESSAGE_GET_STATUS, nextPollInterval());
+			}
 		}
 		
 		/**
@@ -139,9 +185,10 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 			removeMessages(MESSAGE_UPDATE_POSITION);
 			
 			if (mData.playing) {
-				long interval = App.getPollInterval(NetworkStateBroadcast.isWifiConnected());
+				long interval = Math.max(mmScheduler.getLastInterval(),
+						App.getPollInterval(NetworkStateBroadcast.isWifiConnected()));
 				
-				if (interval > 1000) {
+				if (interval > 1000 || mConnection != null && mConnection.isStatusSubscribed()) {
 					mmSeekUpdateStart = System.currentTimeMillis();
 					sendEmptyMessageDelayed(MESSAGE_UPDATE_POSITION, 1000);
 				}
@@ -156,9 +203,11 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 			
 			switch (msg.what) {
 			case MESSAGE_GET_STATUS:
-				mConnection.sendCommand(Command.PLAYER_STATUS, null);
-				sendEmptyMessageDelayed(MESSAGE_GET_STATUS,
-						App.getPollInterval(NetworkStateBroadcast.isWifiConnected()));
+				if (!mConnection.isStatusSubscribed()) {
+					mConnection.sendCommand(Command.PLAYER_STATUS, null);
+				}
+				
+				sendEmptyMessageDelayed(MESSAGE_GET_STATUS, nextPollInterval());
 				break;
 			
 			case MESSAGE_UPDATE_POSITION:
@@ -176,6 +225,13 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 				break;
 			}
 		}
+		
+		private long nextPollInterval() {
+			return mmScheduler.nextInterval(
+					App.getPollInterval(NetworkStateBroadcast.isWifiConnected()),
+					mConnection.getRoundTripTime(), mConnection.isStatusSubscribed(),
+					mData.playing, mData.totalTime, mData.currentTime);
+		}
 	}
 	
 	/**
@@ -269,6 +325,8 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 	
 	private BansheeServerCheckTask mCheckTask;
 	private CoverAnimator mCoverAnimator;
+	private ProgressDialog mSyncProgress;
+	private ProgressDialog mCacheProgress;
 	private CommandHandler mCommandHandler = new CommandHandler();
 	
 	private BansheeConnection mConnection = null;
@@ -299,6 +357,7 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 		setContentView(R.layout.current_song);
 		
 		mStatusPollHandler = new StatusPollHandler();
+		BansheeDatabase.addUpdateListener(mCommandHandler);
 		
 		setupViewReferences();
 		setupPhoneStateListener();
@@ -320,6 +379,7 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 			
 			if (mConnection != null) {
 				mConnection.updateHandleCallback(mCommandHandler);
+				mConnection.setDownloadProgressCallback(mCommandHandler);
 			}
 			
 			if (mCheckTask != null) {
@@ -351,6 +411,18 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 		super.onDestroy();
 		
 		mStatusPollHandler = null;
+		BansheeDatabase.removeUpdateListener(mCommandHandler);
+		BansheeDatabase.removeDbCacheListener(mCommandHandler);
+		
+		if (mSyncProgress != null) {
+			mSyncProgress.dismiss();
+			mSyncProgress = null;
+		}
+		
+		if (mCacheProgress != null) {
+			mCacheProgress.dismiss();
+			mCacheProgress = null;
+		}
 		
 		if (mConnection != null) {
 			if (isFinishing()) {
@@ -359,6 +431,7 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 				// remove the old handler which is referencing the old activity so the
 				// garbage collector kicks in - we'll set a new handler in the new activity
 				mConnection.updateHandleCallback(null);
+				mConnection.setDownloadProgressCallback(null);
 			}
 		}
 	}
@@ -483,7 +556,7 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 			return true;
 			
 		case 2:
-			if (!mDatabaseSyncRunning) {
+			if (!mDatabaseSyncRunning && !BansheeDatabase.isUpdating()) {
 				mDatabaseSyncRunning = true;
 				mConnection.sendCommand(Command.SYNC_DATABASE,
 						Command.SyncDatabase.encodeFileTimestamp());
@@ -666,24 +739,14 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 		findViewById(R.id.browse_songs).setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				if (BansheeDatabase.isOpen() && !mDatabaseSyncRunning) {
-					startActivityForResult(new Intent(CurrentSongActivity.this,
-							TrackActivity.class), REQUEST_OTHER_ACTIVITY);
-				} else {
-					App.shortToast(R.string.need_sync_db);
-				}
+				startBrowseActivity(TrackActivity.class);
 			}
 		});
 		
 		findViewById(R.id.browse_artists).setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				if (BansheeDatabase.isOpen() && !mDatabaseSyncRunning) {
-					startActivityForResult(new Intent(CurrentSongActivity.this,
-							ArtistActivity.class), REQUEST_OTHER_ACTIVITY);
-				} else {
-					App.shortToast(R.string.need_sync_db);
-				}
+				startBrowseActivity(ArtistActivity.class);
 			}
 		});
 		
@@ -703,17 +766,37 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 		findViewById(R.id.browse_albums).setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				if (BansheeDatabase.isOpen() && !mDatabaseSyncRunning) {
-					startActivityForResult(
-							new Intent(CurrentSongActivity.this, AlbumActivity.class),
-							REQUEST_OTHER_ACTIVITY);
-				} else {
-					App.shortToast(R.string.need_sync_db);
-				}
+				startBrowseActivity(AlbumActivity.class);
 			}
 		});
 	}
 	
+	/**
+	 * Start browse activity when the database cache is ready (show loading progress until then).
+	 * 
+	 * @param activity
+	 *            browse activity
+	 */
+	private void startBrowseActivity(Class<?> activity) {
+		if (!BansheeDatabase.isOpen() || mDatabaseSyncRunning) {
+			App.shortToast(R.string.need_sync_db);
+		} else if (BansheeDatabase.isDbCacheReady()
+				|| (activity == TrackActivity.class && App.isPagedBrowsing())) {
+			startActivityForResult(new Intent(this, activity), REQUEST_OTHER_ACTIVITY);
+		} else {
+			if (mCacheProgress == null) {
+				mCacheProgress = new ProgressDialog(this);
+				mCacheProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+				mCacheProgress.setMessage(getString(R.string.loading_sync_db));
+				mCacheProgress.setCancelable(false);
+				mCacheProgress.show();
+			}
+			
+			mCommandHandler.mmBrowseActivity = activity;
+			BansheeDatabase.setupDbCacheAsync(mCommandHandler);
+		}
+	}
+	
 	/**
 	 * Create and setup server connection.
 	 * 
@@ -724,6 +807,7 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 		mData = new BansheeData();
 		mCommandHandler.updateComplete(true);
 		mConnection = new BansheeConnection(server, mCommandHandler);
+		mConnection.setDownloadProgressCallback(mCommandHandler);
 		BansheeDatabase.open(server);
 		mCoverAnimator.setDefaultCover();
 		mDatabaseSyncRunning = false;
@@ -767,7 +851,12 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 	 * 
 	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
 	 */
-	private class CommandHandler implements OnBansheeCommandHandle {
+	private class CommandHandler implements OnBansheeCommandHandle, OnBansheeDownloadProgress,
+			OnDatabaseUpdateListener, OnDbCacheListener, OnDeltaListener {
+		
+		private boolean mmSongInfoRequested = false;
+		private Class<?> mmBrowseActivity = null;
+		
 		
 		/**
 		 * Update complete UI.
@@ -913,6 +1002,96 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 			}
 		}
 		
+		@Override
+		public void onBansheeDownloadProgress(Command command, byte [] params, long bytes,
+				long total) {
+			if (mStatusPollHandler == null || !mDatabaseSyncRunning) {
+				return;
+			}
+			
+			if (mSyncProgress == null) {
+				mSyncProgress = new ProgressDialog(CurrentSongActivity.this);
+				mSyncProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+				mSyncProgress.setMessage(getString(R.string.fetching_sync_db));
+				mSyncProgress.setCancelable(false);
+				mSyncProgress.show();
+			}
+			
+			// progress in kilobytes, size is unknown for one-shot requests
+			mSyncProgress.setIndeterminate(total < 0);
+			mSyncProgress.setMax(total < 0 ? 0 : (int) (total / 1024));
+			mSyncProgress.setProgress((int) (bytes / 1024));
+		}
+		
+		@Override
+		public void onDatabaseUpdated(BansheeServer server, boolean success) {
+			if (mStatusPollHandler == null) {
+				return;
+			}
+			
+			App.longToast(success ? R.string.updated_sync_db : R.string.error_writing_sync_db);
+		}
+		
+		@Override
+		public void onDeltaApplied(BansheeServer server, int changes) {
+			if (mStatusPollHandler == null) {
+				// activity was recreated meanwhile, let the current one handle the result
+				if (mInstance != null) {
+					mInstance.mCommandHandler.onDeltaApplied(server, changes);
+				}
+				
+				return;
+			}
+			
+			if (mConnection == null || mConnection.getServer().getId() != server.getId()) {
+				// server was changed meanwhile
+				return;
+			}
+			
+			mDatabaseSyncRunning = false;
+			
+			if (changes > 0) {
+				App.longToast(R.string.updated_sync_db);
+			} else if (changes == 0
+					|| BansheeDatabase.isDatabaseUpToDate(mConnection.getServer(), mDbTimestamp)) {
+				showCompressDialog(App.getContext().getString(R.string.up_to_date_sync_db));
+			} else {
+				// delta not possible, fetch the whole database
+				App.longToast(R.string.fetching_sync_db);
+				mDatabaseSyncRunning = true;
+				mConnection.sendCommand(Command.SYNC_DATABASE, Command.SyncDatabase.encodeFile());
+			}
+		}
+		
+		@Override
+		public void onDbCacheProgress(int loaded, int total) {
+			if (mCacheProgress != null) {
+				mCacheProgress.setMax(total);
+				mCacheProgress.setProgress(loaded);
+			}
+		}
+		
+		@Override
+		public void onDbCacheReady(boolean success) {
+			if (mCacheProgress != null) {
+				mCacheProgress.dismiss();
+				mCacheProgress = null;
+			}
+			
+			if (mStatusPollHandler == null || mmBrowseActivity == null) {
+				return;
+			}
+			
+			if (success) {
+				startActivityForResult(new Intent(CurrentSongActivity.this, mmBrowseActivity),
+						REQUEST_OTHER_ACTIVITY);
+			} else {
+				App.shortToast(R.string.error_loading_sync_db);
+			}
+			
+			mmBrowseActivity = null;
+		}
+		
 		@Override
 		public void onBansheeCommandHandled(Command command, byte [] params, byte [] response) {
 			if (mStatusPollHandler == null) {
@@ -940,6 +1119,8 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 					handleSyncDatabaseFileSize(response);
 				} else if (Command.SyncDatabase.isFileRequest(params)) {
 					handleSyncDatabaseFile(response);
+				} else if (Command.SyncDatabase.isDelta(params)) {
+					handleSyncDatabaseDelta(response);
 				} else if (Command.SyncDatabase.isCompression(params)) {
 					if (response == null) {
 						App.longToast(R.string.request_failed);
@@ -982,16 +1163,42 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 				return;
 			}
 			
-			mData.playing = Command.PlayerStatus.decodePlaying(response);
-			mData.currentTime = Command.PlayerStatus.decodeSeekPosition(response);
-			mData.repeat = Command.PlayerStatus.decodeRepeatMode(response);
-			mData.shuffle = Command.PlayerStatus.decodeShuffleMode(response);
-			mData.volume = Command.PlayerStatus.decodeVolume(response);
-			mData.changeFlag = Command.PlayerStatus.decodeChangeFlag(response);
-			mData.currentSongId = Command.PlayerStatus.decodeSongId(response);
+			// only decode and update what actually changed (full status reports everything)
+			int changes = Command.PlayerStatus.decodeChanges(response);
+			
+			if ((changes & Command.PlayerStatus.CHANGED_STATE) != 0) {
+				mData.playing = Command.PlayerStatus.decodePlaying(response);
+				mData.repeat = Command.PlayerStatus.decodeRepeatMode(response);
+				mData.shuffle = Command.PlayerStatus.decodeShuffleMode(response);
+				updatePlayStatus(false);
+				updateRepeat(false);
+				updateShuffle(false);
+			}
+			
+			if ((changes & Command.PlayerStatus.CHANGED_VOLUME) != 0) {
+				mData.volume = Command.PlayerStatus.decodeVolume(response);
+				updateVolume(false);
+			}
+			
+			if ((changes & Command.PlayerStatus.CHANGED_SEEK_POSITION) != 0) {
+				mData.currentTime = Command.PlayerStatus.decodeSeekPosition(response);
+				updateSeekData(false);
+			}
+			
+			if ((changes & Command.PlayerStatus.CHANGED_CHANGE_FLAG) != 0) {
+				mData.changeFlag = Command.PlayerStatus.decodeChangeFlag(response);
+			}
+			
+			if ((changes & Command.PlayerStatus.CHANGED_SONG_ID) != 0) {
+				mData.currentSongId = Command.PlayerStatus.decodeSongId(response);
+			}
 			
-			updateComplete(false);
 			mStatusPollHandler.updatePseudoPoll();
+			mStatusPollHandler.onStatus(mData.playing != mPreviousData.playing
+					|| mData.repeat != mPreviousData.repeat
+					|| mData.shuffle != mPreviousData.shuffle
+					|| mData.volume != mPreviousData.volume
+					|| mData.changeFlag != mPreviousData.changeFlag);
 			
 			if (mData.changeFlag != mPreviousData.changeFlag) {
 				Track info = BansheeDatabase.getUncachedTrack(mData.currentSongId);
@@ -1013,12 +1220,16 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 						App.shortToast(R.string.out_of_data_hint_db);
 					}
 					
-					mConnection.sendCommand(Command.SONG_INFO, null);
+					if (!mmSongInfoRequested) {
+						mConnection.sendCommand(Command.SONG_INFO, null);
+					}
 				}
 			}
 		}
 		
 		private void handleSongInfo(byte [] response) {
+			mmSongInfoRequested = false;
+			
 			if (response == null) {
 				// request failed, try again
 				mConnection.sendCommand(Command.SONG_INFO, null);
@@ -1070,9 +1281,15 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 			
 			mDbTimestamp = Command.SyncDatabase.decodeFileTimestamp(response);
 			String message = null;
+			long localTimestamp = BansheeDatabase.getDatabaseTimestamp(mConnection.getServer());
 			
 			if (mDbTimestamp == 0) {
 				message = App.getContext().getString(R.string.no_sync_db);
+			} else if (localTimestamp > 0 && BansheeDatabase.isOpen()) {
+				// just fetch what changed since our database (server might not support it)
+				mDatabaseSyncRunning = true;
+				mConnection.sendCommand(Command.SYNC_DATABASE,
+						Command.SyncDatabase.encodeDelta(localTimestamp));
 			} else if (BansheeDatabase.isDatabaseUpToDate(mConnection.getServer(), mDbTimestamp)) {
 				message = App.getContext().getString(R.string.up_to_date_sync_db);
 			} else {
@@ -1083,35 +1300,62 @@ public class CurrentSongActivity extends Activity implements OnBansheeServerChec
 			}
 			
 			if (message != null) {
-				DialogInterface.OnClickListener c = new DialogInterface.OnClickListener() {
-					@Override
-					public void onClick(DialogInterface dialog, int which) {
-						if (mConnection != null) {
-							mConnection.sendCommand(Command.SYNC_DATABASE,
-									Command.SyncDatabase.encodeCompress());
-							App.longToast(R.string.request_sent);
-						}
+				showCompressDialog(message);
+			}
+		}
+		
+		/**
+		 * Show message which offers a database re-compression on server.
+		 */
+		private void showCompressDialog(String message) {
+			DialogInterface.OnClickListener c = new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					if (mConnection != null) {
+						mConnection.sendCommand(Command.SYNC_DATABASE,
+								Command.SyncDatabase.encodeCompress());
+						App.longToast(R.string.request_sent);
 					}
-				};
-				
-				new AlertDialog.Builder(CurrentSongActivity.this)
-						.setMessage(message)
-						.setNegativeButton(android.R.string.cancel, null)
-						.setPositiveButton(android.R.string.ok, c)
-						.show();
+				}
+			};
+			
+			new AlertDialog.Builder(CurrentSongActivity.this)
+					.setMessage(message)
+					.setNegativeButton(android.R.string.cancel, null)
+					.setPositiveButton(android.R.string.ok, c)
+					.show();
+		}
+		
+		private void handleSyncDatabaseDelta(byte [] response) {
+			mDatabaseSyncRunning = false;
+			
+			if (response == null) {
+				App.longToast(R.string.error_fetching_sync_db);
+				return;
+			}
+			
+			if (Command.SyncDatabase.isDeltaSupported(response)) {
+				// parsing and writing the rows happens in background
+				mDatabaseSyncRunning = true;
+				BansheeDatabase.applyDeltaAsync(mConnection.getServer(), response, this);
+			} else {
+				onDeltaApplied(mConnection.getServer(), -1);
 			}
 		}
 		
 		private void handleSyncDatabaseFile(byte [] response) {
 			mDatabaseSyncRunning = false;
 			
-			if (response == null || response.length < 2) {
+			if (mSyncProgress != null) {
+				mSyncProgress.dismiss();
+				mSyncProgress = null;
+			}
+			
+			if (response == null || Command.SyncDatabase.decodeFileLength(response) < 2) {
 				App.longToast(R.string.error_fetching_sync_db);
-			} else if (!BansheeDatabase.updateDatabase(mConnection.getServer(), response,
-					mDbTimestamp)) {
-				App.longToast(R.string.error_writing_sync_db);
 			} else {
-				App.longToast(R.string.updated_sync_db);
+				// browsing goes on with the current database until the new one is loaded
+				BansheeDatabase.updateDatabaseAsync(mConnection.getServer(), mDbTimestamp);
 			}
 			
 			mDbTimestamp = 0;
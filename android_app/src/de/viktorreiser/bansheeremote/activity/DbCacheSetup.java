@@ -0,0 +1,89 @@
+package de.viktorreiser.bansheeremote.activity;
+
+import android.app.Activity;
+import android.app.ProgressDialog;
+import de.viktorreiser.bansheeremote.R;
+import de.viktorreiser.bansheeremote.data.App;
+import de.viktorreiser.bansheeremote.data.BansheeDatabase;
+import de.viktorreiser.bansheeremote.data.BansheeDatabase.OnDbCacheListener;
+
+/**
+ * Set up memory cache for a browse activity without blocking it.<br>
+ * <br>
+ * The cache is loaded in background (see {@link BansheeDatabase#setupDbCacheAsync}) while a
+ * progress dialog is shown. The activity is finished if the cache couldn't be loaded.
+ * 
+ * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+ */
+abstract class DbCacheSetup implements OnDbCacheListener {
+	
+	// PRIVATE ====================================================================================
+	
+	private final Activity mActivity;
+	private ProgressDialog mProgress;
+	
+	// PACKAGE ====================================================================================
+	
+	DbCacheSetup(Activity activity) {
+		mActivity = activity;
+	}
+	
+	/**
+	 * Start loading (calls {@link #onDbCacheSetup()} immediately if the cache is ready).
+	 */
+	void start() {
+		if (BansheeDatabase.isOpen() && !BansheeDatabase.isDbCacheReady()) {
+			mProgress = new ProgressDialog(mActivity);
+			mProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+			mProgress.setMessage(mActivity.getString(R.string.loading_sync_db));
+			mProgress.setCancelable(false);
+			mProgress.show();
+		}
+		
+		BansheeDatabase.setupDbCacheAsync(this);
+	}
+	
+	/**
+	 * Stop waiting for the cache (call this when the activity is destroyed).
+	 */
+	void cancel() {
+		BansheeDatabase.removeDbCacheListener(this);
+		dismiss();
+	}
+	
+	/**
+	 * Called on the main thread when the cache is set up.
+	 */
+	abstract void onDbCacheSetup();
+	
+	// OVERRIDDEN =================================================================================
+	
+	@Override
+	public void onDbCacheProgress(int loaded, int total) {
+		if (mProgress != null) {
+			mProgress.setMax(total);
+			mProgress.setProgress(loaded);
+		}
+	}
+	
+	@Override
+	public void onDbCacheReady(boolean success) {
+		dismiss();
+		
+		if (success) {
+			onDbCacheSetup();
+		} else {
+			App.shortToast(R.string.error_loading_sync_db);
+			mActivity.finish();
+		}
+	}
+	
+	// PRIVATE ====================================================================================
+	
+	private void dismiss() {
+		if (mProgress != null) {
+			mProgress.dismiss();
+			mProgress = null;
+		}
+	}
+}
@@ -760,7 +760,9 @@ public class PlaylistActivity extends Activity implements OnBansheeCommandHandle
 		private void requestTrackInfo(PlaylistEntry entry) {
 			if (!entry.requestedTrackInfo) {
 				entry.requestedTrackInfo = true;
-				entry.trackInfo = BansheeDatabase.getTrack(entry.id);
+				// doesn't wait for the whole library to be cached
+				entry.trackInfo = BansheeDatabase.isOpen()
+						? BansheeDatabase.getUncachedTrack(entry.id) : null;
 				
 				if (entry.trackInfo == null && !mDbOutOfDateHintShown && entry.id > 0
 						&& App.isShowDbOutOfDateHint()) {
@@ -0,0 +1,178 @@
+package de.viktorreiser.bansheeremote.activity;
+
+import de.viktorreiser.toolbox.util.L;
+
+/**
+ * Decides when the next player status poll should be sent.<br>
+ * <br>
+ * The configured poll interval is just the base. While nothing changes on the server (player is
+ * paused or just keeps playing the same track) the interval is doubled with every poll up to a
+ * maximum. The seek position is progressed locally anyway, so the only thing we would miss is the
+ * next track, which is predicted by the remaining time of the current one. Shortly before the
+ * predicted end we poll with the base interval again. Any change of the status (or a restart
+ * of polling) resets the back off.<br>
+ * <br>
+ * The interval never drops below a multiple of the measured round trip time, so a slow connection
+ * isn't flooded with requests which would just queue up.<br>
+ * <br>
+ * Decisions are counted and logged as statistics when polling stops (see
+ * {@link #logStatistics()}).
+ * 
+ * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+ */
+class PollScheduler {
+	
+	// PRIVATE ====================================================================================
+	
+	private static final long MIN_INTERVAL = 500;
+	private static final long MAX_PLAYING_INTERVAL = 15000;
+	private static final long MAX_PAUSED_INTERVAL = 60000;
+	private static final long TRACK_END_WINDOW = 3000;
+	private static final int MAX_BACKOFF = 6;
+	private static final int ROUND_TRIP_FACTOR = 4;
+	
+	private int mBackoff = 0;
+	private Decision mLastDecision = Decision.BASE;
+	private long mLastInterval = 0;
+	private int mPollCount = 0;
+	private long mIntervalSum = 0;
+	private int [] mDecisionCounts = new int [Decision.values().length];
+	
+	// PACKAGE ====================================================================================
+	
+	/**
+	 * Reason for a poll interval decision.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	static enum Decision {
+		/** Base interval (status just changed). */
+		BASE,
+		/** Backed off because nothing changed while playing. */
+		IDLE,
+		/** Backed off because player is paused. */
+		PAUSED,
+		/** Tight polling because track is about to end. */
+		TRACK_END,
+		/** Interval was stretched to the measured round trip time. */
+		ROUND_TRIP,
+		/** Status is pushed by server, poll just checks the subscription. */
+		SUBSCRIBED
+	}
+	
+	
+	/**
+	 * Reset back off (polling is started).
+	 */
+	void reset() {
+		mBackoff = 0;
+	}
+	
+	/**
+	 * Report a received player status.
+	 * 
+	 * @param changed
+	 *            {@code true} if anything besides the seek position has changed
+	 */
+	void onStatus(boolean changed) {
+		if (changed) {
+			mBackoff = 0;
+		} else if (mBackoff < MAX_BACKOFF) {
+			mBackoff++;
+		}
+	}
+	
+	/**
+	 * Get delay until the next poll (this counts as scheduled poll).
+	 * 
+	 * @param baseInterval
+	 *            configured poll interval in milliseconds
+	 * @param roundTripTime
+	 *            measured round trip time in milliseconds ({@code -1} if unknown)
+	 * @param subscribed
+	 *            {@code true} if server pushes the status
+	 * @param playing
+	 *            is player playing
+	 * @param totalTime
+	 *            total time of current track in milliseconds ({@code -1} if unknown)
+	 * @param currentTime
+	 *            current seek position in milliseconds ({@code -1} if unknown)
+	 * 
+	 * @return delay in milliseconds
+	 */
+	long nextInterval(long baseInterval, long roundTripTime, boolean subscribed, boolean playing,
+			long totalTime, long currentTime) {
+		long interval;
+		Decision decision;
+		
+		if (subscribed) {
+			interval = baseInterval;
+			decision = Decision.SUBSCRIBED;
+		} else if (!playing) {
+			interval = Math.min(baseInterval << mBackoff, MAX_PAUSED_INTERVAL);
+			decision = mBackoff == 0 ? Decision.BASE : Decision.PAUSED;
+		} else {
+			interval = Math.min(baseInterval << mBackoff, MAX_PLAYING_INTERVAL);
+			decision = mBackoff == 0 ? Decision.BASE : Decision.IDLE;
+			
+			if (totalTime > 0 && currentTime >= 0) {
+				long remaining = totalTime - currentTime;
+				
+				if (remaining <= TRACK_END_WINDOW) {
+					interval = baseInterval;
+					decision = Decision.TRACK_END;
+				} else if (remaining - TRACK_END_WINDOW < interval) {
+					// wake up when the track end window starts
+					interval = remaining - TRACK_END_WINDOW;
+					decision = Decision.TRACK_END;
+				}
+			}
+		}
+		
+		interval = Math.max(interval, MIN_INTERVAL);
+		
+		if (!subscribed && roundTripTime > 0 && interval < roundTripTime * ROUND_TRIP_FACTOR) {
+			interval = roundTripTime * ROUND_TRIP_FACTOR;
+			decision = Decision.ROUND_TRIP;
+		}
+		
+		if (decision != mLastDecision) {
+			L.d("poll scheduler: " + decision.toString().toLowerCase() + " (" + interval + "ms)");
+		}
+		
+		mLastDecision = decision;
+		mLastInterval = interval;
+		mDecisionCounts[decision.ordinal()]++;
+		
+		if (!subscribed) {
+			mPollCount++;
+			mIntervalSum += interval;
+		}
+		
+		return interval;
+	}
+	
+	/**
+	 * Get last scheduled interval in milliseconds.
+	 */
+	long getLastInterval() {
+		return mLastInterval;
+	}
+	
+	/**
+	 * Log amount of scheduled polls, their average interval and how often each decision was
+	 * made.
+	 */
+	void logStatistics() {
+		StringBuilder s = new StringBuilder("poll scheduler: ").append(mPollCount)
+				.append(" polls, average ")
+				.append(mPollCount == 0 ? 0 : mIntervalSum / mPollCount).append("ms");
+		
+		for (Decision decision : Decision.values()) {
+			s.append(", ").append(decision.toString().toLowerCase()).append(' ')
+					.append(mDecisionCounts[decision.ordinal()]);
+		}
+		
+		L.d(s.toString());
+	}
+}
@@ -1,5 +1,6 @@
 package de.viktorreiser.bansheeremote.activity;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -8,12 +9,16 @@ import java.util.TreeSet;
 import android.app.Activity;
 import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.inputmethod.InputMethodManager;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.BaseAdapter;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.SectionIndexer;
@@ -25,8 +30,11 @@ import de.viktorreiser.bansheeremote.data.BansheeConnection.Command.Playlist.Mod
 import de.viktorreiser.bansheeremote.data.BansheeConnection.OnBansheeCommandHandle;
 import de.viktorreiser.bansheeremote.data.BansheeDatabase;
 import de.viktorreiser.bansheeremote.data.BansheeDatabase.Album;
+import de.viktorreiser.bansheeremote.data.BansheeDatabase.Library;
 import de.viktorreiser.bansheeremote.data.BansheeDatabase.Track;
 import de.viktorreiser.bansheeremote.data.CoverCache;
+import de.viktorreiser.bansheeremote.data.TrackSearch;
+import de.viktorreiser.bansheeremote.data.TrackSearch.OnSearchListener;
 import de.viktorreiser.toolbox.content.NetworkStateBroadcast;
 import de.viktorreiser.toolbox.util.AndroidUtils;
 import de.viktorreiser.toolbox.widget.HiddenQuickActionSetup;
@@ -43,8 +51,17 @@ public class TrackActivity extends Activity implements OnBansheeCommandHandle, O
 	
 	// PRIVATE ====================================================================================
 	
+	private static final int PAGE_SIZE = 100;
+	
 	private OnBansheeCommandHandle mOldCommandHandler;
+	private Library mLibrary;
+	private boolean mLibraryRetained = false;
+	private DbCacheSetup mCacheSetup;
 	private Track [] mTrackEntries;
+	private List<Track> mPagedTrackEntries;
+	private int mPagedTrackCount;
+	private Track [] mSearchEntries;
+	private EditText mSearch;
 	private Object [] mAdapterSections;
 	private ListView mList;
 	private long mAlbumId;
@@ -59,6 +76,7 @@ public class TrackActivity extends Activity implements OnBansheeCommandHandle, O
 	// OVERRIDDEN =================================================================================
 	
 	@Override
+	@SuppressWarnings("unchecked")
 	public void onCreate(Bundle bundle) {
 		super.onCreate(bundle);
 		
@@ -69,43 +87,6 @@ public class TrackActivity extends Activity implements OnBansheeCommandHandle, O
 		
 		Object [] data = (Object []) getLastNonConfigurationInstance();
 		
-		if (data != null) {
-			mTrackEntries = (Track []) data[0];
-			mAdapterSections = (Object []) data[1];
-			mAlbumId = (Long) data[2];
-			mArtistId = (Long) data[3];
-		} else {
-			if (getIntent().hasExtra(EXTRA_ALBUM_ID) && getIntent().hasExtra(EXTRA_ARTIST_ID)) {
-				mAlbumId = getIntent().getLongExtra(EXTRA_ALBUM_ID, -1);
-				mArtistId = getIntent().getLongExtra(EXTRA_ARTIST_ID, -1);
-				mTrackEntries = BansheeDatabase.getOrderedTracksOfAlbum(mAlbumId);
-			} else if (getIntent().hasExtra(EXTRA_ARTIST_ID)) {
-				mArtistId = getIntent().getLongExtra(EXTRA_ARTIST_ID, -1);
-				mTrackEntries = BansheeDatabase.getOrderedTracksOfArtist(mArtistId);
-			} else {
-				mTrackEntries = BansheeDatabase.getOrderedTracks();
-			}
-			
-			if (mAlbumId < 1) {
-				List<SectionEntry> sections = new LinkedList<SectionEntry>();
-				Set<String> characters = new TreeSet<String>();
-				
-				for (int i = 0; i < mTrackEntries.length; i++) {
-					String c = mTrackEntries[i].getTitle().substring(0, 1).toUpperCase();
-					
-					if (!characters.contains(c)) {
-						SectionEntry s = new SectionEntry();
-						s.character = c;
-						s.position = i;
-						sections.add(s);
-						characters.add(c);
-					}
-				}
-				
-				mAdapterSections = sections.toArray();
-			}
-		}
-		
 		mOldCommandHandler = CurrentSongActivity.getConnection().getHandleCallback();
 		CurrentSongActivity.getConnection().updateHandleCallback(new OnBansheeCommandHandle() {
 			@Override
@@ -129,46 +110,64 @@ public class TrackActivity extends Activity implements OnBansheeCommandHandle, O
 		setContentView(R.layout.track);
 		
 		mList = (ListView) findViewById(R.id.list);
-		mList.setAdapter(new TrackAdapter());
 		mList.setOnItemClickListener(this);
 		
-		View headerCommon = findViewById(R.id.header_common);
-		View headerArtist = findViewById(R.id.header_artist);
-		View headerAlbum = findViewById(R.id.header_album);
-		
-		headerCommon.setVisibility(mAlbumId < 1 && mArtistId < 1 ? View.VISIBLE : View.GONE);
-		headerArtist.setVisibility(mArtistId > 0 && mAlbumId < 1 ? View.VISIBLE : View.GONE);
-		headerAlbum.setVisibility(mAlbumId > 0 && mArtistId > 0 ? View.VISIBLE : View.GONE);
-		
-		if (mAlbumId > 0 && mArtistId > 0) {
-			String artistName = BansheeDatabase.getArtist(mArtistId).getName();
-			Album album = BansheeDatabase.getAlbum(mAlbumId);
-			
-			((TextView) headerAlbum.findViewById(R.id.artist_name)).setText(artistName);
-			((TextView) headerAlbum.findViewById(R.id.album_title)).setText(
-					album.getTitle() + " (" + album.getTrackCount() + ")");
-			
-			((ImageView) headerAlbum.findViewById(R.id.cover1)).setImageBitmap(
-					CoverCache.getThumbCover(album.getArtId()));
-		} else if (mArtistId > 0) {
-			((TextView) headerArtist.findViewById(R.id.artist_name)).setText(
-					BansheeDatabase.getArtist(mArtistId).getName()
-							+ " (" + mTrackEntries.length + ")");
-			
-			if (mTrackEntries.length > 25) {
-				mList.setFastScrollEnabled(true);
-			}
+		if (data != null) {
+			mTrackEntries = (Track []) data[0];
+			mAdapterSections = (Object []) data[1];
+			mAlbumId = (Long) data[2];
+			mArtistId = (Long) data[3];
+			mPagedTrackEntries = (List<Track>) data[4];
+			mPagedTrackCount = (Integer) data[5];
+			mLibrary = (Library) data[6];
+			setupList();
+		} else if (!getIntent().hasExtra(EXTRA_ARTIST_ID) && App.isPagedBrowsing()) {
+			// tracks are loaded page by page while scrolling, whole library isn't loaded
+			setupTrackEntries(true);
+			setupList();
 		} else {
-			((TextView) headerCommon.findViewById(R.id.track_title)).setText(
-					getString(R.string.all_tracks) + " (" + mTrackEntries.length + ")");
-			mList.setFastScrollEnabled(true);
+			// list is set up when the memory cache is loaded in background
+			mCacheSetup = new DbCacheSetup(this) {
+				@Override
+				void onDbCacheSetup() {
+					mCacheSetup = null;
+					setupTrackEntries(false);
+					setupList();
+				}
+			};
+			mCacheSetup.start();
 		}
 	}
 	
+	@Override
+	public boolean onSearchRequested() {
+		if (mSearch == null) {
+			return false;
+		}
+		
+		mSearch.setVisibility(View.VISIBLE);
+		mSearch.requestFocus();
+		((InputMethodManager) getSystemService(INPUT_METHOD_SERVICE)).showSoftInput(
+				mSearch, InputMethodManager.SHOW_IMPLICIT);
+		return true;
+	}
+	
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
 		
+		if (mCacheSetup != null) {
+			mCacheSetup.cancel();
+		}
+		
+		if (mLibrary != null && !mLibraryRetained) {
+			mLibrary.release();
+		}
+		
+		if (mSearch != null) {
+			TrackSearch.cancel();
+		}
+		
 		if (CurrentSongActivity.getConnection() != null) {
 			CurrentSongActivity.getConnection().updateHandleCallback(mOldCommandHandler);
 		}
@@ -176,7 +175,15 @@ public class TrackActivity extends Activity implements OnBansheeCommandHandle, O
 	
 	@Override
 	public Object onRetainNonConfigurationInstance() {
-		return new Object [] {mTrackEntries, mAdapterSections, mAlbumId, mArtistId};
+		if (mLibrary == null) {
+			// cache is still loading, new instance waits for it again
+			return null;
+		}
+		
+		// new instance takes over the acquired library
+		mLibraryRetained = true;
+		return new Object [] {mTrackEntries, mAdapterSections, mAlbumId, mArtistId,
+				mPagedTrackEntries, mPagedTrackCount, mLibrary};
 	}
 	
 	@Override
@@ -187,7 +194,7 @@ public class TrackActivity extends Activity implements OnBansheeCommandHandle, O
 	@Override
 	public void onItemClick(AdapterView<?> a, View v, int p, long id) {
 		CurrentSongActivity.getConnection().sendCommand(Command.PLAYLIST,
-				Command.Playlist.encodePlayTrack(mTrackEntries[p].getId()));
+				Command.Playlist.encodePlayTrack(getTrackEntry(p).getId()));
 	}
 	
 	@Override
@@ -196,13 +203,13 @@ public class TrackActivity extends Activity implements OnBansheeCommandHandle, O
 		case App.QUICK_ACTION_ENQUEUE: {
 			CurrentSongActivity.getConnection().sendCommand(Command.PLAYLIST,
 					Command.Playlist.encodeAdd(App.PLAYLIST_QUEUE, Modification.ADD_TRACK,
-							mTrackEntries[position].getId(), App.isQueueAddTwice()));
+							getTrackEntry(position).getId(), App.isQueueAddTwice()));
 			break;
 		}
 		case App.QUICK_ACTION_ADD: {
 			CurrentSongActivity.getConnection().sendCommand(Command.PLAYLIST,
 					Command.Playlist.encodeAdd(App.PLAYLIST_REMOTE, Modification.ADD_TRACK,
-							mTrackEntries[position].getId(), App.isPlaylistAddTwice()));
+							getTrackEntry(position).getId(), App.isPlaylistAddTwice()));
 			break;
 		}
 		}
@@ -232,6 +239,174 @@ public class TrackActivity extends Activity implements OnBansheeCommandHandle, O
 	
 	// PRIVATE ====================================================================================
 	
+	/**
+	 * Set up entries from the current library (memory cache has to be ready if not paged).
+	 */
+	private void setupTrackEntries(boolean paged) {
+		// pages and headers have to come from the same library as the first entries
+		mLibrary = BansheeDatabase.getLibrary().acquire();
+		
+		if (getIntent().hasExtra(EXTRA_ALBUM_ID) && getIntent().hasExtra(EXTRA_ARTIST_ID)) {
+			mAlbumId = getIntent().getLongExtra(EXTRA_ALBUM_ID, -1);
+			mArtistId = getIntent().getLongExtra(EXTRA_ARTIST_ID, -1);
+			mTrackEntries = mLibrary.getOrderedTracksOfAlbum(mAlbumId);
+		} else if (getIntent().hasExtra(EXTRA_ARTIST_ID)) {
+			mArtistId = getIntent().getLongExtra(EXTRA_ARTIST_ID, -1);
+			mTrackEntries = mLibrary.getOrderedTracksOfArtist(mArtistId);
+		} else if (paged) {
+			mPagedTrackEntries = new ArrayList<Track>();
+			mPagedTrackCount = mLibrary.getTrackCount();
+			mAdapterSections = new Object [0];
+		} else {
+			mTrackEntries = mLibrary.getOrderedTracks();
+		}
+		
+		if (mAlbumId < 1 && mTrackEntries != null) {
+			List<SectionEntry> sections = new LinkedList<SectionEntry>();
+			Set<String> characters = new TreeSet<String>();
+			
+			for (int i = 0; i < mTrackEntries.length; i++) {
+				String c = mTrackEntries[i].getTitle().substring(0, 1).toUpperCase();
+				
+				if (!characters.contains(c)) {
+					SectionEntry s = new SectionEntry();
+					s.character = c;
+					s.position = i;
+					sections.add(s);
+					characters.add(c);
+				}
+			}
+			
+			mAdapterSections = sections.toArray();
+		}
+	}
+	
+	private void setupList() {
+		mList.setAdapter(new TrackAdapter());
+		
+		View headerCommon = findViewById(R.id.header_common);
+		View headerArtist = findViewById(R.id.header_artist);
+		View headerAlbum = findViewById(R.id.header_album);
+		
+		headerCommon.setVisibility(mAlbumId < 1 && mArtistId < 1 ? View.VISIBLE : View.GONE);
+		headerArtist.setVisibility(mArtistId > 0 && mAlbumId < 1 ? View.VISIBLE : View.GONE);
+		headerAlbum.setVisibility(mAlbumId > 0 && mArtistId > 0 ? View.VISIBLE : View.GONE);
+		
+		if (mAlbumId > 0 && mArtistId > 0) {
+			String artistName = mLibrary.getArtist(mArtistId).getName();
+			Album album = mLibrary.getAlbum(mAlbumId);
+			
+			((TextView) headerAlbum.findViewById(R.id.artist_name)).setText(artistName);
+			((TextView) headerAlbum.findViewById(R.id.album_title)).setText(
+					album.getTitle() + " (" + album.getTrackCount() + ")");
+			
+			((ImageView) headerAlbum.findViewById(R.id.cover1)).setImageBitmap(
+					CoverCache.getThumbCover(album.getArtId()));
+		} else if (mArtistId > 0) {
+			((TextView) headerArtist.findViewById(R.id.artist_name)).setText(
+					mLibrary.getArtist(mArtistId).getName()
+							+ " (" + mTrackEntries.length + ")");
+			
+			if (mTrackEntries.length > 25) {
+				mList.setFastScrollEnabled(true);
+			}
+		} else {
+			updateCommonHeader();
+			setupSearch();
+		}
+	}
+	
+	private void updateCommonHeader() {
+		((TextView) findViewById(R.id.track_title)).setText(
+				getString(R.string.all_tracks) + " (" + getTrackEntryCount() + ")");
+		mList.setFastScrollEnabled(mTrackEntries != null && mSearchEntries == null);
+	}
+	
+	/**
+	 * Search field of all tracks list (shown with the search key).<br>
+	 * <br>
+	 * Every change is queried on the search index, only the latest result is shown.
+	 */
+	private void setupSearch() {
+		mSearch = (EditText) findViewById(R.id.search);
+		mSearch.addTextChangedListener(new TextWatcher() {
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {
+			}
+			
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+			}
+			
+			@Override
+			public void afterTextChanged(Editable s) {
+				String query = s.toString().trim();
+				
+				if (query.length() == 0) {
+					TrackSearch.cancel();
+					showSearchResult(null);
+				} else {
+					TrackSearch.search(mLibrary, query, new OnSearchListener() {
+						@Override
+						public void onSearchResult(String query, Track [] tracks) {
+							showSearchResult(tracks);
+						}
+					});
+				}
+			}
+		});
+	}
+	
+	private void showSearchResult(Track [] tracks) {
+		if (isFinishing()) {
+			return;
+		}
+		
+		mSearchEntries = tracks;
+		updateCommonHeader();
+		((BaseAdapter) mList.getAdapter()).notifyDataSetChanged();
+		
+		if (tracks != null) {
+			mList.setSelection(0);
+		}
+	}
+	
+	private int getTrackEntryCount() {
+		if (mSearchEntries != null) {
+			return mSearchEntries.length;
+		}
+		
+		return mTrackEntries != null ? mTrackEntries.length : mPagedTrackCount;
+	}
+	
+	/**
+	 * Get track of list position (further pages are loaded if needed).
+	 */
+	private Track getTrackEntry(int position) {
+		if (mSearchEntries != null) {
+			return mSearchEntries[position];
+		} else if (mTrackEntries != null) {
+			return mTrackEntries[position];
+		}
+		
+		while (position >= mPagedTrackEntries.size()) {
+			Track last = mPagedTrackEntries.isEmpty()
+					? null : mPagedTrackEntries.get(mPagedTrackEntries.size() - 1);
+			Track [] page = mLibrary.getOrderedTracksPage(last, PAGE_SIZE);
+			
+			if (page == null || page.length == 0) {
+				// library changed since count was taken
+				return BansheeDatabase.getUncachedTrack(-1);
+			}
+			
+			for (Track t : page) {
+				mPagedTrackEntries.add(t);
+			}
+		}
+		
+		return mPagedTrackEntries.get(position);
+	}
+	
 	private static class ViewHolder {
 		public TextView track;
 		public TextView artist;
@@ -262,7 +437,7 @@ public class TrackActivity extends Activity implements OnBansheeCommandHandle, O
 		
 		@Override
 		public int getCount() {
-			return mTrackEntries.length;
+			return getTrackEntryCount();
 		}
 		
 		@Override
@@ -297,7 +472,7 @@ public class TrackActivity extends Activity implements OnBansheeCommandHandle, O
 			}
 			
 			ViewHolder holder = (ViewHolder) convertView.getTag();
-			Track i = mTrackEntries[position];
+			Track i = getTrackEntry(position);
 			holder.track.setText(i.getTitle());
 			
 			if (type == 0) {
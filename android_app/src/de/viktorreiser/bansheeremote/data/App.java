@@ -50,6 +50,12 @@ public class App extends Application {
 	/** Extension of synchronized database file. */
 	public static final String DB_EXT = ".sqlite";
 	
+	/** Extension of memory cache snapshot which is stored next to the database file. */
+	public static final String SNAPSHOT_EXT = ".snapshot";
+	
+	/** Extension of side database with derived data (sort keys and search index). */
+	public static final String INDEX_EXT = ".index";
+	
 	
 	/**
 	 * Get application context
@@ -106,6 +112,27 @@ public class App extends Application {
 		return PreferenceManager.getDefaultSharedPreferences(mContext).getInt(key, defValue) * 1000;
 	}
 	
+	/**
+	 * Should a persistent connection be kept open to the banshee server?
+	 * 
+	 * @return {@code true} if requests should be sent over a single long-lived connection (falls
+	 *         back to a connection per request if server doesn't support it)
+	 */
+	public static boolean isPersistentConnection() {
+		return PreferenceManager.getDefaultSharedPreferences(mContext)
+				.getBoolean("persistentconnection", true);
+	}
+	
+	/**
+	 * Get the amount of requests which can be sent at once over a persistent connection.
+	 * 
+	 * @return maximum count of pipelined requests
+	 */
+	public static int getPipelineWindow() {
+		return PreferenceManager.getDefaultSharedPreferences(mContext)
+				.getInt("pipelinewindow", 4);
+	}
+	
 	/**
 	 * Should the song genre be displayed besides the song title?
 	 * 
@@ -136,6 +163,16 @@ public class App extends Application {
 				.getBoolean("displayrating", true);
 	}
 	
+	/**
+	 * Should all tracks be read page by page from the database while browsing them?
+	 * 
+	 * @return {@code true} if tracks should be paged instead of loading the whole library
+	 */
+	public static boolean isPagedBrowsing() {
+		return PreferenceManager.getDefaultSharedPreferences(mContext)
+				.getBoolean("pagedbrowsing", false);
+	}
+	
 	/**
 	 * Should cover be fetched from server when using mobile network.
 	 * 
@@ -1,17 +1,22 @@
 package de.viktorreiser.bansheeremote.data;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.zip.Adler32;
 
 import android.os.Handler;
+import de.viktorreiser.bansheeremote.data.CommandScheduler.Entry;
 import de.viktorreiser.toolbox.content.NetworkStateBroadcast;
 import de.viktorreiser.toolbox.util.L;
 
@@ -21,6 +26,12 @@ import de.viktorreiser.toolbox.util.L;
  * The main task of this class is to send commands asynchronously to a banshee server and report
  * back the results on the UI thread.<br>
  * <br>
+ * Commands are dispatched by their class to independent request lanes, each with its own thread
+ * and connection. Player status and song info requests have a lane on their own, so they are
+ * never blocked by cover downloads or a database synchronization. On a persistent connection a
+ * lane writes up to {@link App#getPipelineWindow()} requests at once before reading the
+ * responses.<br>
+ * <br>
  * First you create an instance with
  * {@link #BansheeConnection(BansheeServer, OnBansheeCommandHandle)}. The command handler callback
  * is called on the UI thread after {@value #MAX_FAIL_COMMANDS} failed requests with {@code null}
@@ -44,15 +55,25 @@ public class BansheeConnection {
 	// PRIVATE ====================================================================================
 	
 	private static final int CHECK_CONNECTION_TIMEOUT = 3000;
-	
-	private static byte [] mBuffer = new byte [1024];
-	private static ByteArrayOutputStream mByteOutputStream = new ByteArrayOutputStream();
+	private static final int PRIORITIES = 4;
+	static final int STATUS_SUBSCRIPTION_CODE = 7;
+	private static final int STATUS_HEARTBEAT_TIMEOUT = 60000;
+	private static final int MIN_SUBSCRIPTION_RETRY = 2000;
+	private static final int MAX_SUBSCRIPTION_RETRY = 60000;
+	private static final int ROUND_TRIP_SMOOTHING = 8;
+	private static final int DOWNLOAD_PROGRESS_INTERVAL = 250;
 	
 	
 	private BansheeServer mServer;
-	private volatile int mFailCount = 0;
-	private LinkedList<CommandQueue> mCommandQueue = new LinkedList<CommandQueue>();
-	private CommandThread mCommandThread = new CommandThread();
+	private volatile boolean mRunning = true;
+	private int mFailCount = 0;
+	private CommandThread [] mLanes = new CommandThread [Lane.values().length];
+	private StatusThread mStatusThread;
+	private volatile boolean mStatusSubscriptionSupported = true;
+	private volatile long mRoundTripTime = -1;
+	private volatile OnBansheeDownloadProgress mDownloadCallback;
+	private final BansheeTransport.CompressionStats mCompressionStats =
+			new BansheeTransport.CompressionStats();
 	private Handler mCommandHandler = new Handler();
 	private Set<String> mPendingCoverRequests = new HashSet<String>();
 	private OnBansheeCommandHandle mHandleCallback;
@@ -84,20 +105,28 @@ public class BansheeConnection {
 	 */
 	public static enum Command {
 		
-		PLAYER_STATUS(1, 1000, 3000),
-		SONG_INFO(2, 3000, 6000),
-		SYNC_DATABASE(3, 10000, 15000),
-		COVER(4, 5000, 10000),
-		PLAYLIST(5, 10000, 15000);
+		PLAYER_STATUS(1, 1000, 3000, Lane.INTERACTIVE, 0, 5000),
+		SONG_INFO(2, 3000, 6000, Lane.INTERACTIVE, 1, 10000),
+		SYNC_DATABASE(3, 10000, 15000, Lane.BULK, 2, 0),
+		COVER(4, 5000, 10000, Lane.COVER, 3, 30000),
+		PLAYLIST(5, 10000, 15000, Lane.BULK, 1, 0),
+		BATCH(6, 10000, 15000, Lane.INTERACTIVE, 1, 0);
 		
 		private final int mCode;
 		private final int mTimeoutWifi;
 		private final int mTimeoutMobile;
+		private final Lane mLane;
+		private final int mPriority;
+		private final int mStaleTimeout;
 		
-		Command(int code, int timeoutWifi, int timeoutMobile) {
+		Command(int code, int timeoutWifi, int timeoutMobile, Lane lane, int priority,
+				int staleTimeout) {
 			mCode = code;
 			mTimeoutWifi = timeoutWifi;
 			mTimeoutMobile = timeoutMobile;
+			mLane = lane;
+			mPriority = priority;
+			mStaleTimeout = staleTimeout;
 		}
 		
 		/**
@@ -110,6 +139,29 @@ public class BansheeConnection {
 		 */
 		public static class PlayerStatus {
 			
+			/** Changed field: play state, repeat and shuffle mode. */
+			public static final int CHANGED_STATE = 0x01;
+			
+			/** Changed field: volume. */
+			public static final int CHANGED_VOLUME = 0x02;
+			
+			/** Changed field: seek position. */
+			public static final int CHANGED_SEEK_POSITION = 0x04;
+			
+			/** Changed field: change flag. */
+			public static final int CHANGED_CHANGE_FLAG = 0x08;
+			
+			/** Changed field: song ID. */
+			public static final int CHANGED_SONG_ID = 0x10;
+			
+			/** All fields changed (full status). */
+			public static final int CHANGED_ALL = 0x1f;
+			
+			private static final int STATUS_SIZE = 12;
+			private static final int [] FIELD_OFFSETS = {0, 1, 2, 6, 8};
+			private static final int [] FIELD_SIZES = {1, 1, 4, 2, 4};
+			
+			
 			private static byte [] getRequest(byte [] request) {
 				return request == null || request.length != 7
 						? new byte [] {0, 0, 0, 0, 0, 0, 0} : request;
@@ -299,6 +351,70 @@ public class BansheeConnection {
 			public static long decodeSongId(byte [] response) {
 				return response.length < 12 ? -1 : decodeInt(response, 8);
 			}
+			
+			/**
+			 * Get fields which changed since the previous status of the connection.<br>
+			 * <br>
+			 * A status which was reconstructed from a delta response tells which fields were
+			 * actually sent. A plain status response reports all fields as changed.
+			 * 
+			 * @return combination of {@code CHANGED_*} flags
+			 */
+			public static int decodeChanges(byte [] response) {
+				return response.length > STATUS_SIZE ? response[STATUS_SIZE] & CHANGED_ALL
+						: CHANGED_ALL;
+			}
+			
+			/**
+			 * Apply a delta encoded status response on the previous status.<br>
+			 * <br>
+			 * Delta format is {@code [changed mask] [changed fields]} where the fields are ordered
+			 * by their mask bit and have the same encoding as in the full status.
+			 * 
+			 * @param status
+			 *            previous status of the connection ({@code null} if there's none yet)
+			 * @param delta
+			 *            delta encoded response
+			 * 
+			 * @return full status followed by the changed mask (see {@link #decodeChanges(byte[])})
+			 *         or {@code null} if delta is malformed
+			 */
+			static byte [] applyDelta(byte [] status, byte [] delta) {
+				if (delta.length == 0) {
+					return null;
+				}
+				
+				int mask = delta[0] & 0xff;
+				
+				if ((mask & ~CHANGED_ALL) != 0 || status == null && mask != CHANGED_ALL) {
+					return null;
+				}
+				
+				byte [] result = new byte [STATUS_SIZE + 1];
+				int position = 1;
+				
+				if (status != null) {
+					System.arraycopy(status, 0, result, 0, STATUS_SIZE);
+				}
+				
+				for (int i = 0; i < FIELD_OFFSETS.length; i++) {
+					if ((mask & (1 << i)) == 0) {
+						continue;
+					} else if (position + FIELD_SIZES[i] > delta.length) {
+						return null;
+					}
+					
+					System.arraycopy(delta, position, result, FIELD_OFFSETS[i], FIELD_SIZES[i]);
+					position += FIELD_SIZES[i];
+				}
+				
+				if (position != delta.length) {
+					return null;
+				}
+				
+				result[STATUS_SIZE] = (byte) mask;
+				return result;
+			}
 		}
 		
 		/**
@@ -376,7 +492,11 @@ public class BansheeConnection {
 			}
 			
 			/**
-			 * Request the database file itself.
+			 * Request the database file itself.<br>
+			 * <br>
+			 * The file is streamed to disk (see
+			 * {@link BansheeDatabase#updateDatabaseAsync(BansheeServer, int)}), the response just
+			 * holds its length (see {@link #decodeFileLength(byte[])}).
 			 */
 			public static byte [] encodeFile() {
 				return new byte [] {2};
@@ -389,6 +509,77 @@ public class BansheeConnection {
 				return new byte [] {3};
 			}
 			
+			/**
+			 * Request rows which changed since the given timestamp (see
+			 * {@link BansheeDatabase#applyDeltaAsync(BansheeServer, byte[],
+			 * BansheeDatabase.OnDeltaListener)}).
+			 */
+			public static byte [] encodeDelta(long timestamp) {
+				byte [] request = new byte [5];
+				request[0] = 6;
+				System.arraycopy(encodeInt(timestamp), 0, request, 1, 4);
+				return request;
+			}
+			
+			/**
+			 * Were we requesting changed rows?
+			 */
+			public static boolean isDelta(byte [] params) {
+				return params[0] == 6;
+			}
+			
+			/**
+			 * Does response contain changed rows (otherwise whole database has to be fetched)?
+			 */
+			public static boolean isDeltaSupported(byte [] response) {
+				return response.length >= 20;
+			}
+			
+			/**
+			 * Request size, timestamp and hash of the database file (for a chunked download).
+			 */
+			static byte [] encodeFileInfo() {
+				return new byte [] {4};
+			}
+			
+			/**
+			 * Request a chunk of the database file.
+			 * 
+			 * @param offset
+			 *            offset of chunk in file
+			 * @param length
+			 *            length of chunk
+			 * @param timestamp
+			 *            timestamp of database (chunk request fails if database changed since)
+			 */
+			static byte [] encodeChunk(long offset, int length, int timestamp) {
+				byte [] request = new byte [13];
+				request[0] = 5;
+				System.arraycopy(encodeInt(offset), 0, request, 1, 4);
+				System.arraycopy(encodeInt(length), 0, request, 5, 4);
+				System.arraycopy(encodeInt(timestamp), 0, request, 9, 4);
+				return request;
+			}
+			
+			/**
+			 * Request instructions to rebuild the database file from blocks of the local one.
+			 * 
+			 * @param blockSize
+			 *            size of blocks
+			 * @param count
+			 *            amount of blocks
+			 * @param signatures
+			 *            rolling checksum (4 bytes) and first 8 bytes of the MD5 hash of each block
+			 */
+			static byte [] encodeBlockDelta(int blockSize, int count, byte [] signatures) {
+				byte [] request = new byte [9 + signatures.length];
+				request[0] = 7;
+				System.arraycopy(encodeInt(blockSize), 0, request, 1, 4);
+				System.arraycopy(encodeInt(count), 0, request, 5, 4);
+				System.arraycopy(signatures, 0, request, 9, signatures.length);
+				return request;
+			}
+			
 			/**
 			 * Were we requesting the timestamp with these parameters?
 			 */
@@ -416,6 +607,66 @@ public class BansheeConnection {
 			public static int decodeFileTimestamp(byte [] response) {
 				return response.length < 4 ? 0 : (int) decodeInt(response, 0);
 			}
+			
+			/**
+			 * Get length of the downloaded database file.
+			 */
+			public static long decodeFileLength(byte [] response) {
+				return response.length < 4 ? 0 : decodeInt(response, 0);
+			}
+			
+			/**
+			 * Is response a file info (otherwise the server doesn't support chunked downloads or
+			 * there's no database)?
+			 */
+			static boolean isFileInfo(byte [] response) {
+				return response.length >= 24;
+			}
+			
+			/**
+			 * Get size of database file from file info.
+			 */
+			static long decodeFileInfoSize(byte [] response) {
+				return decodeInt(response, 0);
+			}
+			
+			/**
+			 * Get timestamp of database file from file info.
+			 */
+			static int decodeFileInfoTimestamp(byte [] response) {
+				return (int) decodeInt(response, 4);
+			}
+			
+			/**
+			 * Get MD5 hash of database file from file info.
+			 */
+			static byte [] decodeFileInfoHash(byte [] response) {
+				byte [] hash = new byte [16];
+				System.arraycopy(response, 8, hash, 0, 16);
+				return hash;
+			}
+			
+			/**
+			 * Get data of a chunk response.
+			 * 
+			 * @return chunk data or {@code null} if chunk request failed or checksum doesn't match
+			 */
+			static byte [] decodeChunk(byte [] response) {
+				if (response.length < 5) {
+					return null;
+				}
+				
+				Adler32 checksum = new Adler32();
+				checksum.update(response, 0, response.length - 4);
+				
+				if (checksum.getValue() != decodeInt(response, response.length - 4)) {
+					return null;
+				}
+				
+				byte [] data = new byte [response.length - 4];
+				System.arraycopy(response, 0, data, 0, data.length);
+				return data;
+			}
 		}
 		
 		/**
@@ -746,6 +997,145 @@ public class BansheeConnection {
 			}
 		}
 		
+		/**
+		 * Helper to pack several requests into a single batch request.<br>
+		 * <br>
+		 * Request parameters can be chained, every call of {@link #encode} appends a request. The
+		 * result of every packed request is reported separately to the command callback as if it
+		 * was sent on its own, the batch request itself is never reported. A batch can't contain
+		 * another batch and is limited to 255 requests.
+		 * 
+		 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+		 */
+		public static class Batch {
+			
+			/**
+			 * Append a request to the batch.
+			 * 
+			 * @param request
+			 *            batch to append to ({@code null} to start a new one)
+			 * @param command
+			 *            command of packed request
+			 * @param params
+			 *            encoded parameters of packed request
+			 */
+			public static byte [] encode(byte [] request, Command command, byte [] params) {
+				if (command == BATCH) {
+					throw new IllegalArgumentException("batch can't contain another batch");
+				}
+				
+				int count = request == null ? 0 : request[0] & 0xff;
+				int offset = request == null ? 1 : request.length;
+				int paramsLength = params == null ? 0 : params.length;
+				
+				if (count == 255) {
+					throw new IllegalArgumentException("batch is limited to 255 requests");
+				}
+				
+				byte [] result = new byte [offset + 5 + paramsLength];
+				
+				if (request != null) {
+					System.arraycopy(request, 0, result, 0, offset);
+				}
+				
+				result[0] = (byte) (count + 1);
+				result[offset] = (byte) command.mCode;
+				System.arraycopy(encodeInt(paramsLength), 0, result, offset + 1, 4);
+				
+				if (params != null) {
+					System.arraycopy(params, 0, result, offset + 5, paramsLength);
+				}
+				
+				return result;
+			}
+			
+			/**
+			 * Which commands were packed into the batch?
+			 */
+			public static Command [] getCommands(byte [] params) {
+				Command [] commands = new Command [params[0] & 0xff];
+				int position = 1;
+				
+				for (int i = 0; i < commands.length; i++) {
+					commands[i] = fromCode(params[position]);
+					position += 5 + (int) decodeInt(params, position + 1);
+				}
+				
+				return commands;
+			}
+			
+			/**
+			 * Which parameters were packed into the batch?
+			 * 
+			 * @return parameters of every packed request ({@code null} if it had none)
+			 */
+			public static byte [][] getParams(byte [] params) {
+				byte [][] packedParams = new byte [params[0] & 0xff][];
+				int position = 1;
+				
+				for (int i = 0; i < packedParams.length; i++) {
+					int length = (int) decodeInt(params, position + 1);
+					
+					if (length != 0) {
+						packedParams[i] = new byte [length];
+						System.arraycopy(params, position + 5, packedParams[i], 0, length);
+					}
+					
+					position += 5 + length;
+				}
+				
+				return packedParams;
+			}
+			
+			/**
+			 * Split the batch response into the responses of the packed requests.
+			 * 
+			 * @return response of every packed request ({@code null} if it failed)
+			 */
+			public static byte [][] decode(byte [] response, int count) {
+				byte [][] responses = new byte [count][];
+				int position = 1;
+				
+				for (int i = 0; i < Math.min(count, response[0] & 0xff); i++) {
+					if (position + 4 > response.length) {
+						break;
+					}
+					
+					int length = (int) decodeInt(response, position);
+					position += 4;
+					
+					if (length < 0 || position + length > response.length) {
+						break;
+					} else if (length != 0) {
+						responses[i] = new byte [length];
+						System.arraycopy(response, position, responses[i], 0, length);
+					}
+					
+					position += length;
+				}
+				
+				return responses;
+			}
+		}
+		
+		
+		/**
+		 * Get request code of command.
+		 */
+		int getCode() {
+			return mCode;
+		}
+		
+		private static Command fromCode(int code) {
+			for (Command command : values()) {
+				if (command.mCode == code) {
+					return command;
+				}
+			}
+			
+			throw new IllegalArgumentException("unknown command code " + code);
+		}
+		
 		private static byte [] encodeShort(int value) {
 			return new byte [] {(byte) value, (byte) (value >> 8)};
 		}
@@ -755,11 +1145,11 @@ public class BansheeConnection {
 					(byte) (value >> 24)};
 		}
 		
-		private static int decodeShort(byte [] response, int position) {
+		static int decodeShort(byte [] response, int position) {
 			return (response[position] & 0xff) + ((response[position + 1] & 0xff) << 8);
 		}
 		
-		private static long decodeInt(byte [] response, int position) {
+		static long decodeInt(byte [] response, int position) {
 			return (response[position] & 0xff)
 					+ ((response[position + 1] & 0xff) << 8)
 					+ ((response[position + 2] & 0xff) << 16)
@@ -776,7 +1166,7 @@ public class BansheeConnection {
 			return result;
 		}
 		
-		private static Object [] decodeString(byte [] response, int position) {
+		static Object [] decodeString(byte [] response, int position) {
 			int length = decodeShort(response, position);
 			String string = length < 0 ? "" : new String(response, position + 2, length);
 			
@@ -863,6 +1253,29 @@ public class BansheeConnection {
 		public void onBansheeCommandHandled(Command command, byte [] params, byte [] result);
 	}
 	
+	/**
+	 * Callback interface for download progress of large responses (database file).
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	public static interface OnBansheeDownloadProgress {
+		
+		/**
+		 * Callback for download progress (called on the UI thread).
+		 * 
+		 * @param command
+		 *            the command requested
+		 * @param params
+		 *            encoded request parameters
+		 * @param bytes
+		 *            amount of bytes which were downloaded so far
+		 * @param total
+		 *            total size of download or {@code -1} if unknown
+		 */
+		public void onBansheeDownloadProgress(Command command, byte [] params, long bytes,
+				long total);
+	}
+	
 	
 	/**
 	 * Create a connection (object) which will communicate with the banshee server.
@@ -879,7 +1292,11 @@ public class BansheeConnection {
 		
 		mServer = server;
 		mHandleCallback = handleCallback;
-		mCommandThread.start();
+		
+		for (Lane lane : Lane.values()) {
+			mLanes[lane.ordinal()] = new CommandThread(lane);
+			mLanes[lane.ordinal()].start();
+		}
 	}
 	
 	/**
@@ -892,6 +1309,16 @@ public class BansheeConnection {
 		mHandleCallback = callback;
 	}
 	
+	/**
+	 * Set callback for download progress.
+	 * 
+	 * @param callback
+	 *            download progress callback (might be {@code null})
+	 */
+	public void setDownloadProgressCallback(OnBansheeDownloadProgress callback) {
+		mDownloadCallback = callback;
+	}
+	
 	/**
 	 * Get current command handler.
 	 * 
@@ -934,57 +1361,100 @@ public class BansheeConnection {
 			return;
 		}
 		
-		synchronized (mCommandQueue) {
-			if (!mCommandThread.run) {
+		CommandThread lane = mLanes[command.mLane.ordinal()];
+		Object coalescingKey = null;
+		long deadline = 0;
+		
+		if (command == Command.COVER) {
+			coalescingKey = Command.Cover.getId(params);
+		} else if (updatePendingRequest) {
+			coalescingKey = command;
+		}
+		
+		// plain queries can be dropped if they are waiting too long, their result is outdated anyway
+		if (command.mStaleTimeout > 0 && (params == null || command == Command.COVER)) {
+			deadline = System.currentTimeMillis() + command.mStaleTimeout;
+		}
+		
+		synchronized (lane.mScheduler) {
+			if (!mRunning) {
 				return;
 			}
 			
-			boolean commandUpdated = false;
-			
-			if (updatePendingRequest) {
-				for (CommandQueue q : mCommandQueue) {
-					if (q.command == command) {
-						commandUpdated = true;
-						q.params = params;
-						break;
-					}
-				}
-			}
-			
-			if (!commandUpdated) {
-				int i = 0;
-				
-				// cover commands has less priority
-				if (command != Command.COVER) {
-					for (CommandQueue q : mCommandQueue) {
-						if (q.command != Command.COVER) {
-							break;
-						}
-						
-						i++;
-					}
-				} else {
-					String coverId = Command.Cover.getId(params);
-					
-					if (mPendingCoverRequests.contains(coverId)) {
+			if (command == Command.COVER) {
+				synchronized (mPendingCoverRequests) {
+					if (!mPendingCoverRequests.add((String) coalescingKey)) {
 						return;
-					} else {
-						mPendingCoverRequests.add(coverId);
 					}
 				}
-				
-				CommandQueue queue = new CommandQueue();
-				queue.command = command;
-				queue.params = params;
-				mCommandQueue.add(i, queue);
+			} else if (params == null && coalescingKey != null
+					&& lane.mScheduler.get(command, coalescingKey) != null) {
+				// pending request will deliver the same result, don't overwrite its parameters
+				return;
 			}
+			
+			lane.mScheduler.add(command, params, command.mPriority, coalescingKey, deadline);
 		}
 		
-		synchronized (mCommandThread) {
-			mCommandThread.interrupt();
+		synchronized (lane) {
+			lane.interrupt();
 		}
 	}
 	
+	/**
+	 * Enable or disable the player status subscription.<br>
+	 * <br>
+	 * If enabled a separate connection is kept open on which the server pushes the player status
+	 * whenever it changes (play state, volume, seek position jump or track change). Pushed
+	 * status is reported to the command callback like a {@link Command#PLAYER_STATUS} response
+	 * without parameters. The subscription reconnects automatically if the connection drops.
+	 * Check {@link #isStatusSubscribed()} to decide whether polling is still needed.
+	 * 
+	 * @param enabled
+	 *            {@code true} to subscribe, {@code false} to close the subscription
+	 */
+	public synchronized void setStatusSubscription(boolean enabled) {
+		if (enabled && mStatusThread == null && mRunning && mStatusSubscriptionSupported) {
+			mStatusThread = new StatusThread();
+			mStatusThread.start();
+		} else if (!enabled && mStatusThread != null) {
+			mStatusThread.close();
+			mStatusThread = null;
+		}
+	}
+	
+	/**
+	 * Is the player status currently pushed by the server?
+	 * 
+	 * @return {@code true} if subscription is active, {@code false} if status has to be polled
+	 */
+	public boolean isStatusSubscribed() {
+		StatusThread statusThread = mStatusThread;
+		return statusThread != null && statusThread.mSubscribed;
+	}
+	
+	/**
+	 * Get measured round trip time of player status requests.
+	 * 
+	 * @return smoothed round trip time in milliseconds or {@code -1} if there was no successful
+	 *         request yet
+	 */
+	public long getRoundTripTime() {
+		return mRoundTripTime;
+	}
+	
+	/**
+	 * Get bytes which were saved by compressed responses of a command.
+	 * 
+	 * @param command
+	 *            command
+	 * 
+	 * @return difference between inflated and received size of all compressed responses
+	 */
+	public long getBytesSaved(Command command) {
+		return mCompressionStats.getBytesSaved(command.mCode);
+	}
+	
 	/**
 	 * Get banshee server of connection.
 	 * 
@@ -995,11 +1465,11 @@ public class BansheeConnection {
 	}
 	
 	/**
-	 * Stop background request thread.
+	 * Stop background request threads.
 	 */
 	public void close() {
-		mCommandThread.run = false;
-		mCommandThread.interrupt();
+		stopLanes();
+		setStatusSubscription(false);
 	}
 	
 	
@@ -1026,13 +1496,20 @@ public class BansheeConnection {
 	 */
 	@Override
 	protected void finalize() {
-		mCommandThread.run = false;
+		mRunning = false;
 	}
 	
-	// PRIVATE ====================================================================================
+	// PACKAGE ====================================================================================
 	
 	/**
-	 * Send request to server and get the response.
+	 * Send a one-shot request to server and get the response.<br>
+	 * <br>
+	 * A new connection is opened for the request and closed after the response was read. This is
+	 * the fallback of {@link BansheeTransport} for servers which don't support a persistent
+	 * connection. Requests are not serialized, so they can be sent from several threads at once.<br>
+	 * <br>
+	 * The response length is not known up front (it's terminated by the end of the stream), so
+	 * prefer the framed connection for large responses.
 	 * 
 	 * @param server
 	 *            banshee server to which the request will be sent
@@ -1045,24 +1522,13 @@ public class BansheeConnection {
 	 * 
 	 * @return response as byte array
 	 */
-	private synchronized static byte [] sendRequest(BansheeServer server, int requestCode,
+	static byte [] sendRequest(BansheeServer server, int requestCode,
 			byte [] params, int timeout) {
 		byte [] result = null;
-		byte [] request;
+		byte [] request = encodeRequest(server, requestCode, params);
 		Socket socket = null;
 		OutputStream os = null;
 		InputStream is = null;
-		int read = -1;
-		
-		if (params == null) {
-			request = new byte [3];
-		} else {
-			request = new byte [3 + params.length];
-			System.arraycopy(params, 0, request, 3, params.length);
-		}
-		
-		request[0] = (byte) (requestCode);
-		System.arraycopy(Command.encodeShort(server.getPasswordId()), 0, request, 1, 2);
 		
 		try {
 			socket = new Socket(server.getHost(), server.getPort());
@@ -1070,14 +1536,7 @@ public class BansheeConnection {
 			os = socket.getOutputStream();
 			is = socket.getInputStream();
 			os.write(request, 0, request.length);
-			
-			mByteOutputStream.reset();
-			
-			while ((read = is.read(mBuffer, 0, mBuffer.length)) != -1) {
-				mByteOutputStream.write(mBuffer, 0, read);
-			}
-			
-			result = mByteOutputStream.toByteArray();
+			result = BansheeTransport.readToEnd(is);
 		} catch (UnknownHostException e) {
 		} catch (IOException e) {
 		} finally {
@@ -1100,37 +1559,99 @@ public class BansheeConnection {
 		return result;
 	}
 	
+	/**
+	 * Encode a one-shot request.
+	 * 
+	 * @param server
+	 *            banshee server to which the request will be sent
+	 * @param requestCode
+	 *            request code is taken from {@link Command} constant
+	 * @param params
+	 *            encoded parameters
+	 * 
+	 * @return request code, password ID and parameters
+	 */
+	static byte [] encodeRequest(BansheeServer server, int requestCode, byte [] params) {
+		byte [] request;
+		
+		if (params == null) {
+			request = new byte [3];
+		} else {
+			request = new byte [3 + params.length];
+			System.arraycopy(params, 0, request, 3, params.length);
+		}
+		
+		request[0] = (byte) (requestCode);
+		System.arraycopy(Command.encodeShort(server.getPasswordId()), 0, request, 1, 2);
+		
+		return request;
+	}
+	
+	// PRIVATE ====================================================================================
 	
 	/**
-	 * Object which represents a pending request.
+	 * Request lanes of a connection.<br>
+	 * <br>
+	 * Every lane has its own request thread, queue and transport (connection to the server). So a
+	 * long running transfer of one lane won't block the commands of another one.
 	 * 
 	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
 	 */
-	private static class CommandQueue {
-		public Command command;
-		public byte [] params;
+	private static enum Lane {
+		/** Status polling and song info (reserved for responsive control traffic). */
+		INTERACTIVE,
+		/** Cover downloads. */
+		COVER,
+		/** Database synchronization and playlist requests. */
+		BULK
+	}
+	
+	
+	/**
+	 * Stop all request threads and drop their pending requests.
+	 */
+	private void stopLanes() {
+		mRunning = false;
+		
+		synchronized (this) {
+			if (mStatusThread != null) {
+				mStatusThread.close();
+				mStatusThread = null;
+			}
+		}
+		
+		for (CommandThread lane : mLanes) {
+			synchronized (lane.mScheduler) {
+				lane.mScheduler.clear();
+			}
+			
+			lane.mTransport.close();
+			lane.interrupt();
+		}
 	}
 	
-	private void logRequest(CommandQueue queue, boolean success, byte [] response) {
+	
+	private void logRequest(Command command, byte [] params, boolean success,
+			byte [] response) {
 		if (success && L.isV() || !success && L.isW()) {
 			StringBuilder s = new StringBuilder();
 			s.append(success ? "Success " : "Fail ");
-			s.append(queue.command.toString());
+			s.append(command.toString());
 			s.append(" (pass ");
 			s.append(mServer.getPasswordId());
 			s.append(")");
 			
-			if (queue.params == null) {
+			if (params == null) {
 				s.append(" no parameters");
 			} else {
 				s.append(" [ ");
 				
-				for (int i = 0; i < Math.min(queue.params.length, 20); i++) {
-					s.append(Integer.toHexString(queue.params[i] & 0xff));
+				for (int i = 0; i < Math.min(params.length, 20); i++) {
+					s.append(Integer.toHexString(params[i] & 0xff));
 					s.append(" ");
 				}
 				
-				if (queue.params.length > 20) {
+				if (params.length > 20) {
 					s.append("... ");
 				}
 				
@@ -1162,28 +1683,30 @@ public class BansheeConnection {
 	
 	
 	/**
-	 * Thread which takes request from queue and delegates the response to the connection callback.
+	 * Thread which takes request from queue of a lane and delegates the response to the
+	 * connection callback.
 	 * 
 	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
 	 */
 	private class CommandThread extends Thread {
 		
-		public volatile boolean run = true;
+		private final CommandScheduler mScheduler = new CommandScheduler(PRIORITIES);
+		private final BansheeTransport mTransport = new BansheeTransport(mServer,
+				mCompressionStats);
+		private final List<Entry> mExpired = new ArrayList<Entry>();
+		private boolean mFailCounted;
 		
 		
+		public CommandThread(Lane lane) {
+			super("BansheeConnection " + lane.toString().toLowerCase());
+		}
+		
 		@Override
 		public void run() {
-			while (run) {
-				CommandQueue queue = null;
+			while (mRunning) {
+				List<Entry> pipeline = pollPipeline();
 				
-				synchronized (mCommandQueue) {
-					try {
-						queue = mCommandQueue.removeLast();
-					} catch (NoSuchElementException e) {
-					}
-				}
-				
-				if (queue == null) {
+				if (pipeline.isEmpty()) {
 					try {
 						synchronized (this) {
 							wait();
@@ -1191,42 +1714,299 @@ public class BansheeConnection {
 					} catch (InterruptedException e) {
 					}
 				} else {
-					byte [] result = sendRequest(mServer, queue.command.mCode, queue.params,
-							NetworkStateBroadcast.isMobileConnected()
-								? queue.command.mTimeoutWifi : queue.command.mTimeoutMobile);
+					sendPipeline(pipeline);
+				}
+			}
+			
+			mTransport.close();
+		}
+		
+		/**
+		 * Take next requests from scheduler.<br>
+		 * <br>
+		 * Up to {@link App#getPipelineWindow()} requests are taken if the transport has a framed
+		 * connection, otherwise only one.
+		 */
+		private List<Entry> pollPipeline() {
+			int window = mTransport.isFramed() ? Math.max(1, App.getPipelineWindow()) : 1;
+			List<Entry> pipeline = new ArrayList<Entry>(window);
+			
+			synchronized (mScheduler) {
+				long now = System.currentTimeMillis();
+				Entry entry;
+				
+				while (pipeline.size() < window
+						&& (entry = mScheduler.poll(now, mExpired)) != null) {
+					pipeline.add(entry);
+				}
+			}
+			
+			for (Entry expired : mExpired) {
+				L.d("dropped stale " + expired.command.toString() + " request");
+				
+				if (expired.command == Command.COVER) {
+					synchronized (mPendingCoverRequests) {
+						mPendingCoverRequests.remove(Command.Cover.getId(expired.params));
+					}
+				}
+			}
+			
+			mExpired.clear();
+			
+			return pipeline;
+		}
+		
+		/**
+		 * Send requests at once and handle their results.<br>
+		 * <br>
+		 * Batch requests are unpacked and sent as single requests if the server doesn't support
+		 * them.
+		 */
+		private void sendPipeline(List<Entry> pipeline) {
+			for (Iterator<Entry> i = pipeline.iterator(); i.hasNext();) {
+				Entry queue = i.next();
+				
+				if (queue.command == Command.SYNC_DATABASE
+						&& Command.SyncDatabase.isFileRequest(queue.params)) {
+					i.remove();
+					sendDownload(queue);
+				}
+			}
+			
+			if (pipeline.isEmpty()) {
+				return;
+			}
+			
+			boolean unpackBatch = false;
+			
+			for (Entry queue : pipeline) {
+				if (queue.command == Command.BATCH) {
+					unpackBatch = (mTransport.getServerFlags() & BansheeTransport.FLAG_BATCH) == 0;
+					break;
+				}
+			}
+			
+			List<Command> commands = new ArrayList<Command>();
+			List<byte []> params = new ArrayList<byte []>();
+			
+			for (Entry queue : pipeline) {
+				if (unpackBatch && queue.command == Command.BATCH) {
+					commands.addAll(Arrays.asList(Command.Batch.getCommands(queue.params)));
+					params.addAll(Arrays.asList(Command.Batch.getParams(queue.params)));
+				} else {
+					commands.add(queue.command);
+					params.add(queue.params);
+				}
+			}
+			
+			int count = commands.size();
+			int [] requestCodes = new int [count];
+			int timeout = 0;
+			
+			for (int i = 0; i < count; i++) {
+				Command command = commands.get(i);
+				requestCodes[i] = command.mCode;
+				timeout = Math.max(timeout, NetworkStateBroadcast.isMobileConnected()
+						? command.mTimeoutMobile : command.mTimeoutWifi);
+			}
+			
+			long start = System.currentTimeMillis();
+			byte [][] results = mTransport.request(requestCodes,
+					params.toArray(new byte [count][]), timeout);
+			int index = 0;
+			
+			if (commands.contains(Command.PLAYER_STATUS)) {
+				updateRoundTripTime(System.currentTimeMillis() - start, results);
+			}
+			
+			// a broken pipeline should count as a single fail only
+			mFailCounted = false;
+			
+			for (Entry queue : pipeline) {
+				if (queue.command != Command.BATCH) {
+					handleResult(queue.command, queue.params, results[index++]);
+					continue;
+				}
+				
+				Command [] packedCommands = Command.Batch.getCommands(queue.params);
+				byte [][] packedParams = Command.Batch.getParams(queue.params);
+				byte [][] packedResults;
+				
+				if (unpackBatch) {
+					packedResults = new byte [packedCommands.length][];
+					System.arraycopy(results, index, packedResults, 0, packedResults.length);
+					index += packedResults.length;
+				} else {
+					byte [] result = results[index++];
+					logRequest(queue.command, queue.params, result != null && result.length != 0,
+							result);
+					packedResults = result == null || result.length == 0
+							? new byte [packedCommands.length][]
+							: Command.Batch.decode(result, packedCommands.length);
+				}
+				
+				for (int i = 0; i < packedCommands.length; i++) {
+					handleResult(packedCommands[i], packedParams[i], packedResults[i]);
+				}
+			}
+		}
+		
+		/**
+		 * Download database file to disk and report its length as result.<br>
+		 * <br>
+		 * The file is downloaded in verified chunks if the server supports it, so an interrupted
+		 * download is resumed by the next request (see {@link DatabaseDownload}). Otherwise it's
+		 * streamed as a whole. The file is synced to disk before it's reported, so it can be
+		 * renamed to the database right away.
+		 */
+		private void sendDownload(final Entry entry) {
+			File file = BansheeDatabase.getDownloadFile(mServer);
+			FileOutputStream output = null;
+			long length = -1;
+			int timeout = NetworkStateBroadcast.isMobileConnected()
+					? entry.command.mTimeoutMobile : entry.command.mTimeoutWifi;
+			BansheeTransport.ProgressListener listener = new BansheeTransport.ProgressListener() {
+				private long mLastPost = 0;
+				
+				@Override
+				public void onProgress(final long bytes, final long total) {
+					long now = System.currentTimeMillis();
 					
-					if (result == null || result.length == 0) {
-						handleFail(queue);
-					} else {
-						handleSuccess(queue, result);
+					if (now - mLastPost >= DOWNLOAD_PROGRESS_INTERVAL || bytes == total) {
+						mLastPost = now;
+						postDownloadProgress(entry, bytes, total);
 					}
+				}
+			};
+			
+			// prefer a resumable chunked download if server supports it
+			byte [] info = mTransport.request(entry.command.mCode,
+					Command.SyncDatabase.encodeFileInfo(), timeout);
+			
+			if (info != null && Command.SyncDatabase.isFileInfo(info)) {
+				File basis = BansheeDatabase.getDatabaseFile(mServer);
+				
+				// rebuilding from the local database transfers changed blocks only
+				if (basis.exists() && mTransport.isFramedSupported()
+						&& !DatabaseDownload.isPending(file)) {
+					length = new BlockSync(mTransport, basis, file).sync(entry.command.mCode,
+							timeout, listener);
 					
-					if (queue.command == Command.COVER && result == null) {
-						mPendingCoverRequests.remove(Command.Cover.getId(queue.params));
+					if (length > 1) {
+						mFailCounted = false;
+						handleResult(entry.command, entry.params, Command.encodeInt(length));
+						return;
 					}
 				}
+				
+				int window = mTransport.isFramed() ? Math.max(1, App.getPipelineWindow()) : 1;
+				length = new DatabaseDownload(mTransport, file).download(entry.command.mCode, info,
+						timeout, window, listener);
+				
+				mFailCounted = false;
+				handleResult(entry.command, entry.params,
+						length < 2 ? null : Command.encodeInt(length));
+				return;
+			}
+			
+			DatabaseDownload.discard(file);
+			
+			try {
+				file.getParentFile().mkdirs();
+				output = new FileOutputStream(file);
+				length = mTransport.download(entry.command.mCode, entry.params, timeout, output,
+						listener);
+				
+				if (length >= 0) {
+					output.flush();
+					output.getFD().sync();
+				}
+			} catch (IOException e) {
+				length = -1;
+			} finally {
+				try {
+					output.close();
+				} catch (Exception e) {
+				}
 			}
+			
+			if (length < 2) {
+				// no database (or download failed)
+				file.delete();
+			}
+			
+			mFailCounted = false;
+			handleResult(entry.command, entry.params,
+					length < 2 ? null : Command.encodeInt(length));
 		}
 		
-		private void handleFail(final CommandQueue queue) {
-			logRequest(queue, false, null);
-			
+		private void postDownloadProgress(final Entry entry, final long bytes, final long total) {
 			mCommandHandler.post(new Runnable() {
 				@Override
 				public void run() {
-					mHandleCallback.onBansheeCommandHandled(
-							queue.command, queue.params, null);
+					OnBansheeDownloadProgress callback = mDownloadCallback;
+					
+					if (callback != null) {
+						callback.onBansheeDownloadProgress(entry.command, entry.params, bytes,
+								total);
+					}
 				}
 			});
+		}
+		
+		private void updateRoundTripTime(long sample, byte [][] results) {
+			for (byte [] result : results) {
+				if (result == null || result.length == 0) {
+					// a failed request says nothing about the round trip time
+					return;
+				}
+			}
 			
-			mFailCount++;
+			long roundTripTime = mRoundTripTime;
+			mRoundTripTime = roundTripTime < 0 ? sample
+					: roundTripTime + (sample - roundTripTime) / ROUND_TRIP_SMOOTHING;
+		}
+		
+		private void handleResult(Command command, byte [] params, byte [] result) {
+			if (result == null || result.length == 0) {
+				handleFail(command, params, !mFailCounted);
+				mFailCounted = true;
+			} else {
+				handleSuccess(command, params, result);
+			}
 			
-			if (mFailCount >= MAX_FAIL_COMMANDS) {
-				synchronized (mCommandQueue) {
-					run = false;
-					mCommandQueue.clear();
+			if (command == Command.COVER && result == null) {
+				synchronized (mPendingCoverRequests) {
+					mPendingCoverRequests.remove(Command.Cover.getId(params));
 				}
+			}
+		}
+		
+		private void handleFail(final Command command, final byte [] params, boolean countFail) {
+			logRequest(command, params, false, null);
+			
+			mCommandHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					mHandleCallback.onBansheeCommandHandled(command, params, null);
+				}
+			});
+			
+			if (!countFail) {
+				return;
+			}
+			
+			boolean failed;
+			
+			synchronized (BansheeConnection.this) {
+				failed = mRunning && ++mFailCount >= MAX_FAIL_COMMANDS;
 				
+				if (failed) {
+					stopLanes();
+				}
+			}
+			
+			if (failed) {
 				mCommandHandler.post(new Runnable() {
 					@Override
 					public void run() {
@@ -1236,25 +2016,112 @@ public class BansheeConnection {
 			}
 		}
 		
-		private void handleSuccess(final CommandQueue queue, final byte [] result) {
-			logRequest(queue, true, result);
+		private void handleSuccess(final Command command, final byte [] params,
+				final byte [] result) {
+			logRequest(command, params, true, result);
 			
-			if (queue.command == Command.COVER && result != null && result.length > 2) {
-				CoverCache.addCover(Command.Cover.getId(queue.params), result);
+			if (command == Command.COVER && result != null && result.length > 2) {
+				CoverCache.addCover(Command.Cover.getId(params), result);
 			}
 			
-			mFailCount = 0;
+			synchronized (BansheeConnection.this) {
+				mFailCount = 0;
+			}
 			
 			mCommandHandler.post(new Runnable() {
 				@Override
 				public void run() {
 					// this is happening in some cases (bug report)
 					if (mHandleCallback != null) {
-						mHandleCallback.onBansheeCommandHandled(
-								queue.command, queue.params, result);
+						mHandleCallback.onBansheeCommandHandled(command, params, result);
 					}
 				}
 			});
 		}
 	}
+	
+	
+	/**
+	 * Thread which keeps the player status subscription open and delegates the pushed status to
+	 * the connection callback.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	private class StatusThread extends Thread {
+		
+		private final BansheeTransport mTransport = new BansheeTransport(mServer,
+				mCompressionStats);
+		private volatile boolean mClosed = false;
+		private volatile boolean mSubscribed = false;
+		
+		
+		public StatusThread() {
+			super("BansheeConnection status");
+		}
+		
+		public void close() {
+			mClosed = true;
+			mTransport.close();
+			interrupt();
+		}
+		
+		@Override
+		public void run() {
+			int retryDelay = MIN_SUBSCRIPTION_RETRY;
+			
+			while (mRunning && !mClosed) {
+				int flags = mTransport.getServerFlags();
+				boolean pushing = (flags & BansheeTransport.FLAG_STATUS_SUBSCRIPTION) != 0;
+				
+				if (!mTransport.isFramedSupported() || mTransport.isFramed() && !pushing) {
+					// server doesn't push, status will be polled
+					L.d("player status subscription not supported by server");
+					mStatusSubscriptionSupported = false;
+					break;
+				}
+				
+				try {
+					mTransport.openStream(STATUS_SUBSCRIPTION_CODE, null);
+					
+					while (mRunning && !mClosed) {
+						final byte [] status = mTransport.readStream(STATUS_HEARTBEAT_TIMEOUT);
+						
+						if (status.length == 0) {
+							mStatusSubscriptionSupported = false;
+							throw new IOException("subscription rejected");
+						}
+						
+						mSubscribed = true;
+						retryDelay = MIN_SUBSCRIPTION_RETRY;
+						
+						mCommandHandler.post(new Runnable() {
+							@Override
+							public void run() {
+								if (mHandleCallback != null && !mClosed) {
+									mHandleCallback.onBansheeCommandHandled(
+											Command.PLAYER_STATUS, null, status);
+								}
+							}
+						});
+					}
+				} catch (IOException e) {
+					mSubscribed = false;
+				}
+				
+				if (!mStatusSubscriptionSupported) {
+					break;
+				}
+				
+				try {
+					Thread.sleep(retryDelay);
+				} catch (InterruptedException e) {
+				}
+				
+				retryDelay = Math.min(retryDelay * 2, MAX_SUBSCRIPTION_RETRY);
+			}
+			
+			mSubscribed = false;
+			mTransport.close();
+		}
+	}
 }
@@ -1,23 +1,43 @@
 package de.viktorreiser.bansheeremote.data;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
 import de.viktorreiser.bansheeremote.R;
+import de.viktorreiser.bansheeremote.data.BansheeConnection.Command;
+import de.viktorreiser.toolbox.util.L;
+import de.viktorreiser.toolbox.util.LongHashMap;
 
 /**
- * This class handles the synchronized banshee database(s).
+ * This class handles the synchronized banshee database(s).<br>
+ * <br>
+ * A new database can be persisted in background ({@link #updateDatabaseAsync(BansheeServer, int)})
+ * while the current one (and its memory cache) stays available. The new database is swapped in on
+ * the main thread once it's completely loaded, so readers on the main thread never see a state
+ * without a database.<br>
+ * <br>
+ * The open database and its memory cache are held by an immutable {@link Library} which is
+ * replaced as a whole (see {@link #getLibrary()}).
  * 
  * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
  */
@@ -25,83 +45,180 @@ public class BansheeDatabase {
 	
 	// PRIVATE ====================================================================================
 	
-	private static SQLiteDatabase mBansheeDatabase;
-	private static BansheeServer mServer;
+	private static final AtomicReference<Library> mLibrary =
+			new AtomicReference<Library>(Library.CLOSED);
+	private static final Map<SQLiteDatabase, Integer> mAcquired =
+			new HashMap<SQLiteDatabase, Integer>();
 	
-	private static Set<Track> mOrderedTrackInfo = null;
-	private static Map<Long, Track> mTrackInfo = null;
-	private static Set<Album> mOrderedAlbumInfo = null;
-	private static Map<Long, Album> mAlbumInfo = null;
-	private static Set<Artist> mOrderedArtistInfo = null;
-	private static Map<Long, Artist> mArtistInfo = null;
+	private static final Comparator<Album> ALBUM_ORDER = new Comparator<Album>() {
+		@Override
+		public int compare(Album lhs, Album rhs) {
+			return lhs.sortKey.compareTo(rhs.sortKey);
+		}
+	};
+	private static final Comparator<Artist> ARTIST_ORDER = new Comparator<Artist>() {
+		@Override
+		public int compare(Artist lhs, Artist rhs) {
+			return lhs.sortKey.compareTo(rhs.sortKey);
+		}
+	};
+	
+	private static final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private static final List<OnDatabaseUpdateListener> mUpdateListeners =
+			new ArrayList<OnDatabaseUpdateListener>();
+	private static int mGeneration = 0;
+	private static boolean mUpdating = false;
+	
+	private static final int CACHE_LOADS = 3;
+	private static ExecutorService mCacheLoader;
+	private static final List<OnDbCacheListener> mCacheListeners =
+			new ArrayList<OnDbCacheListener>();
+	private static int mCacheGeneration = 0;
+	private static boolean mCacheLoading = false;
+	
+	private static Album mUncachedAlbum;
+	private static Artist mUncachedArtist;
+	private static int mUncachedGeneration;
+	
+	private static final int INDEX_VERSION = 1;
+	private static final Object mIndexLock = new Object();
 	
 	// PUBLIC =====================================================================================
 	
 	/**
-	 * Track information returned by database requests.
+	 * Listener for databases which were persisted in background.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	public static interface OnDatabaseUpdateListener {
+		
+		/**
+		 * Called on the main thread after a database update has finished.
+		 * 
+		 * @param server
+		 *            banshee server for which the database was updated
+		 * @param success
+		 *            {@code true} if the new database is persisted (and open if no other database
+		 *            was opened in the meantime)
+		 */
+		void onDatabaseUpdated(BansheeServer server, boolean success);
+	}
+	
+	/**
+	 * Listener for a delta which is applied in background.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	public static interface OnDeltaListener {
+		
+		/**
+		 * Called on the main thread after the delta was applied.
+		 * 
+		 * @param server
+		 *            banshee server for which the delta was applied
+		 * @param changes
+		 *            amount of changed rows or {@code -1} if delta couldn't be applied (whole
+		 *            database should be fetched then)
+		 */
+		void onDeltaApplied(BansheeServer server, int changes);
+	}
+	
+	/**
+	 * Listener for a memory cache which is set up in background.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	public static interface OnDbCacheListener {
+		
+		/**
+		 * Called on the main thread when a part of the cache was loaded.
+		 * 
+		 * @param loaded
+		 *            amount of loaded parts
+		 * @param total
+		 *            amount of parts
+		 */
+		void onDbCacheProgress(int loaded, int total);
+		
+		/**
+		 * Called on the main thread when the cache setup has finished.
+		 * 
+		 * @param success
+		 *            {@code true} if the cache is set up (otherwise the database was closed in the
+		 *            meantime or couldn't be read)
+		 */
+		void onDbCacheReady(boolean success);
+	}
+	
+	/**
+	 * Track information returned by database requests.<br>
+	 * <br>
+	 * A track is just a light view on a row of the column based track storage, so it's cheap to
+	 * create one on demand.
 	 * 
 	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
 	 */
 	public static class Track {
 		
 		private static Track createUnknown() {
-			Track i = new Track();
-			i.title = App.getContext().getString(R.string.unknown_track);
-			i.genre = "";
-			return i;
+			TrackStore.Builder b = new TrackStore.Builder(1);
+			b.add(0, 0, 0, App.getContext().getString(R.string.unknown_track), 0, 0, (short) 0,
+					"", (byte) 0);
+			return new Track(b.build(), 0, null);
 		}
 		
-		private long id;
-		private long artistId;
-		private long albumId;
-		private String title;
-		private int trackNumber;
-		private int duration;
-		private short year;
-		private String genre;
-		private byte rating;
+		private final TrackStore store;
+		private final int row;
+		private final DbCache cache;
 		private Album album;
 		private Artist artist;
 		
+		private Track(TrackStore store, int row, DbCache cache) {
+			this.store = store;
+			this.row = row;
+			this.cache = cache;
+		}
+		
 		public long getId() {
-			return id;
+			return store.ids[row];
 		}
 		
 		public long getArtistId() {
-			return artistId;
+			return store.artistIds[row];
 		}
 		
 		public long getAlbumId() {
-			return albumId;
+			return store.albumIds[row];
 		}
 		
 		public String getTitle() {
-			return title;
+			return store.getTitle(row);
 		}
 		
 		public int getTrackNumber() {
-			return trackNumber;
+			return store.trackNumbers[row];
 		}
 		
 		public int getDuration() {
-			return duration;
+			return store.durations[row];
 		}
 		
 		public short getYear() {
-			return year;
+			return store.years[row];
 		}
 		
 		public String getGenre() {
-			return genre;
+			return store.getGenre(row);
 		}
 		
 		public byte getRating() {
-			return rating;
+			return store.ratings[row];
 		}
 		
 		public Album getAlbum() {
 			if (album == null) {
-				album = BansheeDatabase.getAlbum(albumId);
+				// uncached tracks get their album on creation
+				album = cache != null ? cache.getAlbum(getAlbumId()) : Album.createUnknown();
 			}
 			
 			return album;
@@ -109,7 +226,7 @@ public class BansheeDatabase {
 		
 		public Artist getArtist() {
 			if (artist == null) {
-				artist = BansheeDatabase.getArtist(artistId);
+				artist = cache != null ? cache.getArtist(getArtistId()) : Artist.createUnknown();
 			}
 			
 			return artist;
@@ -136,6 +253,20 @@ public class BansheeDatabase {
 		private String artId;
 		private int trackCount;
 		private Artist artist;
+		private String sortKey;
+		
+		/**
+		 * Copy of album without counts and resolved artist (which are set again by a new cache).
+		 */
+		private Album copy() {
+			Album i = new Album();
+			i.id = id;
+			i.artistId = artistId;
+			i.title = title;
+			i.artId = artId;
+			i.sortKey = sortKey;
+			return i;
+		}
 		
 		public long getId() {
 			return id;
@@ -159,7 +290,8 @@ public class BansheeDatabase {
 		
 		public Artist getArtist() {
 			if (artist == null) {
-				artist = BansheeDatabase.getArtist(artistId);
+				// artist is resolved by the cache or query which created the album
+				artist = Artist.createUnknown();
 			}
 			
 			return artist;
@@ -183,6 +315,18 @@ public class BansheeDatabase {
 		private String name;
 		private int trackCount;
 		private int albumCount;
+		private String sortKey;
+		
+		/**
+		 * Copy of artist without counts (which are set again by a new cache).
+		 */
+		private Artist copy() {
+			Artist i = new Artist();
+			i.id = id;
+			i.name = name;
+			i.sortKey = sortKey;
+			return i;
+		}
 		
 		public long getId() {
 			return id;
@@ -201,6 +345,271 @@ public class BansheeDatabase {
 		}
 	}
 	
+	/**
+	 * Immutable state of the library (open database and its memory cache).<br>
+	 * <br>
+	 * A library is never modified. Opening, closing, synchronizing or loading the memory cache
+	 * creates a new library which replaces the current one with a single atomic swap. A reader
+	 * which pins a library (e.g. for the life of an adapter) gets consistent results from it
+	 * without any locking, whatever happens to the current library in the meantime. Tracks
+	 * returned by a library resolve their album and artist in the same library.<br>
+	 * <br>
+	 * A pinned library has to be acquired with {@link #acquire()}, otherwise its database is
+	 * closed as soon as it's replaced. Don't forget to {@link #release()} it when you're done.
+	 * <br>
+	 * Cached requests of a library return {@code null} if its memory cache isn't set up (see
+	 * {@link BansheeDatabase#setupDbCacheAsync(OnDbCacheListener)}).
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	public static final class Library {
+		
+		private static final Library CLOSED = new Library(null, null, null, false);
+		
+		private final SQLiteDatabase mDatabase;
+		private final BansheeServer mServer;
+		private final DbCache mCache;
+		private final boolean mIndexed;
+		
+		
+		private Library(SQLiteDatabase database, BansheeServer server, DbCache cache,
+				boolean indexed) {
+			mDatabase = database;
+			mServer = server;
+			mCache = cache;
+			mIndexed = indexed;
+		}
+		
+		/**
+		 * Was a database open for this library?
+		 */
+		public boolean isOpen() {
+			return mDatabase != null;
+		}
+		
+		/**
+		 * Keep database of this library open until {@link #release()} is called (even if the
+		 * library is replaced or closed meanwhile).
+		 * 
+		 * @return this library
+		 */
+		public Library acquire() {
+			if (isOpen()) {
+				synchronized (mAcquired) {
+					Integer count = mAcquired.get(mDatabase);
+					mAcquired.put(mDatabase, count == null ? 1 : count + 1);
+				}
+			}
+			
+			return this;
+		}
+		
+		/**
+		 * Release library which was acquired with {@link #acquire()}.<br>
+		 * <br>
+		 * Its database is closed if it isn't used by the current library and no other reader has
+		 * acquired it. Don't use the library afterwards.
+		 */
+		public void release() {
+			if (!isOpen()) {
+				return;
+			}
+			
+			synchronized (mAcquired) {
+				Integer count = mAcquired.get(mDatabase);
+				
+				if (count == null) {
+					return;
+				} else if (count > 1) {
+					mAcquired.put(mDatabase, count - 1);
+					return;
+				}
+				
+				mAcquired.remove(mDatabase);
+				
+				if (mLibrary.get().mDatabase != mDatabase && mDatabase.isOpen()) {
+					mDatabase.close();
+				}
+			}
+		}
+		
+		/**
+		 * Get database of this library (acquire the library while it's used in background).
+		 */
+		SQLiteDatabase getDatabase() {
+			return mDatabase;
+		}
+		
+		/**
+		 * Is memory cache of this library set up?
+		 */
+		public boolean isDbCacheReady() {
+			return mCache != null;
+		}
+		
+		/**
+		 * Get the banshee server which was given to open the database.
+		 */
+		public BansheeServer getServer() {
+			return mServer;
+		}
+		
+		/**
+		 * Get all tracks ordered ascending by track title.
+		 */
+		public Track [] getOrderedTracks() {
+			return mCache == null ? null : mCache.getTracks(mCache.mOrderedTracks);
+		}
+		
+		/**
+		 * Get tracks of an album ordered by their track numbers (empty for an invalid ID).
+		 */
+		public Track [] getOrderedTracksOfAlbum(long id) {
+			return mCache == null ? null : mCache.getTracks(mCache.mAlbumTracks.get(id));
+		}
+		
+		/**
+		 * Get all tracks of an artist ordered ascending by track title (empty for an invalid ID).
+		 */
+		public Track [] getOrderedTracksOfArtist(long id) {
+			return mCache == null ? null : mCache.getTracks(mCache.mArtistTracks.get(id));
+		}
+		
+		/**
+		 * Get track information (filled with default data if ID is invalid).
+		 */
+		public Track getTrack(long id) {
+			if (mCache == null) {
+				return null;
+			}
+			
+			int row = mCache.mTracks.indexOf(id);
+			return row < 0 ? Track.createUnknown() : new Track(mCache.mTracks, row, mCache);
+		}
+		
+		/**
+		 * Get all albums ordered ascending by album title.
+		 */
+		public Album [] getOrderedAlbums() {
+			return mCache == null ? null : mCache.mOrderedAlbumInfo.toArray(new Album [0]);
+		}
+		
+		/**
+		 * Get all albums of an artist ordered ascending by album title (empty for an invalid ID).
+		 */
+		public Album [] getOrderedAlbumsOfArtist(long id) {
+			if (mCache == null) {
+				return null;
+			}
+			
+			Album [] info = mCache.mArtistAlbums.get(id);
+			return info == null ? new Album [0] : info.clone();
+		}
+		
+		/**
+		 * Get album information (filled with default data if ID is invalid).
+		 */
+		public Album getAlbum(long id) {
+			return mCache == null ? null : mCache.getAlbum(id);
+		}
+		
+		/**
+		 * Get all artists ordered ascending by name.
+		 */
+		public Artist [] getOrderedArtists() {
+			return mCache == null ? null : mCache.mOrderedArtistInfo.toArray(new Artist [0]);
+		}
+		
+		/**
+		 * Get artist information (filled with default data if ID is invalid).
+		 */
+		public Artist getArtist(long id) {
+			return mCache == null ? null : mCache.getArtist(id);
+		}
+		
+		/**
+		 * Get amount of tracks (memory cache isn't needed for this).
+		 */
+		public int getTrackCount() {
+			if (mCache != null) {
+				return mCache.mTracks.size;
+			} else if (!isOpen()) {
+				return 0;
+			}
+			
+			try {
+				Cursor c = mDatabase.rawQuery("SELECT COUNT(*) FROM " + DB.TABLE_TRACKS, null);
+				int count = c.moveToFirst() ? c.getInt(0) : 0;
+				c.close();
+				
+				return count;
+			} catch (IllegalStateException e) {
+				// database was closed in the meantime
+				return 0;
+			}
+		}
+		
+		/**
+		 * Get a page of tracks ordered ascending by track title (memory cache isn't needed for
+		 * this, see {@link BansheeDatabase#getOrderedTracksPage(Track, int)}).<br>
+		 * <br>
+		 * While the sort keys of a freshly opened database are still built in background the
+		 * tracks of this library are paged in ID order.
+		 */
+		public Track [] getOrderedTracksPage(Track after, int count) {
+			if (!isOpen()) {
+				return null;
+			}
+			
+			String join = "";
+			String order = "t." + DB.ID;
+			String where = after == null ? "" : " WHERE t." + DB.ID + ">" + after.getId();
+			String [] args = null;
+			
+			if (mIndexed) {
+				join = " JOIN " + DB.INDEX + "." + DB.TABLE_SORT_KEYS + " AS k ON k." + DB.ID
+						+ "=t." + DB.ID;
+				order = "k." + DB.SORT_KEY + ", t." + DB.ID;
+				
+				if (after != null) {
+					// keyset paging - continue after sort key and ID of given track
+					String key = getSortKey(after.getTitle());
+					where = " WHERE k." + DB.SORT_KEY + ">? OR (k." + DB.SORT_KEY + "=? AND t."
+							+ DB.ID + ">" + after.getId() + ")";
+					args = new String [] {key, key};
+				}
+			}
+			
+			try {
+				return queryTracks(mDatabase, join + where, args,
+						" ORDER BY " + order + " LIMIT " + count);
+			} catch (IllegalStateException e) {
+				// database was closed in the meantime
+				return null;
+			}
+		}
+		
+		private Library withCache(DbCache cache) {
+			return new Library(mDatabase, mServer, cache, mIndexed);
+		}
+		
+		private Library withIndex() {
+			return new Library(mDatabase, mServer, mCache, true);
+		}
+	}
+	
+	
+	/**
+	 * Get the current library.<br>
+	 * <br>
+	 * The returned library doesn't change, keep it to get consistent results (e.g. for the life
+	 * of an adapter). Its memory cache is not set up by this call.
+	 * 
+	 * @return current library (never {@code null}, see {@link Library#isOpen()})
+	 */
+	public static Library getLibrary() {
+		return mLibrary.get();
+	}
 	
 	/**
 	 * Get all tracks ordered ascending by track title.
@@ -208,13 +617,7 @@ public class BansheeDatabase {
 	 * @return all tracks
 	 */
 	public static Track [] getOrderedTracks() {
-		if (!isOpen()) {
-			return null;
-		}
-		
-		setupDbCache();
-		
-		return mOrderedTrackInfo.toArray(new Track [0]);
+		return getCachedLibrary().getOrderedTracks();
 	}
 	
 	/**
@@ -226,28 +629,7 @@ public class BansheeDatabase {
 	 * @return tracks of the album or empty array for an invalid ID
 	 */
 	public static Track [] getOrderedTracksOfAlbum(long id) {
-		if (!isOpen()) {
-			return null;
-		}
-		
-		setupDbCache();
-		
-		List<Track> info = new LinkedList<Track>();
-		
-		for (Track i : mOrderedTrackInfo) {
-			if (i.getAlbumId() == id) {
-				info.add(i);
-			}
-		}
-		
-		Collections.sort(info, new Comparator<Track>() {
-			@Override
-			public int compare(Track lhs, Track rhs) {
-				return lhs.trackNumber - rhs.trackNumber;
-			}
-		});
-		
-		return info.toArray(new Track [0]);
+		return getCachedLibrary().getOrderedTracksOfAlbum(id);
 	}
 	
 	/**
@@ -259,19 +641,7 @@ public class BansheeDatabase {
 	 * @return all tracks of an artist or empty array for an invalid ID
 	 */
 	public static Track [] getOrderedTracksOfArtist(long id) {
-		if (!isOpen()) {
-			return null;
-		}
-		
-		List<Track> info = new LinkedList<Track>();
-		
-		for (Track i : mOrderedTrackInfo) {
-			if (i.getArtistId() == id) {
-				info.add(i);
-			}
-		}
-		
-		return info.toArray(new Track [0]);
+		return getCachedLibrary().getOrderedTracksOfArtist(id);
 	}
 	
 	/**
@@ -283,14 +653,7 @@ public class BansheeDatabase {
 	 * @return track information (which will be filled with default data if ID is invalid)
 	 */
 	public static Track getTrack(long id) {
-		if (!isOpen()) {
-			return null;
-		}
-		
-		setupDbCache();
-		
-		Track i = mTrackInfo.get(id);
-		return i == null ? Track.createUnknown() : i;
+		return getCachedLibrary().getTrack(id);
 	}
 	
 	/**
@@ -298,7 +661,10 @@ public class BansheeDatabase {
 	 * <br>
 	 * The difference is that this request won't trigger {@link #setupDbCache()}. This has to be
 	 * done once but takes some time to finish. So this should be done for heavy database use but we
-	 * don't need to perform that for a single track lookup.
+	 * don't need to perform that for a single track lookup.<br>
+	 * <br>
+	 * Album and artist of the previous lookup are reused if they didn't change (which is the case
+	 * for most track changes).
 	 * 
 	 * @param id
 	 *            track ID
@@ -306,18 +672,17 @@ public class BansheeDatabase {
 	 * @return track information (which will be filled with default data if ID is invalid)
 	 */
 	public static Track getUncachedTrack(long id) {
-		if (!isOpen()) {
-			return Track.createUnknown();
-		}
+		Library library = mLibrary.get();
 		
-		if (mOrderedTrackInfo != null) {
-			Track i = mTrackInfo.get(id);
-			return i == null ? Track.createUnknown() : i;
+		if (!library.isOpen()) {
+			return Track.createUnknown();
+		} else if (library.isDbCacheReady()) {
+			return library.getTrack(id);
 		}
 		
 		Track i = null;
 		
-		Cursor c = mBansheeDatabase.rawQuery(""
+		Cursor c = library.mDatabase.rawQuery(""
 				+ "SELECT t." + DB.ID + ", t." + DB.ARTIST_ID + ", t." + DB.ALBUM_ID
 				+ ", t." + DB.TITLE + ", t." + DB.TRACK_NUMBER + ", t." + DB.DURATION
 				+ ", t." + DB.YEAR + ", t." + DB.GENRE + ", a." + DB.NAME
@@ -330,34 +695,43 @@ public class BansheeDatabase {
 				null);
 		
 		if (c.moveToFirst()) {
-			i = new Track();
-			
 			String title = cleanString(c, 3);
 			String artist = cleanString(c, 8);
 			String album = cleanString(c, 9);
 			
-			i.id = c.getLong(0);
-			i.artistId = c.getLong(1);
-			i.albumId = c.getLong(2);
-			i.title = "".equals(title) ? App.getContext().getString(R.string.unknown_track) : title;
-			i.trackNumber = cleanInt(c, 4);
-			i.duration = cleanInt(c, 5);
-			i.year = (short) cleanInt(c, 6);
-			i.genre = cleanString(c, 7);
-			i.rating = (byte) cleanInt(c, 11);
-			
-			i.artist = new Artist();
-			i.artist.id = i.artistId;
-			i.artist.name = "".equals(artist)
-					? App.getContext().getString(R.string.unknown_artist) : artist;
-			
-			i.album = new Album();
-			i.album.id = i.albumId;
-			i.album.artistId = i.artistId;
-			i.album.artist = i.artist;
-			i.album.title = "".equals(album)
-					? App.getContext().getString(R.string.unknown_album) : album;
-			i.album.artId = cleanString(c, 10);
+			TrackStore.Builder b = new TrackStore.Builder(1);
+			b.add(c.getLong(0), c.getLong(1), c.getLong(2),
+					"".equals(title) ? App.getContext().getString(R.string.unknown_track) : title,
+					cleanInt(c, 4), cleanInt(c, 5), (short) cleanInt(c, 6), cleanString(c, 7),
+					(byte) cleanInt(c, 11));
+			i = new Track(b.build(), 0, null);
+			
+			if (mUncachedGeneration != mCacheGeneration) {
+				mUncachedGeneration = mCacheGeneration;
+				mUncachedAlbum = null;
+				mUncachedArtist = null;
+			}
+			
+			if (mUncachedArtist == null || mUncachedArtist.id != i.getArtistId()) {
+				mUncachedArtist = new Artist();
+				mUncachedArtist.id = i.getArtistId();
+				mUncachedArtist.name = "".equals(artist)
+						? App.getContext().getString(R.string.unknown_artist) : artist;
+			}
+			
+			if (mUncachedAlbum == null || mUncachedAlbum.id != i.getAlbumId()
+					|| mUncachedAlbum.artistId != i.getArtistId()) {
+				mUncachedAlbum = new Album();
+				mUncachedAlbum.id = i.getAlbumId();
+				mUncachedAlbum.artistId = i.getArtistId();
+				mUncachedAlbum.artist = mUncachedArtist;
+				mUncachedAlbum.title = "".equals(album)
+						? App.getContext().getString(R.string.unknown_album) : album;
+				mUncachedAlbum.artId = cleanString(c, 10);
+			}
+			
+			i.artist = mUncachedArtist;
+			i.album = mUncachedAlbum;
 		} else {
 			i = Track.createUnknown();
 			i.album = Album.createUnknown();
@@ -370,18 +744,79 @@ public class BansheeDatabase {
 	}
 	
 	/**
-	 * Get all albums ordered ascending by album title.
+	 * Get a page of tracks ordered ascending by track title.<br>
+	 * <br>
+	 * Just the requested tracks are read from the database file (the memory cache is not needed
+	 * and won't be set up). A page starts right after the given track, so the whole library can be
+	 * browsed page by page. Album and artist of the returned tracks are resolved already.
 	 * 
-	 * @return all albums
+	 * @param after
+	 *            track after which the page starts or {@code null} for the first page
+	 * @param count
+	 *            maximum amount of tracks
+	 * 
+	 * @return tracks of page (less than {@code count} at the end of the library)
 	 */
-	public static Album [] getOrderedAlbums() {
-		if (!isOpen()) {
-			return null;
+	public static Track [] getOrderedTracksPage(Track after, int count) {
+		return mLibrary.get().getOrderedTracksPage(after, count);
+	}
+	
+	/**
+	 * Get tracks (with resolved album and artist) by their IDs without using the memory cache.
+	 * 
+	 * @param db
+	 *            database to read from
+	 * @param ids
+	 *            track IDs
+	 * 
+	 * @return tracks in order of the given IDs (missing tracks are left out)
+	 */
+	static Track [] getUncachedTracks(SQLiteDatabase db, long [] ids) {
+		if (ids.length == 0) {
+			return new Track [0];
 		}
 		
-		setupDbCache();
+		StringBuilder where = new StringBuilder(" WHERE t." + DB.ID + " IN (");
+		
+		for (int i = 0; i < ids.length; i++) {
+			where.append(i == 0 ? "" : ",").append(ids[i]);
+		}
+		
+		Track [] found = queryTracks(db, where.append(")").toString(), null, "");
+		LongHashMap<Track> byId = new LongHashMap<Track>(found.length);
+		List<Track> tracks = new ArrayList<Track>(found.length);
+		
+		for (Track t : found) {
+			byId.put(t.getId(), t);
+		}
+		
+		for (long id : ids) {
+			Track t = byId.get(id);
+			
+			if (t != null) {
+				tracks.add(t);
+			}
+		}
 		
-		return mOrderedAlbumInfo.toArray(new Album [0]);
+		return tracks.toArray(new Track [tracks.size()]);
+	}
+	
+	/**
+	 * Get amount of tracks (memory cache won't be set up for this).
+	 * 
+	 * @return amount of tracks
+	 */
+	public static int getTrackCount() {
+		return mLibrary.get().getTrackCount();
+	}
+	
+	/**
+	 * Get all albums ordered ascending by album title.
+	 * 
+	 * @return all albums
+	 */
+	public static Album [] getOrderedAlbums() {
+		return getCachedLibrary().getOrderedAlbums();
 	}
 	
 	/**
@@ -393,20 +828,7 @@ public class BansheeDatabase {
 	 * @return all albums of an artist or emtpy array for an invalid ID
 	 */
 	public static Album [] getOrderedAlbumsOfArtist(long id) {
-		if (!isOpen()) {
-			return null;
-		}
-		
-		setupDbCache();
-		List<Album> info = new LinkedList<Album>();
-		
-		for (Album i : mOrderedAlbumInfo) {
-			if (i.getArtistId() == id) {
-				info.add(i);
-			}
-		}
-		
-		return info.toArray(new Album [0]);
+		return getCachedLibrary().getOrderedAlbumsOfArtist(id);
 	}
 	
 	/**
@@ -418,14 +840,7 @@ public class BansheeDatabase {
 	 * @return album information (which will be filled with default data if ID is invalid)
 	 */
 	public static Album getAlbum(long id) {
-		if (!isOpen()) {
-			return null;
-		}
-		
-		setupDbCache();
-		
-		Album i = mAlbumInfo.get(id);
-		return i == null ? Album.createUnknown() : i;
+		return getCachedLibrary().getAlbum(id);
 	}
 	
 	/**
@@ -434,13 +849,7 @@ public class BansheeDatabase {
 	 * @return all artists
 	 */
 	public static Artist [] getOrderedArtists() {
-		if (!isOpen()) {
-			return null;
-		}
-		
-		setupDbCache();
-		
-		return mOrderedArtistInfo.toArray(new Artist [0]);
+		return getCachedLibrary().getOrderedArtists();
 	}
 	
 	/**
@@ -452,14 +861,7 @@ public class BansheeDatabase {
 	 * @return artist information (which will be filled with default data if ID is invalid)
 	 */
 	public static Artist getArtist(long id) {
-		if (!isOpen()) {
-			return null;
-		}
-		
-		setupDbCache();
-		
-		Artist i = mArtistInfo.get(id);
-		return i == null ? Artist.createUnknown() : i;
+		return getCachedLibrary().getArtist(id);
 	}
 	
 	
@@ -467,173 +869,1341 @@ public class BansheeDatabase {
 	 * Read whole database into memory for a quick lookup.
 	 */
 	public static void setupDbCache() {
-		if (!isOpen() || mOrderedTrackInfo != null) {
+		Library library = mLibrary.get();
+		
+		if (!library.isOpen() || library.isDbCacheReady()) {
 			return;
 		}
 		
-		mTrackInfo = new TreeMap<Long, Track>();
-		mAlbumInfo = new TreeMap<Long, Album>();
-		mArtistInfo = new TreeMap<Long, Artist>();
+		mLibrary.compareAndSet(library,
+				library.withCache(buildDbCache(library.mDatabase, getDbTimestamp(), null)));
+	}
+	
+	/**
+	 * Is memory cache set up?
+	 * 
+	 * @return {@code true} if cached database requests won't block
+	 */
+	public static boolean isDbCacheReady() {
+		return mLibrary.get().isDbCacheReady();
+	}
+	
+	/**
+	 * Read whole database into memory in background.<br>
+	 * <br>
+	 * Tracks, albums and artists are loaded in parallel (each with its own connection) and the
+	 * cache is swapped in on the main thread, so the caller can show a loading state instead of
+	 * blocking. The listener is called immediately if the cache is already set up.
+	 * 
+	 * @param listener
+	 *            listener which is informed about the progress (main thread only)
+	 */
+	public static void setupDbCacheAsync(OnDbCacheListener listener) {
+		if (!isOpen() || isDbCacheReady()) {
+			listener.onDbCacheReady(isOpen());
+			return;
+		}
 		
-		mOrderedTrackInfo = new TreeSet<Track>(new Comparator<Track>() {
-			@Override
-			public int compare(Track lhs, Track rhs) {
-				char lc = lhs.title.charAt(0);
-				char rc = rhs.title.charAt(0);
-				boolean ra = Character.isLetter(rc);
-				int result;
-				
-				if (Character.isLetter(lc)) {
-					result = ra ? lhs.title.compareToIgnoreCase(rhs.title) : 1;
-				} else {
-					result = ra ? -1 : lhs.title.compareToIgnoreCase(rhs.title);
-				}
-				
-				return result == 0 ? -1 : result;
-			}
-		});
+		if (!mCacheListeners.contains(listener)) {
+			mCacheListeners.add(listener);
+		}
 		
-		Cursor c = mBansheeDatabase.query(
-				DB.TABLE_TRACKS,
-				new String [] {
-						DB.ID, DB.ARTIST_ID, DB.ALBUM_ID, DB.TITLE,
-						DB.TRACK_NUMBER, DB.DURATION, DB.YEAR, DB.GENRE, DB.RATING},
-				null, null, null, null, null);
+		if (!mCacheLoading) {
+			mCacheLoading = true;
+			startDbCacheLoad();
+		}
+	}
+	
+	/**
+	 * Stop informing a listener about a running cache setup (cache is still set up).
+	 * 
+	 * @param listener
+	 *            registered listener
+	 */
+	public static void removeDbCacheListener(OnDbCacheListener listener) {
+		mCacheListeners.remove(listener);
+	}
+	
+	/**
+	 * Is database up to date?
+	 * 
+	 * @param server
+	 *            banshee server to check
+	 * @param timestamp
+	 *            timestamp returned by server
+	 * 
+	 * @return {@code true} if database exists and has the same timestamp
+	 */
+	public static boolean isDatabaseUpToDate(BansheeServer server, long timestamp) {
+		server = getDatabaseOwner(server);
+		
+		if (!new File(App.CACHE_PATH + server.getId() + App.DB_EXT).exists()) {
+			return false;
+		} else {
+			return timestamp <= server.mDbTimestamp;
+		}
+	}
+	
+	/**
+	 * Get timestamp of the synchronized database.
+	 * 
+	 * @param server
+	 *            banshee server to check
+	 * 
+	 * @return timestamp of database or {@code 0} if there's no database
+	 */
+	public static long getDatabaseTimestamp(BansheeServer server) {
+		server = getDatabaseOwner(server);
+		
+		if (!new File(App.CACHE_PATH + server.getId() + App.DB_EXT).exists()) {
+			return 0;
+		} else {
+			return server.mDbTimestamp;
+		}
+	}
+	
+	/**
+	 * Apply changed rows on the open database in background.<br>
+	 * <br>
+	 * The rows are requested with {@link Command.SyncDatabase#encodeDelta(long)}. They are parsed
+	 * and applied in a single transaction on a background thread. Albums and artists which aren't
+	 * referenced anymore by changed or removed tracks are removed. If the database is cached in
+	 * memory only the affected entries are updated. The updated library is swapped in on the main
+	 * thread.<br>
+	 * <br>
+	 * Call this on the main thread only.
+	 * 
+	 * @param server
+	 *            banshee server for which the database is open
+	 * @param delta
+	 *            delta response of server
+	 * @param listener
+	 *            listener which gets the result (called right away if no database of the server
+	 *            is open)
+	 */
+	public static void applyDeltaAsync(final BansheeServer server, final byte [] delta,
+			final OnDeltaListener listener) {
+		final Library library = mLibrary.get();
+		
+		if (!library.isOpen() || library.mServer.getId() != server.getId()) {
+			listener.onDeltaApplied(server, -1);
+			return;
+		}
+		
+		// database stays open even if it's replaced meanwhile
+		library.acquire();
+		
+		new Thread("BansheeDatabase delta") {
+			@Override
+			public void run() {
+				final DeltaResult result = applyDelta(library, delta);
+				
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						publishDelta(server, library, result);
+						library.release();
+						listener.onDeltaApplied(server, result == null ? -1 : result.mChanges);
+					}
+				});
+			}
+		}.start();
+	}
+	
+	/**
+	 * Persist a new database for a banshee server in background.<br>
+	 * <br>
+	 * The database has to be downloaded to {@link #getDownloadFile(BansheeServer)} before (which
+	 * is done by {@link BansheeConnection} for a database file request). The downloaded file
+	 * replaces the current database atomically and is opened and read into a memory cache on a
+	 * background thread. The current database stays open and usable until the new one is swapped
+	 * in on the main thread. Registered {@link OnDatabaseUpdateListener}s are notified afterwards.
+	 * If another database is opened or closed in the meantime the new database is just
+	 * persisted.<br>
+	 * <br>
+	 * Call this on the main thread only.
+	 * 
+	 * @param server
+	 *            banshee server for which will use the database
+	 * @param timestamp
+	 *            timestamp of database received from previous request
+	 */
+	public static void updateDatabaseAsync(final BansheeServer server, final int timestamp) {
+		if (server.getId() < 1) {
+			throw new IllegalArgumentException("server is not a valid added server");
+		}
+		
+		final File download = getDownloadFile(server);
+		final BansheeServer owner = getDatabaseOwner(server);
+		final int generation = mGeneration;
+		mUpdating = true;
+		
+		new Thread("BansheeDatabase update") {
+			@Override
+			public void run() {
+				File file = new File(App.CACHE_PATH + owner.getId() + App.DB_EXT);
+				SQLiteDatabase db = null;
+				DbCache cache = null;
+				boolean replaced = false;
+				
+				boolean indexed = false;
+				
+				// an open database keeps reading the replaced file until it's closed
+				if (download.renameTo(file)) {
+					replaced = true;
+					
+					// derived data of the old file is useless now
+					getIndexFile(file).delete();
+					new File(getIndexFile(file).getPath() + "-journal").delete();
+					db = openFile(file);
+					
+					try {
+						indexed = db != null && buildIndex(db);
+					} catch (Exception e) {
+						// paging and search work without the index, it's built on next open
+					}
+					
+					try {
+						cache = db == null ? null : buildDbCache(db, timestamp, null);
+					} catch (Exception e) {
+						db.close();
+						db = null;
+					}
+					
+					if (db == null) {
+						file.delete();
+					}
+				} else {
+					download.delete();
+				}
+				
+				final SQLiteDatabase newDb = db;
+				final DbCache newCache = cache;
+				final boolean newFile = replaced;
+				final boolean newIndexed = indexed;
+				
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						publish(server, owner, timestamp, generation, newFile,
+								new Library(newDb, server, newCache, newIndexed));
+					}
+				});
+			}
+		}.start();
+	}
+	
+	/**
+	 * Is a database update running in background?
+	 * 
+	 * @return {@code true} if {@link #updateDatabaseAsync(BansheeServer, int)} hasn't finished yet
+	 */
+	public static boolean isUpdating() {
+		return mUpdating;
+	}
+	
+	/**
+	 * Register listener for background database updates.
+	 * 
+	 * @param listener
+	 *            listener which will be called on the main thread
+	 */
+	public static void addUpdateListener(OnDatabaseUpdateListener listener) {
+		if (!mUpdateListeners.contains(listener)) {
+			mUpdateListeners.add(listener);
+		}
+	}
+	
+	/**
+	 * Unregister listener for background database updates.
+	 * 
+	 * @param listener
+	 *            registered listener
+	 */
+	public static void removeUpdateListener(OnDatabaseUpdateListener listener) {
+		mUpdateListeners.remove(listener);
+	}
+	
+	/**
+	 * Get file to which a database of the server is downloaded before it's persisted with
+	 * {@link #updateDatabaseAsync(BansheeServer, int)}.
+	 * 
+	 * @param server
+	 *            banshee server from which the database is downloaded
+	 * 
+	 * @return download file (located next to the databases)
+	 */
+	static File getDownloadFile(BansheeServer server) {
+		return new File(App.CACHE_PATH + server.getId() + App.DB_EXT + ".part");
+	}
+	
+	/**
+	 * Get current database file of server (which might be shared with a server of the same host).
+	 * 
+	 * @param server
+	 *            banshee server
+	 * 
+	 * @return database file (might not exist)
+	 */
+	static File getDatabaseFile(BansheeServer server) {
+		long id = server.mSameHostId;
+		
+		if (id < 1 || BansheeServer.getServer(id) == null) {
+			id = server.getId();
+		}
+		
+		return new File(App.CACHE_PATH + id + App.DB_EXT);
+	}
+	
+	/**
+	 * Open database for access.
+	 * 
+	 * @param server
+	 *            banshee server for which a database should be opened
+	 * 
+	 * @return {@code true} if database was opened and is ready for access, otherwise {@code false}
+	 *         (because there is no synchronized database)
+	 */
+	public static boolean open(BansheeServer server) {
+		if (server.getId() < 1) {
+			throw new IllegalArgumentException("server is not a valid added server");
+		}
+		
+		long id = server.mSameHostId;
+		BansheeServer same = BansheeServer.getServer(id);
+		
+		if (id > 0 && same == null) {
+			// referenced server is dead, update that
+			server.mSameHostId = -1;
+			BansheeServer.updateServer(server);
+		}
+		
+		if (id < 1) {
+			id = server.getId();
+		}
+		
+		close();
+		
+		File file = new File(App.CACHE_PATH + id + App.DB_EXT);
+		
+		if (!file.exists()) {
+			return false;
+		}
+		
+		SQLiteDatabase db = openFile(file);
+		
+		if (db == null) {
+			return false;
+		}
+		
+		boolean indexed = isIndexed(db);
+		mLibrary.set(new Library(db, server, null, indexed));
+		
+		if (!indexed) {
+			buildIndexAsync(file, db);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Is there an open database?
+	 * 
+	 * @return {@code true} if a database is open and ready for access
+	 */
+	public static boolean isOpen() {
+		return mLibrary.get().isOpen();
+	}
+	
+	/**
+	 * Force database close (if open).
+	 */
+	public static void close() {
+		// a running background update must not swap in its database anymore
+		mGeneration++;
+		mCacheGeneration++;
+		
+		Library library = mLibrary.getAndSet(Library.CLOSED);
+		
+		if (library.isOpen()) {
+			closeUnlessAcquired(library.mDatabase);
+		}
+	}
+	
+	/**
+	 * Get the banshee server which was given to open the database.
+	 * 
+	 * @return banshee server or {@code null} when no database is open
+	 */
+	public static BansheeServer getServer() {
+		return mLibrary.get().mServer;
+	}
+	
+	// PACKAGE ====================================================================================
+	
+	/**
+	 * Get generation of database content (changes when a database is closed or a delta applied).
+	 */
+	static int getGeneration() {
+		return mCacheGeneration;
+	}
+	
+	// PRIVATE ====================================================================================
+	
+	/**
+	 * Result of a delta which was applied in background.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	private static class DeltaResult {
+		
+		private int mChanges;
+		private int mTimestamp;
+		private DbCache mCache;
+	}
+	
+	/**
+	 * Memory cache of a database which can be built on any thread.<br>
+	 * <br>
+	 * A cache (including its albums and artists) is never modified once it's part of a
+	 * {@link Library}, a changed database results in a new cache.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	private static class DbCache {
+		
+		private TrackStore mTracks;
+		private int [] mOrderedTracks;
+		private int [] mTrackNumberOrder;
+		private List<Album> mOrderedAlbumInfo;
+		private LongHashMap<Album> mAlbumInfo;
+		private List<Artist> mOrderedArtistInfo;
+		private LongHashMap<Artist> mArtistInfo;
+		private LongHashMap<int []> mAlbumTracks;
+		private LongHashMap<int []> mArtistTracks;
+		private LongHashMap<Album []> mArtistAlbums;
+		
+		
+		/**
+		 * Create track views of rows.
+		 */
+		Track [] getTracks(int [] rows) {
+			if (rows == null) {
+				return new Track [0];
+			}
+			
+			Track [] tracks = new Track [rows.length];
+			
+			for (int i = 0; i < tracks.length; i++) {
+				tracks[i] = new Track(mTracks, rows[i], this);
+			}
+			
+			return tracks;
+		}
+		
+		/**
+		 * Get album (filled with default data if ID is invalid).
+		 */
+		Album getAlbum(long id) {
+			Album i = mAlbumInfo.get(id);
+			return i == null ? Album.createUnknown() : i;
+		}
+		
+		/**
+		 * Get artist (filled with default data if ID is invalid).
+		 */
+		Artist getArtist(long id) {
+			Artist i = mArtistInfo.get(id);
+			return i == null ? Artist.createUnknown() : i;
+		}
+		
+		/**
+		 * Count tracks and albums and build indexes of loaded tracks, albums and artists.
+		 */
+		void link() {
+			for (Album a : mOrderedAlbumInfo) {
+				a.trackCount = 0;
+			}
+			
+			for (Artist a : mOrderedArtistInfo) {
+				a.trackCount = 0;
+				a.albumCount = 0;
+			}
+			
+			for (int i = 0; i < mTracks.size; i++) {
+				Album album = mAlbumInfo.get(mTracks.albumIds[i]);
+				Artist artist = mArtistInfo.get(mTracks.artistIds[i]);
+				
+				if (album != null) {
+					album.trackCount++;
+				}
+				
+				if (artist != null) {
+					artist.trackCount++;
+				}
+			}
+			
+			for (Album a : mOrderedAlbumInfo) {
+				Artist artist = mArtistInfo.get(a.artistId);
+				
+				if (artist != null) {
+					artist.albumCount++;
+				}
+			}
+			
+			mTrackNumberOrder = mTracks.orderByTrackNumber(mOrderedTracks);
+			index();
+		}
+		
+		/**
+		 * Build indexes of ordered tracks and albums (no sorting needed) and resolve artists of
+		 * albums.
+		 */
+		private void index() {
+			for (Album a : mOrderedAlbumInfo) {
+				a.artist = getArtist(a.artistId);
+			}
+			
+			mAlbumTracks = mTracks.group(mTracks.albumIds, mTrackNumberOrder);
+			mArtistTracks = mTracks.group(mTracks.artistIds, mOrderedTracks);
+			mArtistAlbums = groupAlbums(mOrderedAlbumInfo);
+		}
+		
+		/**
+		 * Write linked cache to a snapshot.
+		 */
+		void write(CacheSnapshot.Writer out) throws IOException {
+			int albumCount = mOrderedAlbumInfo.size();
+			long [] albumIds = new long [albumCount];
+			long [] albumArtistIds = new long [albumCount];
+			String [] albumTitles = new String [albumCount];
+			String [] albumArtIds = new String [albumCount];
+			String [] albumSortKeys = new String [albumCount];
+			int [] albumTrackCounts = new int [albumCount];
+			
+			for (int i = 0; i < albumCount; i++) {
+				Album a = mOrderedAlbumInfo.get(i);
+				albumIds[i] = a.id;
+				albumArtistIds[i] = a.artistId;
+				albumTitles[i] = a.title;
+				albumArtIds[i] = a.artId;
+				albumSortKeys[i] = a.sortKey;
+				albumTrackCounts[i] = a.trackCount;
+			}
+			
+			int artistCount = mOrderedArtistInfo.size();
+			long [] artistIds = new long [artistCount];
+			String [] artistNames = new String [artistCount];
+			String [] artistSortKeys = new String [artistCount];
+			int [] artistTrackCounts = new int [artistCount];
+			int [] artistAlbumCounts = new int [artistCount];
+			
+			for (int i = 0; i < artistCount; i++) {
+				Artist a = mOrderedArtistInfo.get(i);
+				artistIds[i] = a.id;
+				artistNames[i] = a.name;
+				artistSortKeys[i] = a.sortKey;
+				artistTrackCounts[i] = a.trackCount;
+				artistAlbumCounts[i] = a.albumCount;
+			}
+			
+			mTracks.write(out);
+			out.writeInts(mOrderedTracks);
+			out.writeInts(mTrackNumberOrder);
+			
+			out.writeLongs(albumIds);
+			out.writeLongs(albumArtistIds);
+			out.writeStrings(albumTitles);
+			out.writeStrings(albumArtIds);
+			out.writeStrings(albumSortKeys);
+			out.writeInts(albumTrackCounts);
+			
+			out.writeLongs(artistIds);
+			out.writeStrings(artistNames);
+			out.writeStrings(artistSortKeys);
+			out.writeInts(artistTrackCounts);
+			out.writeInts(artistAlbumCounts);
+		}
+		
+		/**
+		 * Read linked cache which was written with {@link #write(CacheSnapshot.Writer)}.
+		 */
+		static DbCache read(CacheSnapshot.Reader in) {
+			DbCache cache = new DbCache();
+			cache.mTracks = TrackStore.read(in);
+			cache.mOrderedTracks = in.readInts();
+			cache.mTrackNumberOrder = in.readInts();
+			
+			long [] albumIds = in.readLongs();
+			long [] albumArtistIds = in.readLongs();
+			String [] albumTitles = in.readStrings();
+			String [] albumArtIds = in.readStrings();
+			String [] albumSortKeys = in.readStrings();
+			int [] albumTrackCounts = in.readInts();
+			
+			long [] artistIds = in.readLongs();
+			String [] artistNames = in.readStrings();
+			String [] artistSortKeys = in.readStrings();
+			int [] artistTrackCounts = in.readInts();
+			int [] artistAlbumCounts = in.readInts();
+			
+			cache.mOrderedAlbumInfo = new ArrayList<Album>(albumIds.length);
+			cache.mAlbumInfo = new LongHashMap<Album>(albumIds.length);
+			StringDictionary titles = new StringDictionary();
+			
+			for (int i = 0; i < albumIds.length; i++) {
+				Album a = new Album();
+				a.id = albumIds[i];
+				a.artistId = albumArtistIds[i];
+				a.title = titles.intern(albumTitles[i]);
+				a.artId = albumArtIds[i];
+				a.sortKey = albumSortKeys[i];
+				a.trackCount = albumTrackCounts[i];
+				
+				cache.mOrderedAlbumInfo.add(a);
+				cache.mAlbumInfo.put(a.id, a);
+			}
+			
+			cache.mOrderedArtistInfo = new ArrayList<Artist>(artistIds.length);
+			cache.mArtistInfo = new LongHashMap<Artist>(artistIds.length);
+			
+			for (int i = 0; i < artistIds.length; i++) {
+				Artist a = new Artist();
+				a.id = artistIds[i];
+				a.name = artistNames[i];
+				a.sortKey = artistSortKeys[i];
+				a.trackCount = artistTrackCounts[i];
+				a.albumCount = artistAlbumCounts[i];
+				
+				cache.mOrderedArtistInfo.add(a);
+				cache.mArtistInfo.put(a.id, a);
+			}
+			
+			if (cache.mOrderedTracks.length != cache.mTracks.size
+					|| cache.mTrackNumberOrder.length != cache.mTracks.size
+					|| !TrackStore.isInRange(cache.mOrderedTracks, cache.mTracks.size)
+					|| !TrackStore.isInRange(cache.mTrackNumberOrder, cache.mTracks.size)) {
+				throw new IllegalArgumentException("inconsistent cache snapshot");
+			}
+			
+			cache.index();
+			
+			return cache;
+		}
+	}
+	
+	/**
+	 * Part of the memory cache which is loaded with its own read-only connection.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	private static abstract class CacheLoad implements Runnable {
+		
+		private final String mPath;
+		
+		
+		CacheLoad(String path) {
+			mPath = path;
+		}
+		
+		@Override
+		public void run() {
+			SQLiteDatabase db = SQLiteDatabase.openDatabase(mPath, null,
+					SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+			
+			try {
+				load(db);
+			} finally {
+				db.close();
+			}
+		}
+		
+		abstract void load(SQLiteDatabase db);
+	}
+	
+	
+	/**
+	 * Read whole database into a new memory cache.<br>
+	 * <br>
+	 * Tracks, albums and artists are loaded in parallel, each with its own read-only connection to
+	 * the database file.<br>
+	 * <br>
+	 * If there's a snapshot of the cache for the given database timestamp it's read instead (see
+	 * {@link CacheSnapshot}). Otherwise the built cache is written as new snapshot.
+	 * 
+	 * @param db
+	 *            database to read
+	 * @param timestamp
+	 *            timestamp of database ({@code -1} if unknown, no snapshot is used then)
+	 * @param progress
+	 *            informed on the calling thread when a part was loaded (might be {@code null})
+	 */
+	private static DbCache buildDbCache(SQLiteDatabase db, long timestamp,
+			OnDbCacheListener progress) {
+		String path = db.getPath();
+		File snapshot = CacheSnapshot.getFile(path);
+		long length = new File(path).length();
+		
+		if (timestamp > 0) {
+			DbCache cache = readSnapshot(snapshot, timestamp, length);
+			
+			if (cache != null) {
+				if (progress != null) {
+					progress.onDbCacheProgress(CACHE_LOADS, CACHE_LOADS);
+				}
+				
+				return cache;
+			}
+		}
+		
+		final DbCache cache = new DbCache();
+		
+		synchronized (BansheeDatabase.class) {
+			if (mCacheLoader == null) {
+				mCacheLoader = Executors.newFixedThreadPool(CACHE_LOADS);
+			}
+		}
+		
+		List<Future<?>> loads = new ArrayList<Future<?>>(CACHE_LOADS);
+		
+		loads.add(mCacheLoader.submit(new CacheLoad(path) {
+			@Override
+			void load(SQLiteDatabase db) {
+				loadTracks(db, cache);
+			}
+		}));
+		loads.add(mCacheLoader.submit(new CacheLoad(path) {
+			@Override
+			void load(SQLiteDatabase db) {
+				loadAlbums(db, cache);
+			}
+		}));
+		loads.add(mCacheLoader.submit(new CacheLoad(path) {
+			@Override
+			void load(SQLiteDatabase db) {
+				loadArtists(db, cache);
+			}
+		}));
+		
+		try {
+			for (int i = 0; i < loads.size(); i++) {
+				loads.get(i).get();
+				
+				if (progress != null) {
+					progress.onDbCacheProgress(i + 1, CACHE_LOADS);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		
+		cache.link();
+		
+		if (timestamp > 0) {
+			writeSnapshot(cache, snapshot, timestamp, length);
+		}
+		
+		return cache;
+	}
+	
+	/**
+	 * Read cache snapshot of database.
+	 * 
+	 * @return cache or {@code null} if there's no valid snapshot for the database
+	 */
+	private static DbCache readSnapshot(File snapshot, long timestamp, long length) {
+		try {
+			CacheSnapshot.Reader in = CacheSnapshot.open(snapshot, timestamp, length);
+			return in == null ? null : DbCache.read(in);
+		} catch (BufferUnderflowException e) {
+			L.d("dropping truncated cache snapshot " + snapshot);
+		} catch (RuntimeException e) {
+			// whatever is wrong with it, building the cache again is always possible
+			L.d("dropping corrupt cache snapshot " + snapshot);
+		}
+		
+		snapshot.delete();
+		return null;
+	}
+	
+	/**
+	 * Write cache snapshot of database (a failure just means that the next start is slower).
+	 */
+	private static void writeSnapshot(DbCache cache, File snapshot, long timestamp, long length) {
+		CacheSnapshot.Writer out = null;
+		
+		try {
+			out = CacheSnapshot.create(snapshot, timestamp, length);
+			cache.write(out);
+			out.commit();
+		} catch (IOException e) {
+			L.d("couldn't write cache snapshot " + snapshot);
+			
+			if (out != null) {
+				out.abort();
+			}
+		}
+	}
+	
+	/**
+	 * Get current library with memory cache (which is set up if needed).
+	 */
+	private static Library getCachedLibrary() {
+		setupDbCache();
+		return mLibrary.get();
+	}
+	
+	/**
+	 * Get timestamp of open database.
+	 * 
+	 * @return timestamp or {@code -1} if it's not known
+	 */
+	private static long getDbTimestamp() {
+		BansheeServer server = mLibrary.get().mServer;
+		return server == null ? -1 : getDatabaseOwner(server).mDbTimestamp;
+	}
+	
+	private static void loadTracks(SQLiteDatabase db, DbCache cache) {
+		String unknownTrack = App.getContext().getString(R.string.unknown_track);
+		
+		Cursor c = db.query(
+				DB.TABLE_TRACKS,
+				new String [] {
+						DB.ID, DB.ARTIST_ID, DB.ALBUM_ID, DB.TITLE,
+						DB.TRACK_NUMBER, DB.DURATION, DB.YEAR, DB.GENRE, DB.RATING},
+				null, null, null, null, null);
+		TrackStore.Builder tracks = new TrackStore.Builder(c.getCount());
 		
 		while (c.moveToNext()) {
 			String title = cleanString(c, 3);
-			Track i = new Track();
+			tracks.add(c.getLong(0), c.getLong(1), c.getLong(2),
+					"".equals(title) ? unknownTrack : title, cleanInt(c, 4), cleanInt(c, 5),
+					(short) cleanInt(c, 6), cleanString(c, 7), (byte) cleanInt(c, 8));
+		}
+		
+		c.close();
+		
+		cache.mTracks = tracks.build();
+		cache.mOrderedTracks = cache.mTracks.orderByTitle();
+	}
+	
+	private static void loadAlbums(SQLiteDatabase db, DbCache cache) {
+		Cursor c = db.query(
+				DB.TABLE_ALBUMS,
+				new String [] {DB.ID, DB.ARTIST_ID, DB.TITLE, DB.ART_ID},
+				null, null, null, null, null);
+		cache.mOrderedAlbumInfo = new ArrayList<Album>(c.getCount());
+		cache.mAlbumInfo = new LongHashMap<Album>(c.getCount());
+		
+		// album titles repeat across artists (compilations, "Greatest Hits", unknown album)
+		StringDictionary titles = new StringDictionary();
+		String unknownAlbum = App.getContext().getString(R.string.unknown_album);
+		
+		while (c.moveToNext()) {
+			String title = cleanString(c, 2);
+			Album i = new Album();
 			
 			i.id = c.getLong(0);
 			i.artistId = c.getLong(1);
-			i.albumId = c.getLong(2);
-			i.title = "".equals(title) ? App.getContext().getString(R.string.unknown_track) : title;
-			i.trackNumber = cleanInt(c, 4);
-			i.duration = cleanInt(c, 5);
-			i.year = (short) cleanInt(c, 6);
-			i.genre = cleanString(c, 7);
-			i.rating = (byte) cleanInt(c, 8);
+			i.title = titles.intern("".equals(title) ? unknownAlbum : title);
+			i.artId = cleanString(c, 3);
+			i.sortKey = SortKey.of(i.title);
+			
+			cache.mOrderedAlbumInfo.add(i);
+			cache.mAlbumInfo.put(i.id, i);
+		}
+		
+		c.close();
+		
+		// one stable sort of all albums by their precomputed keys
+		Collections.sort(cache.mOrderedAlbumInfo, ALBUM_ORDER);
+	}
+	
+	private static void loadArtists(SQLiteDatabase db, DbCache cache) {
+		Cursor c = db.query(
+				DB.TABLE_ARTISTS,
+				new String [] {DB.ID, DB.NAME},
+				null, null, null, null, null);
+		cache.mOrderedArtistInfo = new ArrayList<Artist>(c.getCount());
+		cache.mArtistInfo = new LongHashMap<Artist>(c.getCount());
+		String unknownArtist = App.getContext().getString(R.string.unknown_artist);
+		
+		while (c.moveToNext()) {
+			String title = cleanString(c, 1);
+			Artist i = new Artist();
+			
+			i.id = c.getLong(0);
+			i.name = "".equals(title) ? unknownArtist : title;
+			i.sortKey = SortKey.of(i.name);
 			
-			mOrderedTrackInfo.add(i);
-			mTrackInfo.put(i.id, i);
+			cache.mOrderedArtistInfo.add(i);
+			cache.mArtistInfo.put(i.id, i);
 		}
 		
-		mOrderedAlbumInfo = new TreeSet<Album>(new Comparator<Album>() {
+		c.close();
+		
+		Collections.sort(cache.mOrderedArtistInfo, ARTIST_ORDER);
+	}
+	
+	/**
+	 * Load memory cache in background and swap it in on the main thread.
+	 */
+	private static void startDbCacheLoad() {
+		final SQLiteDatabase db = mLibrary.get().mDatabase;
+		final int generation = mCacheGeneration;
+		final long timestamp = getDbTimestamp();
+		
+		new Thread("BansheeDatabase cache") {
 			@Override
-			public int compare(Album lhs, Album rhs) {
-				char lc = lhs.title.charAt(0);
-				char rc = rhs.title.charAt(0);
-				boolean ra = Character.isLetter(rc);
-				int result;
-				
-				if (Character.isLetter(lc)) {
-					result = ra ? lhs.title.compareToIgnoreCase(rhs.title) : 1;
-				} else {
-					result = ra ? -1 : lhs.title.compareToIgnoreCase(rhs.title);
+			public void run() {
+				DbCache cache;
+				
+				try {
+					cache = buildDbCache(db, timestamp, new OnDbCacheListener() {
+						@Override
+						public void onDbCacheProgress(final int loaded, final int total) {
+							mMainHandler.post(new Runnable() {
+								@Override
+								public void run() {
+									if (generation != mCacheGeneration) {
+										return;
+									}
+									
+									for (OnDbCacheListener listener
+											: new ArrayList<OnDbCacheListener>(mCacheListeners)) {
+										listener.onDbCacheProgress(loaded, total);
+									}
+								}
+							});
+						}
+						
+						@Override
+						public void onDbCacheReady(boolean success) {
+						}
+					});
+				} catch (Exception e) {
+					cache = null;
+				}
+				
+				final DbCache result = cache;
+				
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						publishDbCache(generation, result);
+					}
+				});
+			}
+		}.start();
+	}
+	
+	/**
+	 * Swap in a memory cache which was loaded in background (main thread).
+	 */
+	private static void publishDbCache(int generation, DbCache cache) {
+		Library library = mLibrary.get();
+		
+		if (generation != mCacheGeneration && library.isOpen() && !library.isDbCacheReady()) {
+			// database changed while loading, cache might be outdated
+			startDbCacheLoad();
+			return;
+		}
+		
+		mCacheLoading = false;
+		
+		if (generation == mCacheGeneration && cache != null && !library.isDbCacheReady()) {
+			mLibrary.compareAndSet(library, library.withCache(cache));
+		}
+		
+		boolean success = isDbCacheReady();
+		
+		for (OnDbCacheListener listener : new ArrayList<OnDbCacheListener>(mCacheListeners)) {
+			listener.onDbCacheReady(success);
+		}
+		
+		mCacheListeners.clear();
+	}
+	
+	/**
+	 * Group ordered albums by artist (order is kept).
+	 */
+	private static LongHashMap<Album []> groupAlbums(List<Album> albums) {
+		LongHashMap<List<Album>> lists = new LongHashMap<List<Album>>();
+		
+		for (Album a : albums) {
+			List<Album> list = lists.get(a.artistId);
+			
+			if (list == null) {
+				list = new ArrayList<Album>();
+				lists.put(a.artistId, list);
+			}
+			
+			list.add(a);
+		}
+		
+		LongHashMap<Album []> groups = new LongHashMap<Album []>(lists.size());
+		
+		for (Album a : albums) {
+			if (!groups.containsKey(a.artistId)) {
+				List<Album> list = lists.get(a.artistId);
+				groups.put(a.artistId, list.toArray(new Album [list.size()]));
+			}
+		}
+		
+		return groups;
+	}
+	
+	/**
+	 * Open database file (and upgrade it if necessary).
+	 * 
+	 * @return opened database or {@code null} if it's not a valid database
+	 */
+	private static SQLiteDatabase openFile(File file) {
+		SQLiteDatabase db;
+		
+		try {
+			db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null,
+					SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		} catch (Exception e) {
+			return null;
+		}
+		
+		try {
+			db.query(DB.TABLE_TRACKS, new String [] {DB.RATING},
+					null, null, null, null, null, "1");
+		} catch (Exception e) {
+			// upgrade - new column "rating" - add it if it is missing
+			try {
+				db.execSQL("ALTER TABLE " + DB.TABLE_TRACKS
+						+ " ADD COLUMN " + DB.RATING + " INTEGER NOT NULL DEFAULT 0;");
+			} catch (Exception e2) {
+				db.close();
+				return null;
+			}
+		}
+		
+		try {
+			// derived data goes to a side database, the synchronized file has to stay untouched
+			// (it's the basis of the next block delta synchronization)
+			db.execSQL("ATTACH DATABASE ? AS " + DB.INDEX,
+					new Object [] {getIndexFile(file).getAbsolutePath()});
+		} catch (Exception e) {
+			db.close();
+			return null;
+		}
+		
+		return db;
+	}
+	
+	/**
+	 * Get side database of a database file (see {@link #buildIndex(SQLiteDatabase)}).
+	 */
+	private static File getIndexFile(File file) {
+		String path = file.getPath();
+		
+		if (path.endsWith(App.DB_EXT)) {
+			path = path.substring(0, path.length() - App.DB_EXT.length());
+		}
+		
+		return new File(path + App.INDEX_EXT);
+	}
+	
+	/**
+	 * Is the attached side database of the database complete?
+	 */
+	private static boolean isIndexed(SQLiteDatabase db) {
+		Cursor c = db.rawQuery("PRAGMA " + DB.INDEX + ".user_version", null);
+		boolean indexed = c.moveToFirst() && c.getInt(0) == INDEX_VERSION;
+		c.close();
+		
+		return indexed;
+	}
+	
+	/**
+	 * Build the attached side database (if it's not complete already).<br>
+	 * <br>
+	 * It holds the sort keys of the tracks for paged browsing and the full text search index
+	 * (see {@link TrackSearch}). This reads the whole database, so don't call it on the main
+	 * thread.
+	 * 
+	 * @return {@code true} if side database is complete
+	 */
+	private static boolean buildIndex(SQLiteDatabase db) {
+		synchronized (mIndexLock) {
+			if (isIndexed(db)) {
+				return true;
+			}
+			
+			String sortKeys = DB.INDEX + "." + DB.TABLE_SORT_KEYS;
+			SQLiteStatement insert = null;
+			Cursor c = null;
+			db.beginTransaction();
+			
+			try {
+				db.execSQL("CREATE TABLE IF NOT EXISTS " + sortKeys + " (" + DB.ID
+						+ " INTEGER PRIMARY KEY, " + DB.SORT_KEY + " TEXT NOT NULL);");
+				db.execSQL("CREATE INDEX IF NOT EXISTS " + sortKeys + "_" + DB.SORT_KEY + " ON "
+						+ DB.TABLE_SORT_KEYS + " (" + DB.SORT_KEY + ", " + DB.ID + ");");
+				db.execSQL("DELETE FROM " + sortKeys + ";");
+				
+				insert = db.compileStatement("INSERT INTO " + sortKeys + " (" + DB.ID + ", "
+						+ DB.SORT_KEY + ") VALUES (?, ?)");
+				c = db.query(DB.TABLE_TRACKS, new String [] {DB.ID, DB.TITLE},
+						null, null, null, null, null);
+				
+				while (c.moveToNext()) {
+					insert.bindLong(1, c.getLong(0));
+					insert.bindString(2, getSortKey(cleanString(c, 1)));
+					insert.execute();
+				}
+				
+				// without full text search support the search falls back to a memory index
+				TrackSearch.buildIndex(db);
+				
+				db.execSQL("PRAGMA " + DB.INDEX + ".user_version = " + INDEX_VERSION + ";");
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+				
+				if (c != null) {
+					c.close();
+				}
+				
+				if (insert != null) {
+					insert.close();
+				}
+			}
+			
+			return true;
+		}
+	}
+	
+	/**
+	 * Build side database of an opened database in background and mark the library as indexed
+	 * afterwards.<br>
+	 * <br>
+	 * An own connection is used, so the opened database stays responsive meanwhile.
+	 */
+	private static void buildIndexAsync(final File file, final SQLiteDatabase target) {
+		new Thread("BansheeDatabase index") {
+			@Override
+			public void run() {
+				SQLiteDatabase db = openFile(file);
+				
+				if (db == null) {
+					return;
+				}
+				
+				try {
+					buildIndex(db);
+				} catch (Exception e) {
+					// paging and search work without the index, it's built on next open
+					return;
+				} finally {
+					db.close();
 				}
 				
-				return result == 0 ? -1 : result;
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						Library library = mLibrary.get();
+						
+						if (library.mDatabase == target && !library.mIndexed) {
+							mLibrary.compareAndSet(library, library.withIndex());
+						}
+					}
+				});
+			}
+		}.start();
+	}
+	
+	/**
+	 * Update side database after rows were changed (has to be called in the same transaction).
+	 */
+	private static void updateIndex(SQLiteDatabase db, TrackStore tracks, Set<Long> removed,
+			List<Long> changedTracks, List<Long> changedAlbums, List<Long> changedArtists) {
+		synchronized (mIndexLock) {
+			if (!isIndexed(db)) {
+				// it's still built in background and will contain the changes
+				return;
 			}
-		});
-		
-		c.close();
-		c = mBansheeDatabase.query(
-				DB.TABLE_ALBUMS,
-				new String [] {DB.ID, DB.ARTIST_ID, DB.TITLE, DB.ART_ID},
-				null, null, null, null, null);
-		
-		while (c.moveToNext()) {
-			String title = cleanString(c, 2);
-			Album i = new Album();
 			
-			i.id = c.getLong(0);
-			i.artistId = c.getLong(1);
-			i.title = "".equals(title) ? App.getContext().getString(R.string.unknown_album) : title;
-			i.artId = cleanString(c, 3);
+			String sortKeys = DB.INDEX + "." + DB.TABLE_SORT_KEYS;
+			
+			for (Long id : removed) {
+				db.delete(sortKeys, DB.ID + "=" + id, null);
+			}
+			
+			for (int i = 0; i < tracks.size; i++) {
+				ContentValues v = new ContentValues();
+				v.put(DB.ID, tracks.ids[i]);
+				v.put(DB.SORT_KEY, getSortKey(tracks.getTitle(i)));
+				db.replace(sortKeys, null, v);
+			}
 			
-			mOrderedAlbumInfo.add(i);
-			mAlbumInfo.put(i.id, i);
+			TrackSearch.updateIndex(db, changedTracks, changedAlbums, changedArtists);
 		}
-		
-		mOrderedArtistInfo = new TreeSet<Artist>(new Comparator<Artist>() {
-			@Override
-			public int compare(Artist lhs, Artist rhs) {
-				char lc = lhs.name.charAt(0);
-				char rc = rhs.name.charAt(0);
-				boolean ra = Character.isLetter(rc);
-				int result;
-				
-				if (Character.isLetter(lc)) {
-					result = ra ? lhs.name.compareToIgnoreCase(rhs.name) : 1;
-				} else {
-					result = ra ? -1 : lhs.name.compareToIgnoreCase(rhs.name);
-				}
-				
-				return result == 0 ? -1 : result;
+	}
+	
+	/**
+	 * Query tracks with resolved album and artist.
+	 * 
+	 * @param where
+	 *            where clause (including {@code WHERE}, optionally preceded by further joins) on
+	 *            tracks {@code t}, albums {@code l}, artists {@code a} and album artists
+	 *            {@code la}
+	 * @param args
+	 *            arguments of where clause
+	 * @param suffix
+	 *            order and limit clause
+	 * 
+	 * @return tracks in query order
+	 */
+	private static Track [] queryTracks(SQLiteDatabase db, String where, String [] args,
+			String suffix) {
+		Cursor c = db.rawQuery(""
+				+ "SELECT t." + DB.ID + ", t." + DB.ARTIST_ID + ", t." + DB.ALBUM_ID
+				+ ", t." + DB.TITLE + ", t." + DB.TRACK_NUMBER + ", t." + DB.DURATION
+				+ ", t." + DB.YEAR + ", t." + DB.GENRE + ", a." + DB.NAME
+				+ ", l." + DB.TITLE + ", l." + DB.ART_ID + ", t." + DB.RATING
+				+ ", l." + DB.ARTIST_ID + ", la." + DB.NAME
+				+ " FROM " + DB.TABLE_TRACKS + " AS t"
+				+ " LEFT JOIN " + DB.TABLE_ARTISTS + " AS a ON a." + DB.ID + "=t." + DB.ARTIST_ID
+				+ " LEFT JOIN " + DB.TABLE_ALBUMS + " AS l ON l." + DB.ID + "=t." + DB.ALBUM_ID
+				+ " LEFT JOIN " + DB.TABLE_ARTISTS + " AS la ON la." + DB.ID + "=l." + DB.ARTIST_ID
+				+ where + suffix,
+				args);
+		
+		String unknownTrack = App.getContext().getString(R.string.unknown_track);
+		String unknownArtist = App.getContext().getString(R.string.unknown_artist);
+		String unknownAlbum = App.getContext().getString(R.string.unknown_album);
+		TrackStore.Builder b = new TrackStore.Builder(c.getCount());
+		Track [] tracks = new Track [c.getCount()];
+		Album [] albums = new Album [tracks.length];
+		Artist [] artists = new Artist [tracks.length];
+		long [] ids = new long [tracks.length];
+		
+		// tracks of the same album or artist share one object
+		LongHashMap<Album> albumById = new LongHashMap<Album>();
+		LongHashMap<Artist> artistById = new LongHashMap<Artist>();
+		
+		for (int i = 0; c.moveToNext(); i++) {
+			String title = cleanString(c, 3);
+			
+			ids[i] = c.getLong(0);
+			b.add(ids[i], c.getLong(1), c.getLong(2), "".equals(title) ? unknownTrack : title,
+					cleanInt(c, 4), cleanInt(c, 5), (short) cleanInt(c, 6), cleanString(c, 7),
+					(byte) cleanInt(c, 11));
+			
+			artists[i] = artistById.get(c.getLong(1));
+			
+			if (artists[i] == null) {
+				String artist = cleanString(c, 8);
+				artists[i] = new Artist();
+				artists[i].id = c.getLong(1);
+				artists[i].name = "".equals(artist) ? unknownArtist : artist;
+				artistById.put(artists[i].id, artists[i]);
 			}
-		});
-		
-		c.close();
-		c = mBansheeDatabase.query(
-				DB.TABLE_ARTISTS,
-				new String [] {DB.ID, DB.NAME},
-				null, null, null, null, null);
-		
-		while (c.moveToNext()) {
-			String title = cleanString(c, 1);
-			Artist i = new Artist();
 			
-			i.id = c.getLong(0);
-			i.name = "".equals(title) ? App.getContext().getString(R.string.unknown_artist) : title;
+			albums[i] = albumById.get(c.getLong(2));
 			
-			mOrderedArtistInfo.add(i);
-			mArtistInfo.put(i.id, i);
+			if (albums[i] == null) {
+				String album = cleanString(c, 9);
+				albums[i] = new Album();
+				albums[i].id = c.getLong(2);
+				albums[i].artistId = c.isNull(12) ? c.getLong(1) : c.getLong(12);
+				albums[i].title = "".equals(album) ? unknownAlbum : album;
+				albums[i].artId = cleanString(c, 10);
+				albums[i].artist = artistById.get(albums[i].artistId);
+				albumById.put(albums[i].id, albums[i]);
+				
+				if (albums[i].artist == null) {
+					// album artist differs from the track artist
+					String artist = cleanString(c, 13);
+					albums[i].artist = new Artist();
+					albums[i].artist.id = albums[i].artistId;
+					albums[i].artist.name = "".equals(artist) ? unknownArtist : artist;
+					artistById.put(albums[i].artistId, albums[i].artist);
+				}
+			}
 		}
 		
 		c.close();
 		
-		c = mBansheeDatabase.query(
-				DB.TABLE_TRACKS,
-				new String [] {DB.ARTIST_ID, "COUNT(*)"},
-				null, null, DB.ARTIST_ID, null, null);
+		// store is ordered by ID, the result is ordered by query
+		TrackStore store = b.build();
 		
-		while (c.moveToNext()) {
-			Artist i = mArtistInfo.get(c.getLong(0));
-			i.trackCount = c.getInt(1);
+		for (int i = 0; i < tracks.length; i++) {
+			tracks[i] = new Track(store, store.indexOf(ids[i]), null);
+			tracks[i].album = albums[i];
+			tracks[i].artist = artists[i];
 		}
 		
-		c.close();
-		c = mBansheeDatabase.query(
-				DB.TABLE_TRACKS,
-				new String [] {DB.ALBUM_ID, "COUNT(" + DB.ID + ")"},
-				null, null, DB.ALBUM_ID, null, null);
-		
-		while (c.moveToNext()) {
-			mAlbumInfo.get(c.getLong(0)).trackCount = c.getInt(1);
+		return tracks;
+	}
+	
+	/**
+	 * Get sort key of a track title.<br>
+	 * <br>
+	 * Sorting by key gives the same order as {@link #getOrderedTracks()} (see {@link SortKey}).
+	 */
+	private static String getSortKey(String title) {
+		if ("".equals(title)) {
+			title = App.getContext().getString(R.string.unknown_track);
 		}
 		
-		for (Album album : mOrderedAlbumInfo) {
-			Artist artist = mArtistInfo.get(album.getArtistId());
+		return SortKey.of(title);
+	}
+	
+	/**
+	 * Swap in a database which was loaded in background (main thread).
+	 */
+	private static void publish(BansheeServer server, BansheeServer owner, int timestamp,
+			int generation, boolean replaced, Library library) {
+		mUpdating = false;
+		
+		if (library.isOpen()) {
+			owner.mDbTimestamp = timestamp;
+			BansheeServer.updateServer(owner);
 			
-			if (artist != null) {
-				artist.albumCount++;
+			if (generation == mGeneration) {
+				Library old = mLibrary.getAndSet(library);
+				
+				if (old.isOpen()) {
+					closeUnlessAcquired(old.mDatabase);
+				}
+			} else {
+				library.mDatabase.close();
 			}
+		} else if (replaced && generation == mGeneration) {
+			// database file is gone, don't keep the old one bound
+			close();
 		}
 		
-		c.close();
+		for (OnDatabaseUpdateListener listener : new ArrayList<OnDatabaseUpdateListener>(
+				mUpdateListeners)) {
+			listener.onDatabaseUpdated(server, library.isOpen());
+		}
 	}
 	
 	/**
-	 * Is database up to date?
-	 * 
-	 * @param server
-	 *            banshee server to check
-	 * @param timestamp
-	 *            timestamp returned by server
-	 * 
-	 * @return {@code true} if database exists and has the same timestamp
+	 * Close database which was replaced as current library (an acquired library closes it on
+	 * release).
 	 */
-	public static boolean isDatabaseUpToDate(BansheeServer server, long timestamp) {
+	private static void closeUnlessAcquired(SQLiteDatabase db) {
+		synchronized (mAcquired) {
+			if (!mAcquired.containsKey(db) && db.isOpen()) {
+				db.close();
+			}
+		}
+	}
+	
+	/**
+	 * Get the server whose database is used by the given one (servers on the same host share it).
+	 */
+	private static BansheeServer getDatabaseOwner(BansheeServer server) {
 		long id = server.mSameHostId;
 		BansheeServer same = BansheeServer.getServer(id);
 		
@@ -641,181 +2211,376 @@ public class BansheeDatabase {
 			// referenced server is dead, update that
 			server.mSameHostId = -1;
 			BansheeServer.updateServer(server);
-			id = server.getId();
+			return server;
 		} else if (id > 0) {
-			server = same;
-		} else {
-			id = server.getId();
-		}
-		
-		if (!new File(App.CACHE_PATH + id + App.DB_EXT).exists()) {
-			return false;
+			return same;
 		} else {
-			return timestamp <= server.mDbTimestamp;
+			return server;
 		}
 	}
 	
 	/**
-	 * Persist a new database for a banshee server.
+	 * Parse and apply delta on the database of the given library (called in background).
 	 * 
-	 * @param server
-	 *            banshee server for which will use the database
-	 * @param dbData
-	 *            database file as raw byte array
-	 * @param timestamp
-	 *            timestamp of database received from previous request
+	 * @param library
+	 *            library which is acquired for this call
+	 * @param delta
+	 *            delta response of server
 	 * 
-	 * @return {@code true} if database was updated successfully ({@link #open(BansheeServer)} is
-	 *         called automatically) otherwise {@code false} and no database is bound anymore (e.g.
-	 *         when given data doesn't represent a valid database)
+	 * @return result which should be published on the main thread or {@code null} if delta
+	 *         couldn't be applied
 	 */
-	public static boolean updateDatabase(BansheeServer server, byte [] dbData, int timestamp) {
-		if (server.getId() < 1) {
-			throw new IllegalArgumentException("server is not a valid added server");
-		}
+	private static DeltaResult applyDelta(Library library, byte [] delta) {
+		SQLiteDatabase db = library.mDatabase;
 		
-		long id = server.mSameHostId;
-		BansheeServer same = BansheeServer.getServer(id);
+		TrackStore tracks;
+		Set<Long> removed = new HashSet<Long>();
+		List<Album> albums = new ArrayList<Album>();
+		List<Artist> artists = new ArrayList<Artist>();
+		int timestamp;
 		
-		if (id > 0 && same == null) {
-			// referenced server is dead, update that
-			server.mSameHostId = -1;
-			BansheeServer.updateServer(server);
-			id = server.getId();
-		} else if (id < 1) {
-			id = server.getId();
-		} else {
-			server = same;
+		try {
+			timestamp = (int) Command.decodeInt(delta, 0);
+			int position = 4;
+			long count = Command.decodeInt(delta, position);
+			position += 4;
+			TrackStore.Builder builder = new TrackStore.Builder((int) count);
+			
+			for (long i = 0; i < count; i++) {
+				long id = Command.decodeInt(delta, position);
+				long artistId = Command.decodeInt(delta, position + 4);
+				long albumId = Command.decodeInt(delta, position + 8);
+				Object [] title = Command.decodeString(delta, position + 12);
+				position += 12 + (Integer) title[0];
+				int trackNumber = (int) Command.decodeInt(delta, position);
+				int duration = (int) Command.decodeInt(delta, position + 4);
+				short year = (short) Command.decodeShort(delta, position + 8);
+				Object [] genre = Command.decodeString(delta, position + 10);
+				position += 10 + (Integer) genre[0];
+				builder.add(id, artistId, albumId, ((String) title[1]).trim(), trackNumber,
+						duration, year, ((String) genre[1]).trim(), delta[position++]);
+			}
+			
+			tracks = builder.build();
+			count = Command.decodeInt(delta, position);
+			position += 4;
+			
+			for (long i = 0; i < count; i++, position += 4) {
+				removed.add(Command.decodeInt(delta, position));
+			}
+			
+			count = Command.decodeInt(delta, position);
+			position += 4;
+			
+			for (long i = 0; i < count; i++) {
+				Album a = new Album();
+				Object [] s;
+				
+				a.id = Command.decodeInt(delta, position);
+				a.artistId = Command.decodeInt(delta, position + 4);
+				s = Command.decodeString(delta, position + 8);
+				a.title = ((String) s[1]).trim();
+				position += 8 + (Integer) s[0];
+				s = Command.decodeString(delta, position);
+				a.artId = ((String) s[1]).trim();
+				position += (Integer) s[0];
+				albums.add(a);
+			}
+			
+			count = Command.decodeInt(delta, position);
+			position += 4;
+			
+			for (long i = 0; i < count; i++) {
+				Artist a = new Artist();
+				Object [] s;
+				
+				a.id = Command.decodeInt(delta, position);
+				s = Command.decodeString(delta, position + 4);
+				a.name = ((String) s[1]).trim();
+				position += 4 + (Integer) s[0];
+				artists.add(a);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			return null;
 		}
 		
+		Set<Long> obsoleteAlbums = new HashSet<Long>();
+		Set<Long> obsoleteArtists = new HashSet<Long>();
+		
+		db.beginTransaction();
+		
 		try {
-			close();
+			// albums and artists of the old tracks might be obsolete now
+			StringBuilder ids = new StringBuilder();
+			
+			for (int i = 0; i < tracks.size; i++) {
+				ids.append(ids.length() == 0 ? "" : ",").append(tracks.ids[i]);
+			}
+			
+			for (Long id : removed) {
+				ids.append(ids.length() == 0 ? "" : ",").append(id);
+			}
 			
-			File file = new File(App.CACHE_PATH + id + App.DB_EXT);
+			if (ids.length() != 0) {
+				Cursor c = db.query(DB.TABLE_TRACKS,
+						new String [] {DB.ALBUM_ID, DB.ARTIST_ID},
+						DB.ID + " IN (" + ids + ")", null, null, null, null);
+				
+				while (c.moveToNext()) {
+					obsoleteAlbums.add(c.getLong(0));
+					obsoleteArtists.add(c.getLong(1));
+				}
+				
+				c.close();
+			}
 			
-			file.getParentFile().mkdirs();
-			file.delete();
+			for (Long id : removed) {
+				db.delete(DB.TABLE_TRACKS, DB.ID + "=" + id, null);
+			}
 			
-			OutputStream os = new FileOutputStream(file);
-			os.write(dbData);
-			os.close();
+			for (int i = 0; i < tracks.size; i++) {
+				ContentValues v = new ContentValues();
+				v.put(DB.ID, tracks.ids[i]);
+				v.put(DB.ARTIST_ID, tracks.artistIds[i]);
+				v.put(DB.ALBUM_ID, tracks.albumIds[i]);
+				v.put(DB.TITLE, tracks.getTitle(i));
+				v.put(DB.TRACK_NUMBER, tracks.trackNumbers[i]);
+				v.put(DB.DURATION, tracks.durations[i]);
+				v.put(DB.YEAR, tracks.years[i]);
+				v.put(DB.GENRE, tracks.getGenre(i));
+				v.put(DB.RATING, tracks.ratings[i]);
+				db.replace(DB.TABLE_TRACKS, null, v);
+			}
 			
-			if (!open(server)) {
-				file.delete();
-				return false;
+			for (Album a : albums) {
+				ContentValues v = new ContentValues();
+				v.put(DB.ID, a.id);
+				v.put(DB.ARTIST_ID, a.artistId);
+				v.put(DB.TITLE, a.title);
+				v.put(DB.ART_ID, a.artId);
+				db.replace(DB.TABLE_ALBUMS, null, v);
 			}
 			
-			if (same == null) {
-				server.mDbTimestamp = timestamp;
-				BansheeServer.updateServer(server);
-			} else {
-				same.mDbTimestamp = timestamp;
-				BansheeServer.updateServer(same);
+			for (Artist a : artists) {
+				ContentValues v = new ContentValues();
+				v.put(DB.ID, a.id);
+				v.put(DB.NAME, a.name);
+				db.replace(DB.TABLE_ARTISTS, null, v);
 			}
 			
-			return true;
+			List<Long> changedTracks = new ArrayList<Long>(removed);
+			List<Long> changedAlbums = new ArrayList<Long>();
+			List<Long> changedArtists = new ArrayList<Long>();
+			
+			for (int i = 0; i < tracks.size; i++) {
+				changedTracks.add(tracks.ids[i]);
+			}
+			
+			for (Album a : albums) {
+				changedAlbums.add(a.id);
+			}
+			
+			for (Artist a : artists) {
+				changedArtists.add(a.id);
+			}
+			
+			updateIndex(db, tracks, removed, changedTracks, changedAlbums, changedArtists);
+			
+			obsoleteAlbums = deleteUnreferenced(db, DB.TABLE_ALBUMS, obsoleteAlbums,
+					"SELECT " + DB.ALBUM_ID + " FROM " + DB.TABLE_TRACKS);
+			obsoleteArtists = deleteUnreferenced(db, DB.TABLE_ARTISTS, obsoleteArtists,
+					"SELECT " + DB.ARTIST_ID + " FROM " + DB.TABLE_TRACKS
+					+ " UNION SELECT " + DB.ARTIST_ID + " FROM " + DB.TABLE_ALBUMS);
+			
+			db.setTransactionSuccessful();
 		} catch (Exception e) {
-			return false;
+			return null;
+		} finally {
+			db.endTransaction();
+		}
+		
+		DeltaResult result = new DeltaResult();
+		result.mTimestamp = timestamp;
+		result.mChanges = tracks.size + removed.size();
+		
+		if (library.isDbCacheReady()) {
+			result.mCache = updateDbCache(library.mCache, tracks, removed, albums, obsoleteAlbums,
+					artists, obsoleteArtists);
+			
+			if (timestamp > 0) {
+				// snapshot is keyed on the new timestamp, otherwise the next start rebuilds it
+				String path = db.getPath();
+				writeSnapshot(result.mCache, CacheSnapshot.getFile(path), timestamp,
+						new File(path).length());
+			}
 		}
+		
+		return result;
 	}
 	
 	/**
-	 * Open database for access.
-	 * 
-	 * @param server
-	 *            banshee server for which a database should be opened
-	 * 
-	 * @return {@code true} if database was opened and is ready for access, otherwise {@code false}
-	 *         (because there is no synchronized database)
+	 * Publish a delta which was applied in background (main thread).
 	 */
-	public static boolean open(BansheeServer server) {
-		mServer = null;
+	private static void publishDelta(BansheeServer server, Library library, DeltaResult result) {
+		Library current = mLibrary.get();
 		
-		if (server.getId() < 1) {
-			throw new IllegalArgumentException("server is not a valid added server");
+		if (result == null || current.mDatabase != library.mDatabase) {
+			// database was replaced or closed meanwhile
+			return;
 		}
 		
-		long id = server.mSameHostId;
-		BansheeServer same = BansheeServer.getServer(id);
+		BansheeServer owner = getDatabaseOwner(server);
+		owner.mDbTimestamp = result.mTimestamp;
+		BansheeServer.updateServer(owner);
 		
-		if (id > 0 && same == null) {
-			// referenced server is dead, update that
-			server.mSameHostId = -1;
-			BansheeServer.updateServer(server);
-		}
+		// cache which is loading in background might have read the old rows
+		mCacheGeneration++;
 		
-		if (id < 1) {
-			id = server.getId();
+		if (current.mCache == library.mCache && result.mCache != null) {
+			mLibrary.compareAndSet(current, current.withCache(result.mCache));
+		} else if (current.isDbCacheReady()) {
+			// cache was loaded meanwhile and might miss the changes
+			mLibrary.compareAndSet(current, current.withCache(null));
 		}
+	}
+	
+	/**
+	 * Delete rows which aren't referenced anymore.
+	 * 
+	 * @return IDs of deleted rows
+	 */
+	private static Set<Long> deleteUnreferenced(SQLiteDatabase db, String table, Set<Long> ids,
+			String references) {
+		Set<Long> deleted = new HashSet<Long>();
 		
-		close();
+		if (ids.isEmpty()) {
+			return deleted;
+		}
 		
-		File file = new File(App.CACHE_PATH + id + App.DB_EXT);
+		StringBuilder list = new StringBuilder();
 		
-		if (file.exists()) {
-			try {
-				mBansheeDatabase = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null,
-						SQLiteDatabase.NO_LOCALIZED_COLLATORS);
-			} catch (Exception e) {
-				mBansheeDatabase = null;
-				return false;
+		for (Long id : ids) {
+			if (list.length() != 0) {
+				list.append(',');
 			}
-		} else {
-			return false;
+			
+			list.append(id);
 		}
 		
-		try {
-			mBansheeDatabase.query(DB.TABLE_TRACKS, new String [] {DB.RATING},
-					null, null, null, null, null, "1");
-		} catch (Exception e) {
-			// upgrade - new column "rating" - add it if it is missing
-			mBansheeDatabase.execSQL("ALTER TABLE " + DB.TABLE_TRACKS
-					+ " ADD COLUMN " + DB.RATING + " INTEGER NOT NULL DEFAULT 0;");
+		String where = DB.ID + " IN (" + list + ") AND " + DB.ID + " NOT IN (" + references + ")";
+		Cursor c = db.query(table, new String [] {DB.ID}, where, null, null, null, null);
+		
+		while (c.moveToNext()) {
+			deleted.add(c.getLong(0));
 		}
 		
-		mServer = server;
+		c.close();
 		
-		return true;
-	}
-	
-	/**
-	 * Is there an open database?
-	 * 
-	 * @return {@code true} if a database is open and ready for access
-	 */
-	public static boolean isOpen() {
-		return mBansheeDatabase != null;
-	}
-	
-	/**
-	 * Force database close (if open).
-	 */
-	public static void close() {
-		if (isOpen()) {
-			mBansheeDatabase.close();
-			mBansheeDatabase = null;
-			mServer = null;
+		if (!deleted.isEmpty()) {
+			db.delete(table, where, null);
 		}
 		
-		mOrderedAlbumInfo = null;
-		mOrderedArtistInfo = null;
-		mOrderedTrackInfo = null;
-		mAlbumInfo = null;
-		mArtistInfo = null;
-		mTrackInfo = null;
+		return deleted;
 	}
 	
 	/**
-	 * Get the banshee server which was given to open the database.
-	 * 
-	 * @return banshee server or {@code null} when no database is open
+	 * Create a new memory cache with the affected entries updated after a delta was applied.
 	 */
-	public static BansheeServer getServer() {
-		return mServer;
+	private static DbCache updateDbCache(DbCache old, TrackStore tracks, Set<Long> removedTracks,
+			List<Album> albums, Set<Long> removedAlbums, List<Artist> artists,
+			Set<Long> removedArtists) {
+		Set<Long> trackIds = new HashSet<Long>(removedTracks);
+		Set<Long> albumIds = new HashSet<Long>(removedAlbums);
+		Set<Long> artistIds = new HashSet<Long>(removedArtists);
+		
+		for (int i = 0; i < tracks.size; i++) {
+			trackIds.add(tracks.ids[i]);
+		}
+		
+		for (Album a : albums) {
+			albumIds.add(a.id);
+		}
+		
+		for (Artist a : artists) {
+			artistIds.add(a.id);
+		}
+		
+		// track store is immutable, build a new one of the unchanged and the changed tracks
+		String unknownTrack = App.getContext().getString(R.string.unknown_track);
+		TrackStore.Builder builder = new TrackStore.Builder(old.mTracks.size + tracks.size);
+		
+		for (int i = 0; i < old.mTracks.size; i++) {
+			if (!trackIds.contains(old.mTracks.ids[i])) {
+				builder.add(old.mTracks, i);
+			}
+		}
+		
+		for (int i = 0; i < tracks.size; i++) {
+			String title = tracks.getTitle(i);
+			builder.add(tracks.ids[i], tracks.artistIds[i], tracks.albumIds[i],
+					"".equals(title) ? unknownTrack : title, tracks.trackNumbers[i],
+					tracks.durations[i], tracks.years[i], tracks.getGenre(i), tracks.ratings[i]);
+		}
+		
+		DbCache cache = new DbCache();
+		cache.mTracks = builder.build();
+		cache.mOrderedTracks = cache.mTracks.orderByTitle();
+		cache.mOrderedAlbumInfo = new ArrayList<Album>(old.mOrderedAlbumInfo.size());
+		cache.mAlbumInfo = new LongHashMap<Album>(old.mOrderedAlbumInfo.size());
+		cache.mOrderedArtistInfo = new ArrayList<Artist>(old.mOrderedArtistInfo.size());
+		cache.mArtistInfo = new LongHashMap<Artist>(old.mOrderedArtistInfo.size());
+		
+		// entries of the old cache might be pinned by readers, counts are set on copies
+		for (Album a : old.mOrderedAlbumInfo) {
+			if (!albumIds.contains(a.id)) {
+				cache.mOrderedAlbumInfo.add(a.copy());
+			}
+		}
+		
+		for (Artist a : old.mOrderedArtistInfo) {
+			if (!artistIds.contains(a.id)) {
+				cache.mOrderedArtistInfo.add(a.copy());
+			}
+		}
+		
+		for (Album a : albums) {
+			if (!removedAlbums.contains(a.id)) {
+				if ("".equals(a.title)) {
+					a.title = App.getContext().getString(R.string.unknown_album);
+				}
+				
+				a.sortKey = SortKey.of(a.title);
+				cache.mOrderedAlbumInfo.add(a);
+			}
+		}
+		
+		for (Artist a : artists) {
+			if (!removedArtists.contains(a.id)) {
+				if ("".equals(a.name)) {
+					a.name = App.getContext().getString(R.string.unknown_artist);
+				}
+				
+				a.sortKey = SortKey.of(a.name);
+				cache.mOrderedArtistInfo.add(a);
+			}
+		}
+		
+		for (Album a : cache.mOrderedAlbumInfo) {
+			cache.mAlbumInfo.put(a.id, a);
+		}
+		
+		for (Artist a : cache.mOrderedArtistInfo) {
+			cache.mArtistInfo.put(a.id, a);
+		}
+		
+		Collections.sort(cache.mOrderedAlbumInfo, ALBUM_ORDER);
+		Collections.sort(cache.mOrderedArtistInfo, ARTIST_ORDER);
+		
+		cache.link();
+		
+		return cache;
 	}
 	
-	// PRIVATE ====================================================================================
-	
 	/**
 	 * Get string from cursor.
 	 * 
@@ -849,7 +2614,7 @@ public class BansheeDatabase {
 	 * 
 	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
 	 */
-	private static class DB {
+	static class DB {
 		public static final String TABLE_TRACKS = "tracks";
 		public static final String TABLE_ARTISTS = "artists";
 		public static final String TABLE_ALBUMS = "albums";
@@ -865,5 +2630,10 @@ public class BansheeDatabase {
 		public static final String NAME = "name";
 		public static final String ART_ID = "artId";
 		public static final String TRACK_NUMBER = "trackNumber";
+		public static final String SORT_KEY = "sortKey";
+		
+		/** Attached side database with derived data. */
+		public static final String INDEX = "idx";
+		public static final String TABLE_SORT_KEYS = "sortKeys";
 	}
 }
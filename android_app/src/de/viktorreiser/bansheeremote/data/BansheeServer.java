@@ -254,10 +254,16 @@ public class BansheeServer {
 				if (dbServer.mSameHostId == server.mId) {
 					new File(App.CACHE_PATH + server.mId + App.DB_EXT).renameTo(
 							new File(App.CACHE_PATH + firstChild.mId + App.DB_EXT));
+					new File(App.CACHE_PATH + server.mId + App.SNAPSHOT_EXT).renameTo(
+							new File(App.CACHE_PATH + firstChild.mId + App.SNAPSHOT_EXT));
+					new File(App.CACHE_PATH + server.mId + App.INDEX_EXT).renameTo(
+							new File(App.CACHE_PATH + firstChild.mId + App.INDEX_EXT));
 				}
 				
 				if (dbServer.mId == server.mId) {
 					new File(App.CACHE_PATH + server.mId + App.DB_EXT).delete();
+					new File(App.CACHE_PATH + server.mId + App.SNAPSHOT_EXT).delete();
+					new File(App.CACHE_PATH + server.mId + App.INDEX_EXT).delete();
 				}
 				
 				for (int i = 0; i < childServers.size(); i++) {
@@ -271,6 +277,8 @@ public class BansheeServer {
 			}
 		} else {
 			new File(App.CACHE_PATH + server.mId + App.DB_EXT).delete();
+			new File(App.CACHE_PATH + server.mId + App.SNAPSHOT_EXT).delete();
+			new File(App.CACHE_PATH + server.mId + App.INDEX_EXT).delete();
 		}
 		
 		getDb().delete(DB.TABLE_NAME, DB.ID + "=" + server.mId + " OR "
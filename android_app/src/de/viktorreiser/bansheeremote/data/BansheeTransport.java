@@ -0,0 +1,946 @@
+package de.viktorreiser.bansheeremote.data;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import de.viktorreiser.bansheeremote.data.BansheeConnection.Command;
+import de.viktorreiser.toolbox.util.L;
+
+/**
+ * Transport which delivers requests to a banshee server.<br>
+ * <br>
+ * If enabled ({@link App#isPersistentConnection()}) a long-lived connection is kept open and every
+ * request is sent as length prefixed frame which carries a request ID. The connection is negotiated
+ * with an extended test request (request code {@code 0}). If the server doesn't understand it (older
+ * extension) the transport falls back to the one-shot mode which opens a socket per request.<br>
+ * <br>
+ * <b>Handshake</b>: {@code [0] [password ID (2)] [1] [client flags]} is answered with
+ * {@code [access] [version] [server flags]}. An older server answers with {@code [access]} only and
+ * closes the connection.<br>
+ * <b>Request frame</b>: {@code [length (4)] [request ID (4)] [request code] [parameters]}, where
+ * length counts request code and parameters.<br>
+ * <b>Response frame</b>: {@code [length (4)] [request ID (4)] [response]}, an empty response means
+ * that the request failed. The payload is read straight into an array of the announced length, so
+ * there's no intermediate buffering or copying, even for a database of several megabytes.<br>
+ * <br>
+ * If the server supports it ({@link #FLAG_STATUS_DELTA}) player status responses only contain the
+ * fields which changed since the previous status of the connection. The transport reconstructs the
+ * full status, so callers always get the complete status (followed by the changed mask, see
+ * {@link BansheeConnection.Command.PlayerStatus#decodeChanges(byte[])}).<br>
+ * <br>
+ * If the server supports it ({@link #FLAG_COMPRESSION}) large responses are deflated. The highest
+ * bit of the frame length marks a compressed response frame whose payload is
+ * {@code [length of response (4)] [deflated response]}. Responses are inflated transparently (even
+ * while they are streamed with {@link #download(int, byte[], int, OutputStream, ProgressListener)})
+ * and the saved bytes are counted by {@link CompressionStats}.<br>
+ * <br>
+ * A transport is not thread safe and should be used by a single request thread. Only
+ * {@link #close()} may be called from any thread.
+ * 
+ * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+ */
+class BansheeTransport {
+	
+	// PACKAGE ====================================================================================
+	
+	/** Version of framed protocol which is requested by handshake. */
+	static final int FRAMED_VERSION = 1;
+	
+	/** Server flag: batch requests ({@link BansheeConnection.Command#BATCH}) are supported. */
+	static final int FLAG_BATCH = 0x01;
+	
+	/** Server flag: player status subscription (stream request) is supported. */
+	static final int FLAG_STATUS_SUBSCRIPTION = 0x02;
+	
+	/** Server flag: player status responses are delta encoded on this connection. */
+	static final int FLAG_STATUS_DELTA = 0x04;
+	
+	/** Server flag: large responses are compressed on this connection. */
+	static final int FLAG_COMPRESSION = 0x08;
+	
+	/** Client flag: client is able to handle delta encoded player status responses. */
+	static final int CLIENT_FLAG_STATUS_DELTA = 0x01;
+	
+	/** Client flag: client is able to handle compressed responses. */
+	static final int CLIENT_FLAG_COMPRESSION = 0x02;
+	
+	// PRIVATE ====================================================================================
+	
+	private static final int HANDSHAKE_TIMEOUT = 3000;
+	private static final int FRAME_HEADER_SIZE = 8;
+	private static final int MAX_FRAME_SIZE = 128 * 1024 * 1024;
+	private static final int MIN_CHUNK_SIZE = 4 * 1024;
+	private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+	private static final int COMPRESSED_FRAME = 0x80000000;
+	
+	private final BansheeServer mServer;
+	private final CompressionStats mCompressionStats;
+	private volatile Socket mSocket;
+	private InputStream mInput;
+	private OutputStream mOutput;
+	private volatile boolean mClosed = false;
+	private boolean mFramedSupported = true;
+	private int mServerFlags = 0;
+	private int mNextRequestId = 1;
+	private int mStreamRequestId = 0;
+	private int mStreamRequestCode = 0;
+	private byte [] mStatus = null;
+	private long mDownloaded = 0;
+	
+	// PACKAGE ====================================================================================
+	
+	/**
+	 * Listener for download progress.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	static interface ProgressListener {
+		
+		/**
+		 * Called after every chunk of data which was written (on the request thread).
+		 * 
+		 * @param bytes
+		 *            amount of bytes which were written so far
+		 * @param total
+		 *            total size of response or {@code -1} if unknown (one-shot request)
+		 */
+		void onProgress(long bytes, long total);
+	}
+	
+	/**
+	 * Bytes which were saved by compressed responses (per request code).<br>
+	 * <br>
+	 * A single instance can be shared by several transports.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	static class CompressionStats {
+		
+		private final long [] mSaved = new long [256];
+		
+		
+		/**
+		 * Count a compressed response.
+		 * 
+		 * @param requestCode
+		 *            request code of response
+		 * @param compressed
+		 *            size of compressed response
+		 * @param length
+		 *            size of inflated response
+		 */
+		synchronized void record(int requestCode, long compressed, long length) {
+			int code = requestCode & 0xff;
+			mSaved[code] += length - compressed;
+			
+			L.d("response of request " + code + " inflated from " + compressed + " to " + length
+					+ " bytes (" + mSaved[code] + " bytes saved so far)");
+		}
+		
+		/**
+		 * Get bytes which were saved by compression for a request code.
+		 */
+		synchronized long getBytesSaved(int requestCode) {
+			return mSaved[requestCode & 0xff];
+		}
+	}
+	
+	
+	/**
+	 * Create transport for banshee server (no connection is established yet).
+	 * 
+	 * @param server
+	 *            banshee server to which requests should be delivered
+	 * @param compressionStats
+	 *            statistics which count the bytes saved by compressed responses
+	 */
+	BansheeTransport(BansheeServer server, CompressionStats compressionStats) {
+		mServer = server;
+		mCompressionStats = compressionStats;
+	}
+	
+	/**
+	 * Send request to server and get the response.
+	 * 
+	 * @param requestCode
+	 *            request code is taken from {@link BansheeConnection.Command} constant
+	 * @param params
+	 *            encoded parameters
+	 * @param timeout
+	 *            timeout for request in milliseconds
+	 * 
+	 * @return response as byte array or {@code null} if request failed
+	 */
+	byte [] request(int requestCode, byte [] params, int timeout) {
+		return request(new int [] {requestCode}, new byte [][] {params}, timeout)[0];
+	}
+	
+	/**
+	 * Send several requests to server and get their responses.<br>
+	 * <br>
+	 * On a framed connection all requests are written back-to-back before the responses are read
+	 * (pipelining), so they don't pay a full round trip each. The responses are matched by their
+	 * request ID. Otherwise the requests are just sent one after another.
+	 * 
+	 * @param requestCodes
+	 *            request codes which are taken from {@link BansheeConnection.Command} constants
+	 * @param params
+	 *            encoded parameters of each request
+	 * @param timeout
+	 *            timeout in milliseconds for each response
+	 * 
+	 * @return responses in order of the requests ({@code null} for every request which failed)
+	 */
+	byte [][] request(int [] requestCodes, byte [][] params, int timeout) {
+		byte [][] results = new byte [requestCodes.length][];
+		
+		if (mClosed) {
+			return results;
+		}
+		
+		if (!mFramedSupported || !App.isPersistentConnection()) {
+			disconnect();
+			requestOneShot(requestCodes, params, timeout, results);
+			return results;
+		}
+		
+		boolean reused = mSocket != null;
+		
+		try {
+			if (!reused && !connect()) {
+				requestOneShot(requestCodes, params, timeout, results);
+				return results;
+			}
+			
+			exchange(requestCodes, params, timeout, results);
+			return results;
+		} catch (IOException e) {
+			disconnect();
+			
+			if (!reused || mClosed || e instanceof SocketTimeoutException
+					|| hasResponse(results) || !isRetrySafe(requestCodes, params)) {
+				return results;
+			}
+		}
+		
+		// idle connection was dropped by the server (or network changed), try a fresh one
+		// - only pure queries are sent again because the server might have executed the rest
+		try {
+			if (!connect()) {
+				requestOneShot(requestCodes, params, timeout, results);
+				return results;
+			}
+			
+			exchange(requestCodes, params, timeout, results);
+		} catch (IOException e) {
+			disconnect();
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Send request to server and stream the response to an output.<br>
+	 * <br>
+	 * The response is never held in memory as a whole, it's written chunk by chunk as it's read
+	 * from the connection. This is meant for large responses like the database file.
+	 * 
+	 * @param requestCode
+	 *            request code is taken from {@link BansheeConnection.Command} constant
+	 * @param params
+	 *            encoded parameters
+	 * @param timeout
+	 *            timeout in milliseconds for every read from the connection
+	 * @param output
+	 *            output to which the response is written
+	 * @param listener
+	 *            download progress listener (might be {@code null})
+	 * 
+	 * @return amount of bytes written to output or {@code -1} if request failed (output might
+	 *         contain partial data then)
+	 */
+	long download(int requestCode, byte [] params, int timeout, OutputStream output,
+			ProgressListener listener) {
+		if (mClosed) {
+			return -1;
+		}
+		
+		mDownloaded = 0;
+		
+		if (!mFramedSupported || !App.isPersistentConnection()) {
+			disconnect();
+			return downloadOneShot(requestCode, params, timeout, output, listener);
+		}
+		
+		boolean reused = mSocket != null;
+		
+		try {
+			if (!reused && !connect()) {
+				return downloadOneShot(requestCode, params, timeout, output, listener);
+			}
+			
+			return exchangeDownload(requestCode, params, timeout, output, listener);
+		} catch (IOException e) {
+			disconnect();
+			
+			if (!reused || mClosed || e instanceof SocketTimeoutException || mDownloaded != 0) {
+				return -1;
+			}
+		}
+		
+		// idle connection was dropped by the server (nothing was written yet), try a fresh one
+		try {
+			if (!connect()) {
+				return downloadOneShot(requestCode, params, timeout, output, listener);
+			}
+			
+			return exchangeDownload(requestCode, params, timeout, output, listener);
+		} catch (IOException e) {
+			disconnect();
+			return -1;
+		}
+	}
+	
+	/**
+	 * Open a stream request on the framed connection.<br>
+	 * <br>
+	 * The server answers a stream request with any number of response frames which are read with
+	 * {@link #readStream(int)}. The transport can't be used for other requests after that, it
+	 * should be closed when the stream isn't needed anymore.
+	 * 
+	 * @param requestCode
+	 *            request code of stream request
+	 * @param params
+	 *            encoded parameters
+	 * 
+	 * @throws IOException
+	 *             connection failed or there's no framed connection
+	 */
+	void openStream(int requestCode, byte [] params) throws IOException {
+		if (mClosed || mSocket == null && (!mFramedSupported || !connect())) {
+			throw new IOException("framed connection not available");
+		}
+		
+		try {
+			mStreamRequestId = writeFrames(new int [] {requestCode}, new byte [][] {params},
+					HANDSHAKE_TIMEOUT);
+			mStreamRequestCode = requestCode;
+		} catch (IOException e) {
+			disconnect();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Read next response of the stream which was opened with {@link #openStream(int, byte[])}.
+	 * 
+	 * @param timeout
+	 *            maximum time to wait for the response in milliseconds
+	 * 
+	 * @return response (empty if the server rejected the stream request)
+	 * 
+	 * @throws IOException
+	 *             connection failed or timed out (connection is closed then)
+	 */
+	byte [] readStream(int timeout) throws IOException {
+		Socket socket = mSocket;
+		
+		if (socket == null) {
+			throw new IOException("stream not open");
+		}
+		
+		try {
+			byte [] header = new byte [FRAME_HEADER_SIZE];
+			socket.setSoTimeout(timeout);
+			readFully(mInput, header, 0, FRAME_HEADER_SIZE);
+			
+			if (readInt(header, 4) != mStreamRequestId) {
+				throw new IOException("corrupt stream frame");
+			}
+			
+			byte [] response = readFramePayload(header, mStreamRequestCode);
+			return mStreamRequestCode == BansheeConnection.STATUS_SUBSCRIPTION_CODE
+					? readStatus(response) : response;
+		} catch (IOException e) {
+			disconnect();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Might the server support a framed connection?
+	 * 
+	 * @return {@code false} if framed connection is disabled or the server is known to not
+	 *         support it
+	 */
+	boolean isFramedSupported() {
+		return mFramedSupported && App.isPersistentConnection();
+	}
+	
+	/**
+	 * Is the current connection a framed one?
+	 * 
+	 * @return {@code true} if a framed connection is established
+	 */
+	boolean isFramed() {
+		return mSocket != null;
+	}
+	
+	/**
+	 * Get capability flags which were reported by the server on handshake.<br>
+	 * <br>
+	 * A framed connection is established if there's none yet (and it's enabled and supported).
+	 * 
+	 * @return server flags or {@code 0} if there's no framed connection
+	 */
+	int getServerFlags() {
+		if (mSocket == null && mFramedSupported && !mClosed && App.isPersistentConnection()) {
+			try {
+				connect();
+			} catch (IOException e) {
+				disconnect();
+			}
+		}
+		
+		return mSocket != null ? mServerFlags : 0;
+	}
+	
+	/**
+	 * Close transport and any open connection (no further requests will be sent).
+	 */
+	void close() {
+		mClosed = true;
+		disconnect();
+	}
+	
+	/**
+	 * Read a response which is terminated by the end of the stream (one-shot request).<br>
+	 * <br>
+	 * Data is read straight into chunks which are never resized. Every chunk is as large as all
+	 * previous ones together (within limits), so there are few reads and allocations even for
+	 * large responses. The chunks are joined once at the end (a response which exactly fills the
+	 * first chunk is not copied at all).
+	 * 
+	 * @param is
+	 *            input stream of response
+	 * 
+	 * @return complete response
+	 * 
+	 * @throws IOException
+	 *             reading failed
+	 */
+	static byte [] readToEnd(InputStream is) throws IOException {
+		List<byte []> chunks = new ArrayList<byte []>();
+		byte [] chunk = new byte [MIN_CHUNK_SIZE];
+		int chunkLength = 0;
+		int total = 0;
+		int read;
+		
+		while (true) {
+			if (chunkLength == chunk.length) {
+				chunks.add(chunk);
+				chunk = new byte [Math.max(MIN_CHUNK_SIZE, Math.min(total, MAX_CHUNK_SIZE))];
+				chunkLength = 0;
+			}
+			
+			read = is.read(chunk, chunkLength, chunk.length - chunkLength);
+			
+			if (read < 0) {
+				break;
+			}
+			
+			chunkLength += read;
+			total += read;
+			
+			if (total > MAX_FRAME_SIZE) {
+				throw new IOException("response too large");
+			}
+		}
+		
+		if (chunks.isEmpty() && chunkLength == chunk.length) {
+			return chunk;
+		} else if (chunks.size() == 1 && chunkLength == 0) {
+			return chunks.get(0);
+		}
+		
+		byte [] response = new byte [total];
+		int position = 0;
+		
+		for (byte [] c : chunks) {
+			System.arraycopy(c, 0, response, position, c.length);
+			position += c.length;
+		}
+		
+		System.arraycopy(chunk, 0, response, position, chunkLength);
+		
+		return response;
+	}
+	
+	// PRIVATE ====================================================================================
+	
+	/**
+	 * Open a connection and negotiate the framed protocol.
+	 * 
+	 * @return {@code true} if framed connection is ready, {@code false} if server doesn't support
+	 *         it (connection is closed again)
+	 * 
+	 * @throws IOException
+	 *             connection failed or access was denied
+	 */
+	private boolean connect() throws IOException {
+		Socket socket = new Socket(mServer.getHost(), mServer.getPort());
+		mSocket = socket;
+		
+		socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+		socket.setTcpNoDelay(true);
+		mInput = socket.getInputStream();
+		mOutput = socket.getOutputStream();
+		
+		int passwordId = mServer.getPasswordId();
+		mOutput.write(new byte [] {0, (byte) passwordId, (byte) (passwordId >> 8),
+				(byte) FRAMED_VERSION, CLIENT_FLAG_STATUS_DELTA | CLIENT_FLAG_COMPRESSION});
+		mOutput.flush();
+		
+		int access = mInput.read();
+		
+		if (access != 1) {
+			throw new IOException(access == 0 ? "access denied" : "connection closed");
+		}
+		
+		int version = mInput.read();
+		int flags = mInput.read();
+		
+		if (version < 1 || flags < 0) {
+			// older server answered the plain test request and closed the connection
+			L.d("framed connection not supported by server, falling back to one-shot requests");
+			mFramedSupported = false;
+			disconnect();
+			return false;
+		}
+		
+		mServerFlags = flags;
+		mStatus = null;
+		
+		if (mClosed) {
+			disconnect();
+			throw new IOException("transport closed");
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Write request frames back-to-back and read the corresponding response frames.
+	 */
+	private void exchange(int [] requestCodes, byte [][] params, int timeout, byte [][] results)
+			throws IOException {
+		int count = requestCodes.length;
+		int firstRequestId = writeFrames(requestCodes, params, timeout);
+		byte [] header = new byte [FRAME_HEADER_SIZE];
+		
+		for (int i = 0; i < count; i++) {
+			readFully(mInput, header, 0, FRAME_HEADER_SIZE);
+			
+			int index = readInt(header, 4) - firstRequestId;
+			
+			if (index < 0 || index >= count || results[index] != null) {
+				throw new IOException("corrupt response frame");
+			}
+			
+			results[index] = readFramePayload(header, requestCodes[index]);
+			
+			if (requestCodes[index] == Command.PLAYER_STATUS.getCode()) {
+				results[index] = readStatus(results[index]);
+			}
+		}
+	}
+	
+	/**
+	 * Write a request frame and stream the payload of the response frame to the output.
+	 */
+	private long exchangeDownload(int requestCode, byte [] params, int timeout,
+			OutputStream output, ProgressListener listener) throws IOException {
+		int requestId = writeFrames(new int [] {requestCode}, new byte [][] {params}, timeout);
+		byte [] header = new byte [FRAME_HEADER_SIZE];
+		readFully(mInput, header, 0, FRAME_HEADER_SIZE);
+		
+		int length = readInt(header, 0);
+		boolean compressed = isCompressed(length);
+		
+		if (compressed) {
+			length &= ~COMPRESSED_FRAME;
+		}
+		
+		if (readInt(header, 4) != requestId || length < 0) {
+			throw new IOException("corrupt response frame");
+		}
+		
+		return compressed ? inflate(mInput, output, length, requestCode, listener)
+				: copy(mInput, output, length, listener);
+	}
+	
+	/**
+	 * Send a one-shot request and stream the response to the output.
+	 */
+	private long downloadOneShot(int requestCode, byte [] params, int timeout,
+			OutputStream output, ProgressListener listener) {
+		Socket socket = null;
+		
+		try {
+			socket = new Socket(mServer.getHost(), mServer.getPort());
+			socket.setSoTimeout(timeout);
+			
+			byte [] request = BansheeConnection.encodeRequest(mServer, requestCode, params);
+			socket.getOutputStream().write(request, 0, request.length);
+			
+			return copy(socket.getInputStream(), output, -1, listener);
+		} catch (IOException e) {
+			return -1;
+		} finally {
+			try {
+				socket.close();
+			} catch (Exception e) {
+			}
+		}
+	}
+	
+	/**
+	 * Copy response from input to output.
+	 * 
+	 * @param length
+	 *            length of response or {@code -1} if it's terminated by the end of the stream
+	 * 
+	 * @return amount of copied bytes
+	 */
+	private long copy(InputStream is, OutputStream os, long length, ProgressListener listener)
+			throws IOException {
+		byte [] buffer = new byte [DOWNLOAD_BUFFER_SIZE];
+		
+		while (length < 0 || mDownloaded < length) {
+			int read = is.read(buffer, 0, length < 0
+					? buffer.length : (int) Math.min(buffer.length, length - mDownloaded));
+			
+			if (read < 0) {
+				if (length < 0) {
+					break;
+				}
+				
+				throw new EOFException();
+			}
+			
+			os.write(buffer, 0, read);
+			mDownloaded += read;
+			
+			if (listener != null) {
+				listener.onProgress(mDownloaded, length);
+			}
+		}
+		
+		return mDownloaded;
+	}
+	
+	/**
+	 * Inflate a compressed response from input to output.
+	 * 
+	 * @param length
+	 *            length of compressed payload
+	 * 
+	 * @return amount of inflated bytes
+	 */
+	private long inflate(InputStream is, OutputStream os, int length, int requestCode,
+			ProgressListener listener) throws IOException {
+		byte [] input = new byte [DOWNLOAD_BUFFER_SIZE];
+		byte [] buffer = new byte [DOWNLOAD_BUFFER_SIZE];
+		
+		if (length < 4) {
+			throw new IOException("corrupt compressed response");
+		}
+		
+		readFully(is, input, 0, 4);
+		
+		int remaining = length - 4;
+		long total = readInt(input, 0) & 0xffffffffL;
+		Inflater inflater = new Inflater(true);
+		
+		try {
+			while (mDownloaded < total) {
+				if (inflater.needsInput()) {
+					if (remaining == 0) {
+						throw new IOException("corrupt compressed response");
+					}
+					
+					int read = is.read(input, 0, Math.min(input.length, remaining));
+					
+					if (read < 0) {
+						throw new EOFException();
+					}
+					
+					remaining -= read;
+					inflater.setInput(input, 0, read);
+				}
+				
+				int inflated = inflater.inflate(buffer, 0,
+						(int) Math.min(buffer.length, total - mDownloaded));
+				
+				if (inflated == 0 && (inflater.finished() || inflater.needsDictionary())) {
+					throw new IOException("corrupt compressed response");
+				}
+				
+				os.write(buffer, 0, inflated);
+				mDownloaded += inflated;
+				
+				if (listener != null && inflated != 0) {
+					listener.onProgress(mDownloaded, total);
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("corrupt compressed response");
+		} finally {
+			inflater.end();
+		}
+		
+		// keep the connection in sync, the frame might have trailing bytes
+		while (remaining > 0) {
+			int read = Math.min(input.length, remaining);
+			readFully(is, input, 0, read);
+			remaining -= read;
+		}
+		
+		mCompressionStats.record(requestCode, length, total);
+		return mDownloaded;
+	}
+	
+	/**
+	 * Inflate a compressed response payload.
+	 */
+	private byte [] inflate(byte [] payload, int requestCode) throws IOException {
+		int length = payload.length < 4 ? -1 : readInt(payload, 0);
+		
+		if (length < 0 || length > MAX_FRAME_SIZE) {
+			throw new IOException("corrupt compressed response");
+		}
+		
+		byte [] response = new byte [length];
+		Inflater inflater = new Inflater(true);
+		int position = 0;
+		
+		try {
+			inflater.setInput(payload, 4, payload.length - 4);
+			
+			while (position < length) {
+				int inflated = inflater.inflate(response, position, length - position);
+				
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput()
+						|| inflater.needsDictionary())) {
+					throw new IOException("corrupt compressed response");
+				}
+				
+				position += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("corrupt compressed response");
+		} finally {
+			inflater.end();
+		}
+		
+		mCompressionStats.record(requestCode, payload.length, length);
+		return response;
+	}
+	
+	/**
+	 * Does the frame length mark a compressed response?
+	 */
+	private boolean isCompressed(int frameLength) {
+		return (mServerFlags & FLAG_COMPRESSION) != 0 && (frameLength & COMPRESSED_FRAME) != 0;
+	}
+	
+	/**
+	 * Reconstruct full player status if response is delta encoded.<br>
+	 * <br>
+	 * Responses are applied in the order they were read, just as the server encoded them.
+	 */
+	private byte [] readStatus(byte [] response) throws IOException {
+		if ((mServerFlags & FLAG_STATUS_DELTA) == 0 || response.length == 0) {
+			return response;
+		}
+		
+		byte [] status = Command.PlayerStatus.applyDelta(mStatus, response);
+		
+		if (status == null) {
+			throw new IOException("corrupt player status delta");
+		}
+		
+		mStatus = status;
+		return status;
+	}
+	
+	/**
+	 * Write request frames back-to-back.
+	 * 
+	 * @return request ID of first frame (following frames have consecutive IDs)
+	 */
+	private int writeFrames(int [] requestCodes, byte [][] params, int timeout)
+			throws IOException {
+		int count = requestCodes.length;
+		int firstRequestId = mNextRequestId;
+		int frameSize = 0;
+		
+		for (int i = 0; i < count; i++) {
+			frameSize += FRAME_HEADER_SIZE + 1 + (params[i] == null ? 0 : params[i].length);
+		}
+		
+		byte [] frames = new byte [frameSize];
+		int position = 0;
+		
+		for (int i = 0; i < count; i++) {
+			int paramsLength = params[i] == null ? 0 : params[i].length;
+			
+			writeInt(frames, position, 1 + paramsLength);
+			writeInt(frames, position + 4, mNextRequestId++);
+			frames[position + FRAME_HEADER_SIZE] = (byte) requestCodes[i];
+			
+			if (paramsLength != 0) {
+				System.arraycopy(params[i], 0, frames, position + FRAME_HEADER_SIZE + 1,
+						paramsLength);
+			}
+			
+			position += FRAME_HEADER_SIZE + 1 + paramsLength;
+		}
+		
+		mSocket.setSoTimeout(timeout);
+		mOutput.write(frames, 0, frames.length);
+		mOutput.flush();
+		
+		return firstRequestId;
+	}
+	
+	/**
+	 * Read payload of a response frame whose header was already read (inflated if it's
+	 * compressed).
+	 */
+	private byte [] readFramePayload(byte [] header, int requestCode) throws IOException {
+		int length = readInt(header, 0);
+		boolean compressed = isCompressed(length);
+		
+		if (compressed) {
+			length &= ~COMPRESSED_FRAME;
+		}
+		
+		if (length < 0 || length > MAX_FRAME_SIZE) {
+			throw new IOException("corrupt response frame");
+		}
+		
+		byte [] response = new byte [length];
+		readFully(mInput, response, 0, length);
+		
+		return compressed ? inflate(response, requestCode) : response;
+	}
+	
+	/**
+	 * Send requests one-shot (a connection per request) one after another.
+	 */
+	private void requestOneShot(int [] requestCodes, byte [][] params, int timeout,
+			byte [][] results) {
+		for (int i = 0; i < requestCodes.length && !mClosed; i++) {
+			results[i] = BansheeConnection.sendRequest(mServer, requestCodes[i], params[i], timeout);
+		}
+	}
+	
+	/**
+	 * Can requests be sent again without side effects (queries only, no player control,
+	 * re-compression or playlist changes)?
+	 */
+	private static boolean isRetrySafe(int [] requestCodes, byte [][] params) {
+		for (int i = 0; i < requestCodes.length; i++) {
+			if (params[i] == null || params[i].length == 0) {
+				continue;
+			}
+			
+			int code = requestCodes[i];
+			
+			if (code == Command.COVER.getCode() || code == Command.SONG_INFO.getCode()) {
+				continue;
+			}
+			
+			if (code == Command.SYNC_DATABASE.getCode()
+					&& !Command.SyncDatabase.isCompression(params[i])) {
+				continue;
+			}
+			
+			if (code != Command.PLAYER_STATUS.getCode()) {
+				return false;
+			}
+			
+			// status request without any changes is a pure query
+			for (byte b : params[i]) {
+				if (b != 0) {
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	private static boolean hasResponse(byte [][] results) {
+		for (byte [] result : results) {
+			if (result != null) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Close the current connection (if any) without closing the transport.
+	 */
+	private void disconnect() {
+		Socket socket = mSocket;
+		mSocket = null;
+		
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	private static void readFully(InputStream is, byte [] buffer, int offset, int length)
+			throws IOException {
+		while (length > 0) {
+			int read = is.read(buffer, offset, length);
+			
+			if (read < 0) {
+				throw new EOFException();
+			}
+			
+			offset += read;
+			length -= read;
+		}
+	}
+	
+	private static void writeInt(byte [] buffer, int position, int value) {
+		buffer[position] = (byte) value;
+		buffer[position + 1] = (byte) (value >> 8);
+		buffer[position + 2] = (byte) (value >> 16);
+		buffer[position + 3] = (byte) (value >> 24);
+	}
+	
+	private static int readInt(byte [] buffer, int position) {
+		return (buffer[position] & 0xff)
+				| ((buffer[position + 1] & 0xff) << 8)
+				| ((buffer[position + 2] & 0xff) << 16)
+				| ((buffer[position + 3] & 0xff) << 24);
+	}
+}
@@ -0,0 +1,272 @@
+package de.viktorreiser.bansheeremote.data;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import de.viktorreiser.bansheeremote.data.BansheeConnection.Command;
+import de.viktorreiser.toolbox.util.L;
+
+/**
+ * Block level (rsync like) synchronization of the database file.<br>
+ * <br>
+ * The local database is split into blocks of a fixed size. A rolling checksum and a part of the MD5
+ * hash of each block is sent to the server. The server looks for those blocks in its compressed
+ * database and responds with instructions to rebuild it: literal data which is new and ranges of
+ * blocks which can be copied from the local file. The layout of the compressed database doesn't
+ * change much between two compressions, so most of the blocks are usually reused.<br>
+ * <br>
+ * The instructions are streamed to disk and the rebuilt file is verified against the MD5 hash of
+ * the server database before it can be persisted with
+ * {@link BansheeDatabase#updateDatabaseAsync(BansheeServer, int)}.
+ * 
+ * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+ */
+class BlockSync {
+	
+	// PRIVATE ====================================================================================
+	
+	private static final int MIN_BLOCK_SIZE = 1024;
+	private static final int MAX_BLOCK_SIZE = 256 * 1024;
+	/** Keeps the request below the receive buffer of the server (100 KB). */
+	private static final int MAX_BLOCKS = 8000;
+	private static final int SIGNATURE_SIZE = 12;
+	private static final int HEADER_SIZE = 20;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private final BansheeTransport mTransport;
+	private final File mBasis;
+	private final File mFile;
+	private int mBlockSize;
+	private int mBlockCount;
+	
+	// PACKAGE ====================================================================================
+	
+	/**
+	 * Create block synchronization.
+	 * 
+	 * @param transport
+	 *            transport which is used for the request
+	 * @param basis
+	 *            current local database file
+	 * @param file
+	 *            file to which the new database is written
+	 */
+	BlockSync(BansheeTransport transport, File basis, File file) {
+		mTransport = transport;
+		mBasis = basis;
+		mFile = file;
+	}
+	
+	/**
+	 * Rebuild database of server from the local one.
+	 * 
+	 * @param requestCode
+	 *            request code of database requests
+	 * @param timeout
+	 *            timeout for request in milliseconds
+	 * @param listener
+	 *            progress listener for the received instructions (might be {@code null})
+	 * 
+	 * @return size of rebuilt file or {@code -1} if server doesn't support it or the rebuilt file
+	 *         doesn't match
+	 */
+	long sync(int requestCode, int timeout, BansheeTransport.ProgressListener listener) {
+		File delta = new File(mFile.getPath() + ".delta");
+		
+		try {
+			byte [] params = encodeSignatures();
+			
+			if (params == null) {
+				return -1;
+			}
+			
+			mFile.getParentFile().mkdirs();
+			FileOutputStream output = new FileOutputStream(delta);
+			long length;
+			
+			try {
+				length = mTransport.download(requestCode, params, timeout, output, listener);
+			} finally {
+				output.close();
+			}
+			
+			if (length < HEADER_SIZE) {
+				// server doesn't support it or there's no database
+				return -1;
+			}
+			
+			long size = rebuild(delta);
+			
+			if (size < 0) {
+				L.d("database rebuilt from blocks doesn't match hash");
+				mFile.delete();
+			} else {
+				L.d("database rebuilt from blocks with " + length + " of " + size + " bytes sent");
+			}
+			
+			return size;
+		} catch (IOException e) {
+			mFile.delete();
+			return -1;
+		} finally {
+			delta.delete();
+		}
+	}
+	
+	// PRIVATE ====================================================================================
+	
+	private byte [] encodeSignatures() throws IOException {
+		long length = mBasis.length();
+		mBlockSize = MIN_BLOCK_SIZE;
+		
+		while (length / mBlockSize > MAX_BLOCKS) {
+			mBlockSize *= 2;
+		}
+		
+		mBlockCount = (int) (length / mBlockSize);
+		
+		if (mBlockSize > MAX_BLOCK_SIZE || mBlockCount == 0) {
+			return null;
+		}
+		
+		MessageDigest digest = getDigest();
+		byte [] signatures = new byte [mBlockCount * SIGNATURE_SIZE];
+		byte [] block = new byte [mBlockSize];
+		InputStream is = new BufferedInputStream(new FileInputStream(mBasis), BUFFER_SIZE);
+		
+		try {
+			for (int i = 0; i < mBlockCount; i++) {
+				readFully(is, block, mBlockSize);
+				
+				int position = i * SIGNATURE_SIZE;
+				int checksum = checksum(block, 0, mBlockSize);
+				signatures[position] = (byte) checksum;
+				signatures[position + 1] = (byte) (checksum >> 8);
+				signatures[position + 2] = (byte) (checksum >> 16);
+				signatures[position + 3] = (byte) (checksum >> 24);
+				System.arraycopy(digest.digest(block), 0, signatures, position + 4, 8);
+			}
+		} finally {
+			is.close();
+		}
+		
+		return Command.SyncDatabase.encodeBlockDelta(mBlockSize, mBlockCount, signatures);
+	}
+	
+	/**
+	 * Apply instructions of delta file to basis.
+	 * 
+	 * @return size of rebuilt file or {@code -1} if it doesn't match the hash
+	 */
+	private long rebuild(File delta) throws IOException {
+		MessageDigest digest = getDigest();
+		byte [] header = new byte [HEADER_SIZE];
+		byte [] buffer = new byte [Math.max(BUFFER_SIZE, mBlockSize)];
+		InputStream is = new BufferedInputStream(new FileInputStream(delta), BUFFER_SIZE);
+		RandomAccessFile basis = new RandomAccessFile(mBasis, "r");
+		FileOutputStream output = new FileOutputStream(mFile);
+		long written = 0;
+		
+		try {
+			readFully(is, header, HEADER_SIZE);
+			int operation;
+			
+			while ((operation = is.read()) != -1) {
+				readFully(is, buffer, 4);
+				long length = Command.decodeInt(buffer, 0);
+				
+				if (operation == 0) {
+					// literal data
+					while (length > 0) {
+						int count = (int) Math.min(length, buffer.length);
+						readFully(is, buffer, count);
+						digest.update(buffer, 0, count);
+						output.write(buffer, 0, count);
+						length -= count;
+						written += count;
+					}
+				} else {
+					// range of local blocks
+					long index = length;
+					readFully(is, buffer, 4);
+					long count = Command.decodeInt(buffer, 0);
+					
+					if (operation != 1 || index + count > mBlockCount) {
+						throw new IOException("corrupt block delta");
+					}
+					
+					basis.seek(index * mBlockSize);
+					
+					for (long i = 0; i < count; i++) {
+						basis.readFully(buffer, 0, mBlockSize);
+						digest.update(buffer, 0, mBlockSize);
+						output.write(buffer, 0, mBlockSize);
+						written += mBlockSize;
+					}
+				}
+			}
+			
+			output.getFD().sync();
+		} finally {
+			is.close();
+			basis.close();
+			output.close();
+		}
+		
+		byte [] hash = new byte [16];
+		System.arraycopy(header, 4, hash, 0, 16);
+		
+		if (written != Command.decodeInt(header, 0) || !Arrays.equals(hash, digest.digest())) {
+			return -1;
+		}
+		
+		return written;
+	}
+	
+	/**
+	 * Compute rolling checksum of a block (lower 16 bits are the sum of all bytes, upper 16 bits
+	 * are the sum of all those partial sums).
+	 */
+	private static int checksum(byte [] data, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		
+		for (int i = offset; i < offset + length; i++) {
+			a += data[i] & 0xff;
+			b += a;
+		}
+		
+		return ((b & 0xffff) << 16) | (a & 0xffff);
+	}
+	
+	private static MessageDigest getDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("MD5 not available");
+		}
+	}
+	
+	private static void readFully(InputStream is, byte [] buffer, int length) throws IOException {
+		int read = 0;
+		
+		while (read < length) {
+			int r = is.read(buffer, read, length - read);
+			
+			if (r == -1) {
+				throw new EOFException();
+			}
+			
+			read += r;
+		}
+	}
+}
@@ -0,0 +1,397 @@
+package de.viktorreiser.bansheeremote.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the database memory cache.<br>
+ * <br>
+ * The finished memory cache (sorted orders, counts and so on) is written next to the database file
+ * once it was built from the database. On the next start it's read back with a memory mapped read
+ * instead of querying, sorting and counting the whole database again.<br>
+ * <br>
+ * A snapshot belongs to the database timestamp (and database file size) it was written for and to
+ * the locale (it contains localized placeholders and sort keys), a snapshot of another version of
+ * the database is ignored and replaced. The file starts with a header (magic, format version,
+ * timestamp, file size, CRC32 of the content, locale) followed by primitive arrays (big endian,
+ * each prefixed with its length). Strings are written as a character pool with offsets.<br>
+ * <br>
+ * Increase {@link #VERSION} whenever the written content changes.
+ * 
+ * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+ */
+class CacheSnapshot {
+	
+	// PRIVATE ====================================================================================
+	
+	private static final int MAGIC = 0x42524D53;
+	private static final int VERSION = 2;
+	private static final int CHECKSUM_OFFSET = 24;
+	private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+	
+	// PACKAGE ====================================================================================
+	
+	/**
+	 * Sequential writer of a new snapshot.<br>
+	 * <br>
+	 * The snapshot is written to a temporary file which replaces the old snapshot on
+	 * {@link #commit()}, so there's never a partially written snapshot.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	static class Writer {
+		
+		private final File mFile;
+		private final File mTempFile;
+		private final CRC32 mChecksum = new CRC32();
+		private final DataOutputStream mOut;
+		
+		
+		private Writer(File file, long timestamp, long databaseLength) throws IOException {
+			mFile = file;
+			mTempFile = new File(file.getPath() + ".tmp");
+			mOut = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(
+					new FileOutputStream(mTempFile), mChecksum), 64 * 1024));
+			
+			mOut.writeInt(MAGIC);
+			mOut.writeInt(VERSION);
+			mOut.writeLong(timestamp);
+			mOut.writeLong(databaseLength);
+			mOut.writeInt(0); // checksum is filled in on commit
+			mOut.writeUTF(getLocale());
+			
+			// checksum covers the content only
+			mOut.flush();
+			mChecksum.reset();
+		}
+		
+		void writeInt(int value) throws IOException {
+			mOut.writeInt(value);
+		}
+		
+		void writeInts(int [] values) throws IOException {
+			mOut.writeInt(values.length);
+			
+			for (int value : values) {
+				mOut.writeInt(value);
+			}
+		}
+		
+		void writeLongs(long [] values) throws IOException {
+			mOut.writeInt(values.length);
+			
+			for (long value : values) {
+				mOut.writeLong(value);
+			}
+		}
+		
+		void writeShorts(short [] values) throws IOException {
+			mOut.writeInt(values.length);
+			
+			for (short value : values) {
+				mOut.writeShort(value);
+			}
+		}
+		
+		void writeBytes(byte [] values) throws IOException {
+			mOut.writeInt(values.length);
+			mOut.write(values);
+		}
+		
+		void writeChars(char [] values) throws IOException {
+			mOut.writeInt(values.length);
+			
+			for (char value : values) {
+				mOut.writeChar(value);
+			}
+		}
+		
+		void writeStrings(String [] values) throws IOException {
+			int [] offsets = new int [values.length + 1];
+			
+			for (int i = 0; i < values.length; i++) {
+				offsets[i + 1] = offsets[i] + values[i].length();
+			}
+			
+			char [] chars = new char [offsets[values.length]];
+			
+			for (int i = 0; i < values.length; i++) {
+				values[i].getChars(0, values[i].length(), chars, offsets[i]);
+			}
+			
+			writeInts(offsets);
+			writeChars(chars);
+		}
+		
+		/**
+		 * Finish snapshot and replace the old one.<br>
+		 * <br>
+		 * The content is synced to disk before the rename, otherwise a crash could leave a renamed
+		 * but empty snapshot behind.
+		 */
+		void commit() throws IOException {
+			mOut.close();
+			
+			RandomAccessFile file = new RandomAccessFile(mTempFile, "rw");
+			
+			try {
+				file.seek(CHECKSUM_OFFSET);
+				file.writeInt((int) mChecksum.getValue());
+				file.getFD().sync();
+			} finally {
+				file.close();
+			}
+			
+			if (!mTempFile.renameTo(mFile)) {
+				mTempFile.delete();
+				throw new IOException("couldn't replace snapshot " + mFile);
+			}
+		}
+		
+		/**
+		 * Drop the written snapshot (old snapshot is kept).
+		 */
+		void abort() {
+			try {
+				mOut.close();
+			} catch (IOException e) {
+			}
+			
+			mTempFile.delete();
+		}
+	}
+	
+	/**
+	 * Sequential reader of a memory mapped snapshot.<br>
+	 * <br>
+	 * Arrays are copied from the mapped file with bulk reads. A truncated or corrupt file results
+	 * in a {@link RuntimeException} (usually {@link BufferUnderflowException} or
+	 * {@link IllegalArgumentException}) which should be handled by dropping the snapshot.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	static class Reader {
+		
+		private final ByteBuffer mBuffer;
+		
+		
+		private Reader(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+		
+		int readInt() {
+			return mBuffer.getInt();
+		}
+		
+		int [] readInts() {
+			int [] values = new int [readLength(4)];
+			mBuffer.asIntBuffer().get(values);
+			skip(values.length * 4);
+			return values;
+		}
+		
+		long [] readLongs() {
+			long [] values = new long [readLength(8)];
+			mBuffer.asLongBuffer().get(values);
+			skip(values.length * 8);
+			return values;
+		}
+		
+		short [] readShorts() {
+			short [] values = new short [readLength(2)];
+			mBuffer.asShortBuffer().get(values);
+			skip(values.length * 2);
+			return values;
+		}
+		
+		byte [] readBytes() {
+			byte [] values = new byte [readLength(1)];
+			mBuffer.get(values);
+			return values;
+		}
+		
+		char [] readChars() {
+			char [] values = new char [readLength(2)];
+			mBuffer.asCharBuffer().get(values);
+			skip(values.length * 2);
+			return values;
+		}
+		
+		String [] readStrings() {
+			int [] offsets = readInts();
+			char [] chars = readChars();
+			String [] values = new String [Math.max(offsets.length - 1, 0)];
+			
+			if (offsets.length != 0
+					&& (offsets[0] != 0 || offsets[values.length] != chars.length)) {
+				throw new IllegalArgumentException("string pool doesn't match its offsets");
+			}
+			
+			for (int i = 0; i < values.length; i++) {
+				values[i] = new String(chars, offsets[i], offsets[i + 1] - offsets[i]);
+			}
+			
+			return values;
+		}
+		
+		/**
+		 * Read array length and check it against the remaining content.
+		 */
+		private int readLength(int elementSize) {
+			int length = mBuffer.getInt();
+			
+			if (length < 0 || (long) length * elementSize > mBuffer.remaining()) {
+				throw new BufferUnderflowException();
+			}
+			
+			return length;
+		}
+		
+		private void skip(int bytes) {
+			mBuffer.position(mBuffer.position() + bytes);
+		}
+	}
+	
+	
+	/**
+	 * Get snapshot file of a database file.
+	 * 
+	 * @param databasePath
+	 *            path of database file
+	 * 
+	 * @return snapshot file next to the database file
+	 */
+	static File getFile(String databasePath) {
+		if (databasePath.endsWith(App.DB_EXT)) {
+			databasePath = databasePath.substring(0, databasePath.length() - App.DB_EXT.length());
+		}
+		
+		return new File(databasePath + App.SNAPSHOT_EXT);
+	}
+	
+	/**
+	 * Open snapshot for reading.
+	 * 
+	 * @param file
+	 *            snapshot file
+	 * @param timestamp
+	 *            timestamp of database
+	 * @param databaseLength
+	 *            size of database file
+	 * 
+	 * @return reader positioned after the header or {@code null} if there's no snapshot for the
+	 *         given database
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the content doesn't match its checksum
+	 */
+	static Reader open(File file, long timestamp, long databaseLength) {
+		if (!file.exists()) {
+			return null;
+		}
+		
+		FileInputStream is = null;
+		
+		try {
+			is = new FileInputStream(file);
+			FileChannel channel = is.getChannel();
+			
+			// mapping stays valid after the channel is closed
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			
+			if (buffer.remaining() < CHECKSUM_OFFSET + 6 || buffer.getInt() != MAGIC
+					|| buffer.getInt() != VERSION || buffer.getLong() != timestamp
+					|| buffer.getLong() != databaseLength) {
+				return null;
+			}
+			
+			int checksum = buffer.getInt();
+			
+			if (!getLocale().equals(readUtf(buffer))) {
+				return null;
+			}
+			
+			if (checksum != checksum(buffer.slice())) {
+				throw new IllegalArgumentException("cache snapshot checksum mismatch");
+			}
+			
+			return new Reader(buffer);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			try {
+				is.close();
+			} catch (Exception e) {
+			}
+		}
+	}
+	
+	/**
+	 * Start a new snapshot.
+	 * 
+	 * @param file
+	 *            snapshot file
+	 * @param timestamp
+	 *            timestamp of database
+	 * @param databaseLength
+	 *            size of database file
+	 * 
+	 * @return writer which has already written the header
+	 * 
+	 * @throws IOException
+	 *             if the snapshot couldn't be created
+	 */
+	static Writer create(File file, long timestamp, long databaseLength) throws IOException {
+		return new Writer(file, timestamp, databaseLength);
+	}
+	
+	// PRIVATE ====================================================================================
+	
+	private static String getLocale() {
+		return Locale.getDefault().toString();
+	}
+	
+	/**
+	 * Read string written with {@link DataOutputStream#writeUTF(String)} (ASCII only, which is
+	 * enough for a locale name).
+	 */
+	private static String readUtf(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xffff;
+		
+		if (length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		
+		char [] chars = new char [length];
+		
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) (buffer.get() & 0xff);
+		}
+		
+		return new String(chars);
+	}
+	
+	private static int checksum(ByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+		byte [] chunk = new byte [Math.min(buffer.remaining(), CHECKSUM_BUFFER_SIZE)];
+		
+		while (buffer.hasRemaining()) {
+			int length = Math.min(buffer.remaining(), chunk.length);
+			buffer.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+		}
+		
+		return (int) crc.getValue();
+	}
+}
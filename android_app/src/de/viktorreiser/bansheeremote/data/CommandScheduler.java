@@ -0,0 +1,245 @@
+package de.viktorreiser.bansheeremote.data;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.viktorreiser.bansheeremote.data.BansheeConnection.Command;
+
+/**
+ * Priority queue for pending commands of a request lane.<br>
+ * <br>
+ * Every command has a priority class (lower value is more important). Entries of the same class are
+ * taken in the order they were added. Entries which were added with a coalescing key are indexed,
+ * so a request for the same key just updates the pending entry (constant time) instead of queuing a
+ * new one. An entry can have a deadline, it will be dropped (and reported as expired) if it wasn't
+ * taken until then.<br>
+ * <br>
+ * The scheduler is not thread safe, synchronize on it.
+ * 
+ * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+ */
+class CommandScheduler {
+	
+	// PRIVATE ====================================================================================
+	
+	private final Entry [] mHeads;
+	private final Entry [] mTails;
+	private final Map<Key, Entry> mIndex = new HashMap<Key, Entry>();
+	private int mSize = 0;
+	
+	// PACKAGE ====================================================================================
+	
+	/**
+	 * Pending request.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	static class Entry {
+		
+		public final Command command;
+		public byte [] params;
+		
+		private final int mPriority;
+		private final Key mKey;
+		private long mDeadline;
+		private Entry mPrevious;
+		private Entry mNext;
+		
+		
+		private Entry(Command command, byte [] params, int priority, Key key, long deadline) {
+			this.command = command;
+			this.params = params;
+			mPriority = priority;
+			mKey = key;
+			mDeadline = deadline;
+		}
+	}
+	
+	
+	/**
+	 * Create scheduler.
+	 * 
+	 * @param priorities
+	 *            amount of priority classes (valid priorities are {@code 0} to
+	 *            {@code priorities - 1})
+	 */
+	CommandScheduler(int priorities) {
+		mHeads = new Entry [priorities];
+		mTails = new Entry [priorities];
+	}
+	
+	/**
+	 * Add a request to the scheduler.
+	 * 
+	 * @param command
+	 *            request command
+	 * @param params
+	 *            encoded request parameters
+	 * @param priority
+	 *            priority class of request
+	 * @param coalescingKey
+	 *            if not {@code null} a pending request of the same command and key will be updated
+	 *            with the given parameters instead adding a new one
+	 * @param deadline
+	 *            {@link System#currentTimeMillis()} based time after which the request is
+	 *            dropped, {@code 0} if it should never expire
+	 * 
+	 * @return {@code true} if a new entry was added, {@code false} if a pending one was updated
+	 */
+	boolean add(Command command, byte [] params, int priority, Object coalescingKey,
+			long deadline) {
+		Key key = coalescingKey == null ? null : new Key(command, coalescingKey);
+		
+		if (key != null) {
+			Entry pending = mIndex.get(key);
+			
+			if (pending != null) {
+				pending.params = params;
+				pending.mDeadline = pending.mDeadline == 0 || deadline == 0
+						? 0 : Math.max(pending.mDeadline, deadline);
+				return false;
+			}
+		}
+		
+		Entry entry = new Entry(command, params, priority, key, deadline);
+		
+		if (key != null) {
+			mIndex.put(key, entry);
+		}
+		
+		if (mTails[priority] == null) {
+			mHeads[priority] = entry;
+		} else {
+			mTails[priority].mNext = entry;
+			entry.mPrevious = mTails[priority];
+		}
+		
+		mTails[priority] = entry;
+		mSize++;
+		
+		return true;
+	}
+	
+	/**
+	 * Get a pending request.
+	 * 
+	 * @param command
+	 *            request command
+	 * @param coalescingKey
+	 *            coalescing key which was given on {@link #add}
+	 * 
+	 * @return pending request or {@code null}
+	 */
+	Entry get(Command command, Object coalescingKey) {
+		return mIndex.get(new Key(command, coalescingKey));
+	}
+	
+	/**
+	 * Take the next request (oldest of the most important priority class).
+	 * 
+	 * @param now
+	 *            current {@link System#currentTimeMillis()} time
+	 * @param expired
+	 *            dropped requests whose deadline has passed are added to this list (might be
+	 *            {@code null})
+	 * 
+	 * @return next request or {@code null} if there's none
+	 */
+	Entry poll(long now, List<Entry> expired) {
+		for (int i = 0; i < mHeads.length; i++) {
+			while (mHeads[i] != null) {
+				Entry entry = mHeads[i];
+				remove(entry);
+				
+				if (entry.mDeadline == 0 || entry.mDeadline >= now) {
+					return entry;
+				} else if (expired != null) {
+					expired.add(entry);
+				}
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Get amount of pending requests.
+	 * 
+	 * @return amount of pending requests
+	 */
+	int size() {
+		return mSize;
+	}
+	
+	/**
+	 * Drop all pending requests.
+	 */
+	void clear() {
+		for (int i = 0; i < mHeads.length; i++) {
+			mHeads[i] = null;
+			mTails[i] = null;
+		}
+		
+		mIndex.clear();
+		mSize = 0;
+	}
+	
+	// PRIVATE ====================================================================================
+	
+	private void remove(Entry entry) {
+		if (entry.mPrevious == null) {
+			mHeads[entry.mPriority] = entry.mNext;
+		} else {
+			entry.mPrevious.mNext = entry.mNext;
+		}
+		
+		if (entry.mNext == null) {
+			mTails[entry.mPriority] = entry.mPrevious;
+		} else {
+			entry.mNext.mPrevious = entry.mPrevious;
+		}
+		
+		entry.mPrevious = null;
+		entry.mNext = null;
+		
+		if (entry.mKey != null) {
+			mIndex.remove(entry.mKey);
+		}
+		
+		mSize--;
+	}
+	
+	
+	/**
+	 * Coalescing index key (command and key).
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	private static class Key {
+		
+		private final Command mCommand;
+		private final Object mKey;
+		
+		
+		public Key(Command command, Object key) {
+			mCommand = command;
+			mKey = key;
+		}
+		
+		@Override
+		public int hashCode() {
+			return mCommand.hashCode() * 31 + mKey.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			
+			Key k = (Key) o;
+			return mCommand == k.mCommand && mKey.equals(k.mKey);
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package de.viktorreiser.bansheeremote.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import de.viktorreiser.bansheeremote.data.BansheeConnection.Command;
+import de.viktorreiser.toolbox.util.L;
+
+/**
+ * Resumable chunked download of the database file.<br>
+ * <br>
+ * The file is requested in chunks (offset and length) which carry an Adler-32 checksum. Only
+ * verified chunks are appended to the download file, so the file is always a valid prefix of the
+ * database. The file info (size, timestamp and MD5 hash of the database) is stored next to it. A
+ * later download of the same database just fetches the missing rest, a changed database starts
+ * over. The complete file is verified against the MD5 hash.<br>
+ * <br>
+ * Several chunk requests are pipelined if the transport has a framed connection.
+ * 
+ * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+ */
+class DatabaseDownload {
+	
+	// PRIVATE ====================================================================================
+	
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_RETRIES = 3;
+	private static final int FILE_INFO_SIZE = 24;
+	
+	private final BansheeTransport mTransport;
+	private final File mFile;
+	private final File mInfoFile;
+	
+	// PACKAGE ====================================================================================
+	
+	/**
+	 * Create download.
+	 * 
+	 * @param transport
+	 *            transport which is used for the chunk requests
+	 * @param file
+	 *            download file (partial download is resumed)
+	 */
+	DatabaseDownload(BansheeTransport transport, File file) {
+		mTransport = transport;
+		mFile = file;
+		mInfoFile = getInfoFile(file);
+	}
+	
+	/**
+	 * Drop a partial download (e.g. because the file is going to be downloaded as a whole).
+	 * 
+	 * @param file
+	 *            download file
+	 */
+	static void discard(File file) {
+		getInfoFile(file).delete();
+		file.delete();
+	}
+	
+	/**
+	 * Is there a partial download which could be resumed?
+	 * 
+	 * @param file
+	 *            download file
+	 */
+	static boolean isPending(File file) {
+		return getInfoFile(file).exists() && file.length() > 0;
+	}
+	
+	/**
+	 * Download missing chunks of database.
+	 * 
+	 * @param requestCode
+	 *            request code of database requests
+	 * @param fileInfo
+	 *            file info response of server
+	 * @param timeout
+	 *            timeout for chunk requests in milliseconds
+	 * @param window
+	 *            amount of chunk requests which are sent at once
+	 * @param listener
+	 *            download progress listener (might be {@code null})
+	 * 
+	 * @return size of downloaded file or {@code -1} if download failed (what was downloaded so far
+	 *         is kept unless database changed in the meantime)
+	 */
+	long download(int requestCode, byte [] fileInfo, int timeout, int window,
+			BansheeTransport.ProgressListener listener) {
+		long size = Command.SyncDatabase.decodeFileInfoSize(fileInfo);
+		int timestamp = Command.SyncDatabase.decodeFileInfoTimestamp(fileInfo);
+		FileOutputStream output = null;
+		
+		try {
+			long offset = prepare(fileInfo, size);
+			int retries = 0;
+			
+			if (offset > 0) {
+				L.d("resuming database download at " + offset + " of " + size + " bytes");
+			}
+			
+			output = new FileOutputStream(mFile, true);
+			
+			while (offset < size) {
+				int count = (int) Math.min(window, (size - offset + CHUNK_SIZE - 1) / CHUNK_SIZE);
+				int [] requestCodes = new int [count];
+				byte [][] params = new byte [count][];
+				
+				for (int i = 0; i < count; i++) {
+					requestCodes[i] = requestCode;
+					params[i] = Command.SyncDatabase.encodeChunk(offset + i * CHUNK_SIZE,
+							CHUNK_SIZE, timestamp);
+				}
+				
+				byte [][] results = mTransport.request(requestCodes, params, timeout);
+				boolean failed = false;
+				
+				for (int i = 0; i < count && !failed; i++) {
+					if (results[i] != null && results[i].length == 1) {
+						// database was recompressed on server, partial download is useless
+						L.d("database changed while downloading, dropping partial download");
+						output.close();
+						discard(mFile);
+						return -1;
+					}
+					
+					byte [] data = results[i] == null
+							? null : Command.SyncDatabase.decodeChunk(results[i]);
+					
+					if (data == null || data.length != Math.min(CHUNK_SIZE, size - offset)) {
+						failed = true;
+					} else {
+						output.write(data);
+						offset += data.length;
+					}
+				}
+				
+				output.getFD().sync();
+				
+				if (listener != null) {
+					listener.onProgress(offset, size);
+				}
+				
+				if (!failed) {
+					retries = 0;
+				} else if (++retries > MAX_RETRIES) {
+					L.d("database download interrupted at " + offset + " of " + size + " bytes");
+					return -1;
+				}
+			}
+			
+			output.close();
+			output = null;
+			
+			if (!Arrays.equals(computeHash(),
+					Command.SyncDatabase.decodeFileInfoHash(fileInfo))) {
+				L.d("downloaded database doesn't match hash");
+				discard(mFile);
+				return -1;
+			}
+			
+			mInfoFile.delete();
+			return size;
+		} catch (IOException e) {
+			return -1;
+		} finally {
+			try {
+				output.close();
+			} catch (Exception e) {
+			}
+		}
+	}
+	
+	// PRIVATE ====================================================================================
+	
+	private static File getInfoFile(File file) {
+		return new File(file.getPath() + ".info");
+	}
+	
+	/**
+	 * Check whether there's a partial download of the same database.
+	 * 
+	 * @return offset from which the download has to be continued
+	 */
+	private long prepare(byte [] fileInfo, long size) throws IOException {
+		if (mInfoFile.exists() && mFile.exists() && mFile.length() <= size) {
+			byte [] storedInfo = new byte [FILE_INFO_SIZE];
+			InputStream is = new FileInputStream(mInfoFile);
+			int read;
+			
+			try {
+				read = is.read(storedInfo);
+			} finally {
+				is.close();
+			}
+			
+			if (read == FILE_INFO_SIZE && equals(storedInfo, fileInfo, FILE_INFO_SIZE)) {
+				return mFile.length();
+			}
+		}
+		
+		discard(mFile);
+		mFile.getParentFile().mkdirs();
+		
+		FileOutputStream os = new FileOutputStream(mInfoFile);
+		
+		try {
+			os.write(fileInfo, 0, FILE_INFO_SIZE);
+			os.getFD().sync();
+		} finally {
+			os.close();
+		}
+		
+		return 0;
+	}
+	
+	private byte [] computeHash() throws IOException {
+		MessageDigest digest;
+		
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("MD5 not available");
+		}
+		
+		byte [] buffer = new byte [CHUNK_SIZE];
+		InputStream is = new FileInputStream(mFile);
+		int read;
+		
+		try {
+			while ((read = is.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			is.close();
+		}
+		
+		return digest.digest();
+	}
+	
+	private static boolean equals(byte [] a, byte [] b, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+}
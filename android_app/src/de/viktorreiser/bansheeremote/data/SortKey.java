@@ -0,0 +1,63 @@
+package de.viktorreiser.bansheeremote.data;
+
+/**
+ * Normalized sort keys of titles and names.<br>
+ * <br>
+ * Every character is case folded and accents of latin letters are stripped (e.g. "&Eacute;" and
+ * "e" are the same), so keys can be compared with a plain {@link String#compareTo(String)} and
+ * nothing has to be folded on each comparison. A key of {@link #of(String)} starts with a bucket
+ * character which puts titles which don't start with a letter before all others.
+ * 
+ * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+ */
+class SortKey {
+	
+	// PRIVATE ====================================================================================
+	
+	private static final char FOLD_START = '\u00c0';
+	
+	/** Folded characters of latin-1 supplement and latin extended-A (32 per line). */
+	private static final String FOLD = ""
+			+ "aaaaaa\u00e6ceeeeiiiidnooooo\u00d7ouuuuy\u00fe\u00df"
+			+ "aaaaaa\u00e6ceeeeiiiidnooooo\u00f7ouuuuy\u00fey"
+			+ "aaaaaaccccccccddddeeeeeeeeeegggg"
+			+ "gggghhhhiiiiiiiiii\u0133\u0133jjkk\u0138lllllll"
+			+ "lllnnnnnn\u0149\u014b\u014boooooo\u0153\u0153rrrrrrssssss"
+			+ "ssttttttuuuuuuuuuuuuwwyyyzzzzzzs";
+	
+	// PACKAGE ====================================================================================
+	
+	/**
+	 * Get sort key of title.
+	 * 
+	 * @param title
+	 *            title (not empty)
+	 * 
+	 * @return bucket character followed by the folded title
+	 */
+	static String of(String title) {
+		int length = title.length();
+		char [] key = new char [length + 1];
+		key[0] = Character.isLetter(title.charAt(0)) ? '1' : '0';
+		
+		for (int i = 0; i < length; i++) {
+			key[i + 1] = fold(title.charAt(i));
+		}
+		
+		return new String(key);
+	}
+	
+	/**
+	 * Fold character (lower case without accent).
+	 */
+	static char fold(char c) {
+		if (c < 0x80) {
+			return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+		} else if (c >= FOLD_START && c < FOLD_START + FOLD.length()) {
+			return FOLD.charAt(c - FOLD_START);
+		} else {
+			// same as String.compareToIgnoreCase()
+			return Character.toLowerCase(Character.toUpperCase(c));
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package de.viktorreiser.bansheeremote.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary of distinct strings.<br>
+ * <br>
+ * Every distinct value is stored once and gets a small integer ID (in order of first appearance).
+ * Columns with a few distinct values (like genres) can be stored as IDs and equal values read from
+ * different database rows end up as a single string instance.<br>
+ * <br>
+ * A dictionary is filled while a cache is built. This class is not thread safe.
+ * 
+ * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+ */
+class StringDictionary {
+	
+	// PRIVATE ====================================================================================
+	
+	private final Map<String, Integer> mIds = new HashMap<String, Integer>();
+	private final List<String> mValues = new ArrayList<String>();
+	
+	// PACKAGE ====================================================================================
+	
+	/**
+	 * Add value (if it's not in the dictionary yet).
+	 * 
+	 * @param value
+	 *            value
+	 * 
+	 * @return ID of value
+	 */
+	int add(String value) {
+		Integer id = mIds.get(value);
+		
+		if (id == null) {
+			id = mValues.size();
+			mIds.put(value, id);
+			mValues.add(value);
+		}
+		
+		return id;
+	}
+	
+	/**
+	 * Get the dictionary instance of a value (value is added if needed).
+	 * 
+	 * @param value
+	 *            value
+	 * 
+	 * @return equal value which is shared by all callers
+	 */
+	String intern(String value) {
+		return mValues.get(add(value));
+	}
+	
+	/**
+	 * Get value of ID.
+	 */
+	String get(int id) {
+		return mValues.get(id);
+	}
+	
+	/**
+	 * Get amount of distinct values.
+	 */
+	int size() {
+		return mValues.size();
+	}
+	
+	/**
+	 * Get all values (index is the ID of a value).
+	 */
+	String [] toArray() {
+		return mValues.toArray(new String [mValues.size()]);
+	}
+}
@@ -0,0 +1,531 @@
+package de.viktorreiser.bansheeremote.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import de.viktorreiser.bansheeremote.data.BansheeDatabase.DB;
+import de.viktorreiser.bansheeremote.data.BansheeDatabase.Library;
+import de.viktorreiser.bansheeremote.data.BansheeDatabase.Track;
+import de.viktorreiser.toolbox.util.AndroidUtils;
+
+/**
+ * Full text search of tracks by title, artist name, album title and genre.<br>
+ * <br>
+ * A full text index (FTS table) is built in the side database of a synchronized database (see
+ * {@link BansheeDatabase}) and it's kept up to date when a delta is applied. Indexed text is
+ * folded (see {@link SortKey}), so search is case and accent insensitive. If SQLite doesn't
+ * support full text search (or the index isn't built yet), a sorted word index is built in memory
+ * on the first search instead.<br>
+ * <br>
+ * Every word of a query is treated as prefix (search as you type) and a track has to match all of
+ * them. Results are ranked by the fields in which the words were found (title before artist before
+ * album before genre). Queries run on a background thread and only the result of the latest query
+ * is delivered.
+ * 
+ * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+ */
+public class TrackSearch {
+	
+	// PRIVATE ====================================================================================
+	
+	private static final String TABLE = "tracks_search";
+	private static final String INDEX_TABLE = DB.INDEX + "." + TABLE;
+	private static final String [] FIELDS = {"title", "artist", "album", "genre"};
+	private static final int [] FIELD_WEIGHTS = {8, 4, 2, 1};
+	private static final int MAX_RESULTS = 100;
+	private static final int CANCEL_CHECK_INTERVAL = 256;
+	
+	private static final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private static Handler mSearchHandler;
+	private static volatile int mSequence = 0;
+	
+	/** Best match first. */
+	private static final Comparator<Match> RANKING = new Comparator<Match>() {
+		@Override
+		public int compare(Match lhs, Match rhs) {
+			return lhs.mScore != rhs.mScore
+					? rhs.mScore - lhs.mScore : lhs.mTitle.compareTo(rhs.mTitle);
+		}
+	};
+	
+	// search thread only
+	private static SQLiteDatabase mCheckedDatabase;
+	private static boolean mHasIndex;
+	private static WordIndex mWordIndex;
+	
+	// PUBLIC =====================================================================================
+	
+	/**
+	 * Listener for search results.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	public static interface OnSearchListener {
+		
+		/**
+		 * Called on the main thread with the result of the latest query.
+		 * 
+		 * @param query
+		 *            query
+		 * @param tracks
+		 *            ranked tracks (album and artist are resolved already)
+		 */
+		void onSearchResult(String query, Track [] tracks);
+	}
+	
+	
+	/**
+	 * Search tracks in background.<br>
+	 * <br>
+	 * A pending query is dropped when a new one is given, so this can be called on each keystroke.
+	 * The library is acquired until the query is done, so it's not closed in the middle of it.
+	 * 
+	 * @param library
+	 *            library whose database is searched
+	 * @param query
+	 *            words to search for
+	 * @param listener
+	 *            listener which gets the result (not called if query was superseded or library
+	 *            has no open database)
+	 */
+	public static void search(final Library library, final String query,
+			final OnSearchListener listener) {
+		final int sequence = ++mSequence;
+		final int generation = BansheeDatabase.getGeneration();
+		final String [] terms = tokenize(query);
+		
+		if (!library.isOpen()) {
+			return;
+		}
+		
+		if (terms.length == 0) {
+			listener.onSearchResult(query, new Track [0]);
+			return;
+		}
+		
+		if (mSearchHandler == null) {
+			HandlerThread thread = new HandlerThread("TrackSearch");
+			thread.start();
+			mSearchHandler = new Handler(thread.getLooper());
+		}
+		
+		library.acquire();
+		
+		mSearchHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				SQLiteDatabase db = library.getDatabase();
+				final Track [] tracks;
+				
+				try {
+					long [] ids = sequence != mSequence
+							? null : find(db, generation, terms, sequence);
+					
+					if (ids == null) {
+						return;
+					}
+					
+					tracks = BansheeDatabase.getUncachedTracks(db, ids);
+				} finally {
+					library.release();
+					
+					if (!db.isOpen()) {
+						// library was replaced, don't keep anything of its database
+						mCheckedDatabase = null;
+						mWordIndex = null;
+					}
+				}
+				
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (sequence == mSequence) {
+							listener.onSearchResult(query, tracks);
+						}
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Drop pending query (its result won't be delivered).
+	 */
+	public static void cancel() {
+		mSequence++;
+	}
+	
+	// PACKAGE ====================================================================================
+	
+	/**
+	 * Build full text index if it's missing and supported.
+	 * 
+	 * @param db
+	 *            database whose side database is built (in the same transaction)
+	 */
+	static void buildIndex(SQLiteDatabase db) {
+		if (!AndroidUtils.doesSQLiteSupportFTS3() || hasIndex(db)) {
+			return;
+		}
+		
+		db.execSQL("CREATE VIRTUAL TABLE " + INDEX_TABLE + " USING "
+				+ (AndroidUtils.doesSQLiteSupportFTS4() ? "fts4" : "fts3")
+				+ " (" + FIELDS[0] + ", " + FIELDS[1] + ", " + FIELDS[2] + ", " + FIELDS[3]
+				+ ")");
+		insertRows(db, "");
+	}
+	
+	/**
+	 * Update full text index after rows were changed (has to be called in the same transaction).
+	 * 
+	 * @param db
+	 *            database
+	 * @param tracks
+	 *            IDs of changed and removed tracks
+	 * @param albums
+	 *            IDs of changed albums
+	 * @param artists
+	 *            IDs of changed artists
+	 */
+	static void updateIndex(SQLiteDatabase db, Collection<Long> tracks, Collection<Long> albums,
+			Collection<Long> artists) {
+		if (!hasIndex(db)) {
+			return;
+		}
+		
+		String changed = "t." + DB.ID + " IN (" + join(tracks) + ")"
+				+ " OR t." + DB.ALBUM_ID + " IN (" + join(albums) + ")"
+				+ " OR t." + DB.ARTIST_ID + " IN (" + join(artists) + ")";
+		
+		db.execSQL("DELETE FROM " + INDEX_TABLE + " WHERE docid IN (" + join(tracks) + ")"
+				+ " OR docid IN (SELECT t." + DB.ID + " FROM " + DB.TABLE_TRACKS + " AS t"
+				+ " WHERE " + changed + ")");
+		insertRows(db, " WHERE " + changed);
+	}
+	
+	// PRIVATE ====================================================================================
+	
+	/**
+	 * Sorted word index in memory (if SQLite doesn't support full text search).
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	private static class WordIndex {
+		
+		private SQLiteDatabase mDatabase;
+		private int mGeneration;
+		private long [] mIds;
+		private String [][] mFields;
+		private String [] mWords;
+		private int [][] mRows;
+		
+		
+		WordIndex(SQLiteDatabase db, int generation) {
+			mDatabase = db;
+			mGeneration = generation;
+			
+			Cursor c = db.rawQuery(getRowQuery(""), null);
+			Map<String, List<Integer>> words = new HashMap<String, List<Integer>>();
+			mIds = new long [c.getCount()];
+			mFields = new String [mIds.length][];
+			
+			for (int row = 0; c.moveToNext(); row++) {
+				mIds[row] = c.getLong(0);
+				mFields[row] = getFields(c);
+				
+				for (String field : mFields[row]) {
+					for (String word : field.split(" ")) {
+						List<Integer> rows = words.get(word);
+						
+						if (word.length() == 0) {
+							continue;
+						} else if (rows == null) {
+							rows = new ArrayList<Integer>(1);
+							words.put(word, rows);
+						}
+						
+						if (rows.isEmpty() || rows.get(rows.size() - 1) != row) {
+							rows.add(row);
+						}
+					}
+				}
+			}
+			
+			c.close();
+			
+			mWords = words.keySet().toArray(new String [words.size()]);
+			mRows = new int [mWords.length][];
+			Arrays.sort(mWords);
+			
+			for (int i = 0; i < mWords.length; i++) {
+				List<Integer> rows = words.get(mWords[i]);
+				mRows[i] = new int [rows.size()];
+				
+				for (int j = 0; j < mRows[i].length; j++) {
+					mRows[i][j] = rows.get(j);
+				}
+			}
+		}
+		
+		/**
+		 * Find rows which contain a word for each term (as prefix).
+		 */
+		BitSet find(String [] terms) {
+			BitSet result = null;
+			
+			for (String term : terms) {
+				BitSet matches = new BitSet(mIds.length);
+				int i = Arrays.binarySearch(mWords, term);
+				
+				// all words with the term as prefix follow each other
+				for (i = i < 0 ? -i - 1 : i; i < mWords.length && mWords[i].startsWith(term); i++) {
+					for (int row : mRows[i]) {
+						matches.set(row);
+					}
+				}
+				
+				if (result == null) {
+					result = matches;
+				} else {
+					result.and(matches);
+				}
+			}
+			
+			return result;
+		}
+	}
+	
+	/**
+	 * Matched track with its rank.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	private static class Match {
+		
+		private long mId;
+		private String mTitle;
+		private int mScore;
+		
+		
+		Match(long id, String [] fields, String [] terms) {
+			mId = id;
+			mTitle = fields[0];
+			mScore = rank(fields, terms);
+		}
+	}
+	
+	
+	/**
+	 * Find IDs of best matching tracks (search thread).<br>
+	 * <br>
+	 * Every candidate is ranked and only the best ones are kept, a limit on the candidates would
+	 * cut them in index order before they were ranked.
+	 * 
+	 * @return ranked IDs or {@code null} if query was superseded meanwhile
+	 */
+	private static long [] find(SQLiteDatabase db, int generation, String [] terms,
+			int sequence) {
+		if (db != mCheckedDatabase || !mHasIndex) {
+			// index might be built in background meanwhile
+			mCheckedDatabase = db;
+			mHasIndex = hasIndex(db);
+		}
+		
+		// worst of the best matches on top
+		PriorityQueue<Match> best = new PriorityQueue<Match>(MAX_RESULTS + 1,
+				Collections.reverseOrder(RANKING));
+		
+		if (mHasIndex) {
+			StringBuilder match = new StringBuilder();
+			
+			for (String term : terms) {
+				match.append(match.length() == 0 ? "" : " ").append(term).append('*');
+			}
+			
+			Cursor c = db.rawQuery("SELECT docid, " + FIELDS[0] + ", " + FIELDS[1] + ", "
+					+ FIELDS[2] + ", " + FIELDS[3] + " FROM " + INDEX_TABLE + " WHERE " + TABLE
+					+ " MATCH ?", new String [] {match.toString()});
+			
+			try {
+				for (int i = 1; c.moveToNext(); i++) {
+					if (i % CANCEL_CHECK_INTERVAL == 0 && sequence != mSequence) {
+						return null;
+					}
+					
+					offer(best, new Match(c.getLong(0), new String [] {c.getString(1),
+							c.getString(2), c.getString(3), c.getString(4)}, terms));
+				}
+			} finally {
+				c.close();
+			}
+		} else {
+			if (mWordIndex == null || mWordIndex.mDatabase != db
+					|| mWordIndex.mGeneration != generation) {
+				// drop the old index before the new one is built
+				mWordIndex = null;
+				mWordIndex = new WordIndex(db, generation);
+			}
+			
+			BitSet rows = mWordIndex.find(terms);
+			
+			for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+				offer(best, new Match(mWordIndex.mIds[row], mWordIndex.mFields[row], terms));
+			}
+		}
+		
+		Match [] ranked = best.toArray(new Match [best.size()]);
+		Arrays.sort(ranked, RANKING);
+		
+		long [] ids = new long [ranked.length];
+		
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = ranked[i].mId;
+		}
+		
+		return ids;
+	}
+	
+	/**
+	 * Keep match if it's one of the {@link #MAX_RESULTS} best.
+	 */
+	private static void offer(PriorityQueue<Match> best, Match match) {
+		if (best.size() < MAX_RESULTS) {
+			best.add(match);
+		} else if (RANKING.compare(match, best.peek()) < 0) {
+			best.poll();
+			best.add(match);
+		}
+	}
+	
+	/**
+	 * Rank matched fields (every term counts with the weight of the best field it's found in).
+	 */
+	private static int rank(String [] fields, String [] terms) {
+		int score = 0;
+		
+		for (String term : terms) {
+			for (int i = 0; i < fields.length; i++) {
+				if (fields[i].startsWith(term) || fields[i].indexOf(" " + term) >= 0) {
+					score += FIELD_WEIGHTS[i];
+					break;
+				}
+			}
+		}
+		
+		// title which starts like the query is the best match
+		if (fields[0].startsWith(terms[0])) {
+			score += FIELD_WEIGHTS[0];
+		}
+		
+		return score;
+	}
+	
+	private static boolean hasIndex(SQLiteDatabase db) {
+		Cursor c = db.rawQuery("SELECT name FROM " + DB.INDEX + ".sqlite_master"
+				+ " WHERE type='table' AND name=?", new String [] {TABLE});
+		boolean exists = c.moveToFirst();
+		c.close();
+		
+		return exists;
+	}
+	
+	/**
+	 * Insert folded text of tracks into full text index.
+	 */
+	private static void insertRows(SQLiteDatabase db, String where) {
+		SQLiteStatement insert = db.compileStatement("INSERT INTO " + INDEX_TABLE + " (docid, "
+				+ FIELDS[0] + ", " + FIELDS[1] + ", " + FIELDS[2] + ", " + FIELDS[3]
+				+ ") VALUES (?, ?, ?, ?, ?)");
+		Cursor c = db.rawQuery(getRowQuery(where), null);
+		
+		try {
+			while (c.moveToNext()) {
+				String [] fields = getFields(c);
+				insert.bindLong(1, c.getLong(0));
+				
+				for (int i = 0; i < fields.length; i++) {
+					insert.bindString(i + 2, fields[i]);
+				}
+				
+				insert.execute();
+			}
+		} finally {
+			c.close();
+			insert.close();
+		}
+	}
+	
+	private static String getRowQuery(String where) {
+		return "SELECT t." + DB.ID + ", t." + DB.TITLE + ", a." + DB.NAME + ", l." + DB.TITLE
+				+ ", t." + DB.GENRE
+				+ " FROM " + DB.TABLE_TRACKS + " AS t"
+				+ " LEFT JOIN " + DB.TABLE_ARTISTS + " AS a ON a." + DB.ID + "=t." + DB.ARTIST_ID
+				+ " LEFT JOIN " + DB.TABLE_ALBUMS + " AS l ON l." + DB.ID + "=t." + DB.ALBUM_ID
+				+ where;
+	}
+	
+	/**
+	 * Get normalized fields of a row of {@link #getRowQuery(String)}.
+	 */
+	private static String [] getFields(Cursor c) {
+		String [] fields = new String [FIELDS.length];
+		
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = normalize(c.isNull(i + 1) ? "" : c.getString(i + 1));
+		}
+		
+		return fields;
+	}
+	
+	/**
+	 * Fold text and separate its words by a single space.
+	 */
+	private static String normalize(String text) {
+		StringBuilder s = new StringBuilder(text.length());
+		
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			
+			if (Character.isLetterOrDigit(c)) {
+				s.append(SortKey.fold(c));
+			} else if (s.length() != 0 && s.charAt(s.length() - 1) != ' ') {
+				s.append(' ');
+			}
+		}
+		
+		if (s.length() != 0 && s.charAt(s.length() - 1) == ' ') {
+			s.setLength(s.length() - 1);
+		}
+		
+		return s.toString();
+	}
+	
+	private static String [] tokenize(String query) {
+		String normalized = normalize(query);
+		return normalized.length() == 0 ? new String [0] : normalized.split(" ");
+	}
+	
+	private static String join(Collection<Long> ids) {
+		StringBuilder s = new StringBuilder();
+		
+		for (Long id : ids) {
+			s.append(s.length() == 0 ? "" : ",").append(id);
+		}
+		
+		return s.toString();
+	}
+}
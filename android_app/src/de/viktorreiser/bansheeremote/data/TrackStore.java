@@ -0,0 +1,511 @@
+package de.viktorreiser.bansheeremote.data;
+
+import java.io.IOException;
+
+import de.viktorreiser.toolbox.util.LongHashMap;
+
+/**
+ * Column based storage of tracks.<br>
+ * <br>
+ * Every track attribute is kept in its own primitive array (one entry per row). Titles are stored
+ * in a single shared character pool (next to their folded sort keys, see {@link SortKey}) and
+ * genres are dictionary encoded (see {@link StringDictionary}), so a track doesn't cost a single
+ * object. {@link BansheeDatabase.Track} is just a view on a row.<br>
+ * <br>
+ * Rows are ordered by track ID, so a track is found with a binary search. A store is never
+ * modified after it was built.
+ * 
+ * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+ */
+class TrackStore {
+	
+	// PRIVATE ====================================================================================
+	
+	private final int [] mTitleOffsets;
+	private final char [] mTitles;
+	private final char [] mSortKeys;
+	
+	// PACKAGE ====================================================================================
+	
+	final int size;
+	final long [] ids;
+	final long [] artistIds;
+	final long [] albumIds;
+	final int [] trackNumbers;
+	final int [] durations;
+	final short [] years;
+	final byte [] ratings;
+	final int [] genres;
+	final String [] genreDictionary;
+	
+	/**
+	 * Builder for a track store.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	static class Builder {
+		
+		private int mSize = 0;
+		private long [] mIds;
+		private long [] mArtistIds;
+		private long [] mAlbumIds;
+		private int [] mTrackNumbers;
+		private int [] mDurations;
+		private short [] mYears;
+		private byte [] mRatings;
+		private int [] mGenres;
+		private int [] mTitleOffsets;
+		private char [] mTitles;
+		private int mTitlesLength = 0;
+		private final StringDictionary mGenreDictionary = new StringDictionary();
+		private boolean mSorted = true;
+		
+		
+		/**
+		 * Create builder.
+		 * 
+		 * @param expectedSize
+		 *            expected amount of rows
+		 */
+		Builder(int expectedSize) {
+			int capacity = Math.max(expectedSize, 1);
+			mIds = new long [capacity];
+			mArtistIds = new long [capacity];
+			mAlbumIds = new long [capacity];
+			mTrackNumbers = new int [capacity];
+			mDurations = new int [capacity];
+			mYears = new short [capacity];
+			mRatings = new byte [capacity];
+			mGenres = new int [capacity];
+			mTitleOffsets = new int [capacity + 1];
+			mTitles = new char [capacity * 16];
+		}
+		
+		/**
+		 * Add a row.
+		 */
+		void add(long id, long artistId, long albumId, String title, int trackNumber,
+				int duration, short year, String genre, byte rating) {
+			if (mSize == mIds.length) {
+				grow();
+			}
+			
+			if (mSize > 0 && mIds[mSize - 1] > id) {
+				mSorted = false;
+			}
+			
+			mIds[mSize] = id;
+			mArtistIds[mSize] = artistId;
+			mAlbumIds[mSize] = albumId;
+			mTrackNumbers[mSize] = trackNumber;
+			mDurations[mSize] = duration;
+			mYears[mSize] = year;
+			mRatings[mSize] = rating;
+			
+			mGenres[mSize] = mGenreDictionary.add(genre);
+			
+			int length = title.length();
+			
+			if (mTitlesLength + length > mTitles.length) {
+				char [] titles = new char [Math.max(mTitles.length * 2, mTitlesLength + length)];
+				System.arraycopy(mTitles, 0, titles, 0, mTitlesLength);
+				mTitles = titles;
+			}
+			
+			title.getChars(0, length, mTitles, mTitlesLength);
+			mTitleOffsets[mSize] = mTitlesLength;
+			mTitlesLength += length;
+			mSize++;
+		}
+		
+		/**
+		 * Add a row of another store.
+		 */
+		void add(TrackStore store, int row) {
+			add(store.ids[row], store.artistIds[row], store.albumIds[row], store.getTitle(row),
+					store.trackNumbers[row], store.durations[row], store.years[row],
+					store.getGenre(row), store.ratings[row]);
+		}
+		
+		/**
+		 * Build store of added rows (builder shouldn't be used anymore).
+		 */
+		TrackStore build() {
+			int [] order = new int [mSize];
+			
+			for (int i = 0; i < mSize; i++) {
+				order[i] = i;
+			}
+			
+			if (!mSorted) {
+				TrackStore.sort(order, new RowComparator() {
+					@Override
+					public int compare(int a, int b) {
+						return mIds[a] < mIds[b] ? -1 : (mIds[a] == mIds[b] ? 0 : 1);
+					}
+				});
+			}
+			
+			mTitleOffsets[mSize] = mTitlesLength;
+			return new TrackStore(this, order, mGenreDictionary.toArray());
+		}
+		
+		private void grow() {
+			int capacity = mIds.length * 2;
+			mIds = copy(mIds, new long [capacity]);
+			mArtistIds = copy(mArtistIds, new long [capacity]);
+			mAlbumIds = copy(mAlbumIds, new long [capacity]);
+			mTrackNumbers = copy(mTrackNumbers, new int [capacity]);
+			mDurations = copy(mDurations, new int [capacity]);
+			mGenres = copy(mGenres, new int [capacity]);
+			mTitleOffsets = copy(mTitleOffsets, new int [capacity + 1]);
+			
+			short [] years = new short [capacity];
+			System.arraycopy(mYears, 0, years, 0, mSize);
+			mYears = years;
+			
+			byte [] ratings = new byte [capacity];
+			System.arraycopy(mRatings, 0, ratings, 0, mSize);
+			mRatings = ratings;
+		}
+		
+		private long [] copy(long [] from, long [] to) {
+			System.arraycopy(from, 0, to, 0, mSize);
+			return to;
+		}
+		
+		private int [] copy(int [] from, int [] to) {
+			System.arraycopy(from, 0, to, 0, mSize);
+			return to;
+		}
+	}
+	
+	/**
+	 * Compares two rows.
+	 * 
+	 * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+	 */
+	static interface RowComparator {
+		
+		int compare(int a, int b);
+	}
+	
+	
+	/**
+	 * Get row of track.
+	 * 
+	 * @param id
+	 *            track ID
+	 * 
+	 * @return row or {@code -1} if there's no such track
+	 */
+	int indexOf(long id) {
+		int low = 0;
+		int high = size - 1;
+		
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long value = ids[middle];
+			
+			if (value < id) {
+				low = middle + 1;
+			} else if (value > id) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Get title of row (a new string).
+	 */
+	String getTitle(int row) {
+		int offset = mTitleOffsets[row];
+		return new String(mTitles, offset, mTitleOffsets[row + 1] - offset);
+	}
+	
+	/**
+	 * Get genre of row.
+	 */
+	String getGenre(int row) {
+		return genreDictionary[genres[row]];
+	}
+	
+	/**
+	 * Get rows ordered by title (titles which don't start with a letter first, case and accents are
+	 * ignored).
+	 * 
+	 * @return rows in order
+	 */
+	int [] orderByTitle() {
+		int [] order = new int [size];
+		
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		
+		sort(order, new RowComparator() {
+			@Override
+			public int compare(int a, int b) {
+				return compareTitles(a, b);
+			}
+		});
+		
+		return order;
+	}
+	
+	/**
+	 * Get rows ordered by track number.
+	 * 
+	 * @param order
+	 *            current order of rows (kept for equal track numbers)
+	 * 
+	 * @return rows in order
+	 */
+	int [] orderByTrackNumber(int [] order) {
+		int [] rows = new int [order.length];
+		System.arraycopy(order, 0, rows, 0, order.length);
+		
+		sort(rows, new RowComparator() {
+			@Override
+			public int compare(int a, int b) {
+				return trackNumbers[a] - trackNumbers[b];
+			}
+		});
+		
+		return rows;
+	}
+	
+	/**
+	 * Group rows by the values of a column.
+	 * 
+	 * @param column
+	 *            ID column (e.g. {@link #albumIds})
+	 * @param order
+	 *            order of rows (which is kept in each group)
+	 * 
+	 * @return rows for each ID of the column
+	 */
+	LongHashMap<int []> group(long [] column, int [] order) {
+		LongHashMap<int []> counts = new LongHashMap<int []>();
+		
+		for (int row : order) {
+			int [] count = counts.get(column[row]);
+			
+			if (count == null) {
+				counts.put(column[row], new int [] {1});
+			} else {
+				count[0]++;
+			}
+		}
+		
+		LongHashMap<int []> groups = new LongHashMap<int []>(counts.size());
+		
+		// count is reused as fill position of its group
+		for (int row : order) {
+			int [] count = counts.get(column[row]);
+			int [] group = groups.get(column[row]);
+			
+			if (group == null) {
+				group = new int [count[0]];
+				groups.put(column[row], group);
+				count[0] = 0;
+			}
+			
+			group[count[0]++] = row;
+		}
+		
+		return groups;
+	}
+	
+	/**
+	 * Compare titles of two rows by their folded characters (see {@link SortKey}).
+	 */
+	int compareTitles(int a, int b) {
+		int aOffset = mTitleOffsets[a];
+		int aLength = mTitleOffsets[a + 1] - aOffset;
+		int bOffset = mTitleOffsets[b];
+		int bLength = mTitleOffsets[b + 1] - bOffset;
+		boolean aLetter = aLength > 0 && Character.isLetter(mTitles[aOffset]);
+		boolean bLetter = bLength > 0 && Character.isLetter(mTitles[bOffset]);
+		
+		if (aLetter != bLetter) {
+			return aLetter ? 1 : -1;
+		}
+		
+		int length = Math.min(aLength, bLength);
+		
+		for (int i = 0; i < length; i++) {
+			char ac = mSortKeys[aOffset + i];
+			char bc = mSortKeys[bOffset + i];
+			
+			if (ac != bc) {
+				return ac - bc;
+			}
+		}
+		
+		return aLength - bLength;
+	}
+	
+	/**
+	 * Write all columns to a snapshot.
+	 */
+	void write(CacheSnapshot.Writer out) throws IOException {
+		out.writeLongs(ids);
+		out.writeLongs(artistIds);
+		out.writeLongs(albumIds);
+		out.writeInts(trackNumbers);
+		out.writeInts(durations);
+		out.writeShorts(years);
+		out.writeBytes(ratings);
+		out.writeInts(genres);
+		out.writeStrings(genreDictionary);
+		out.writeInts(mTitleOffsets);
+		out.writeChars(mTitles);
+		out.writeChars(mSortKeys);
+	}
+	
+	/**
+	 * Read store which was written with {@link #write(CacheSnapshot.Writer)}.
+	 */
+	static TrackStore read(CacheSnapshot.Reader in) {
+		return new TrackStore(in);
+	}
+	
+	/**
+	 * Are all values valid indices of an array with the given length?
+	 */
+	static boolean isInRange(int [] values, int length) {
+		for (int value : values) {
+			if (value < 0 || value >= length) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Stable sort of rows (merge sort).
+	 * 
+	 * @param rows
+	 *            rows to sort
+	 * @param comparator
+	 *            row comparator
+	 */
+	static void sort(int [] rows, RowComparator comparator) {
+		int [] buffer = new int [rows.length];
+		int [] from = rows;
+		int [] to = buffer;
+		
+		for (int width = 1; width < rows.length; width *= 2) {
+			for (int low = 0; low < rows.length; low += 2 * width) {
+				int middle = Math.min(low + width, rows.length);
+				int high = Math.min(low + 2 * width, rows.length);
+				int i = low;
+				int j = middle;
+				
+				for (int k = low; k < high; k++) {
+					if (i < middle && (j >= high || comparator.compare(from[i], from[j]) <= 0)) {
+						to[k] = from[i++];
+					} else {
+						to[k] = from[j++];
+					}
+				}
+			}
+			
+			int [] swap = from;
+			from = to;
+			to = swap;
+		}
+		
+		if (from != rows) {
+			System.arraycopy(from, 0, rows, 0, rows.length);
+		}
+	}
+	
+	// PRIVATE ====================================================================================
+	
+	private TrackStore(CacheSnapshot.Reader in) {
+		ids = in.readLongs();
+		artistIds = in.readLongs();
+		albumIds = in.readLongs();
+		trackNumbers = in.readInts();
+		durations = in.readInts();
+		years = in.readShorts();
+		ratings = in.readBytes();
+		genres = in.readInts();
+		genreDictionary = in.readStrings();
+		mTitleOffsets = in.readInts();
+		mTitles = in.readChars();
+		mSortKeys = in.readChars();
+		size = ids.length;
+		
+		if (artistIds.length != size || albumIds.length != size || trackNumbers.length != size
+				|| durations.length != size || years.length != size || ratings.length != size
+				|| genres.length != size || mTitleOffsets.length != size + 1
+				|| mSortKeys.length != mTitles.length
+				|| !isInRange(genres, genreDictionary.length)) {
+			throw new IllegalArgumentException("inconsistent track store snapshot");
+		}
+		
+		if (mTitleOffsets[0] != 0 || mTitleOffsets[size] != mTitles.length) {
+			throw new IllegalArgumentException("inconsistent track titles in snapshot");
+		}
+		
+		for (int i = 0; i < size; i++) {
+			if (mTitleOffsets[i] > mTitleOffsets[i + 1]) {
+				throw new IllegalArgumentException("inconsistent track titles in snapshot");
+			}
+		}
+	}
+	
+	private TrackStore(Builder builder, int [] order, String [] genreDictionary) {
+		size = builder.mSize;
+		ids = new long [size];
+		artistIds = new long [size];
+		albumIds = new long [size];
+		trackNumbers = new int [size];
+		durations = new int [size];
+		years = new short [size];
+		ratings = new byte [size];
+		genres = new int [size];
+		mTitleOffsets = new int [size + 1];
+		mTitles = new char [builder.mTitlesLength];
+		this.genreDictionary = genreDictionary;
+		
+		int position = 0;
+		
+		// copy rows in ID order (arrays are trimmed to the actual size)
+		for (int i = 0; i < size; i++) {
+			int row = order[i];
+			int offset = builder.mTitleOffsets[row];
+			int length = builder.mTitleOffsets[row + 1] - offset;
+			
+			ids[i] = builder.mIds[row];
+			artistIds[i] = builder.mArtistIds[row];
+			albumIds[i] = builder.mAlbumIds[row];
+			trackNumbers[i] = builder.mTrackNumbers[row];
+			durations[i] = builder.mDurations[row];
+			years[i] = builder.mYears[row];
+			ratings[i] = builder.mRatings[row];
+			genres[i] = builder.mGenres[row];
+			
+			System.arraycopy(builder.mTitles, offset, mTitles, position, length);
+			mTitleOffsets[i] = position;
+			position += length;
+		}
+		
+		mTitleOffsets[size] = position;
+		
+		// folded once, so comparisons of titles are plain character comparisons
+		mSortKeys = new char [position];
+		
+		for (int i = 0; i < position; i++) {
+			mSortKeys[i] = SortKey.fold(mTitles[i]);
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package de.viktorreiser.toolbox.util;
+
+/**
+ * Hash map with primitive {@code long} keys (<b>Beta</b>).<br>
+ * <br>
+ * Keys and values are kept in two plain arrays (open addressing with linear probing), so there are
+ * no entry objects and keys are never boxed. A lookup is a hash and usually a single array access.
+ * This is meant for large ID based lookup tables which would waste a lot of memory and time in a
+ * {@code TreeMap<Long, V>} or {@code HashMap<Long, V>}.<br>
+ * <br>
+ * {@code null} values are not allowed ({@code null} is returned for a missing key). This class is
+ * not thread safe.
+ * 
+ * @author Viktor Reiser &lt;<a href="mailto:viktorreiser@gmx.de">viktorreiser@gmx.de</a>&gt;
+ */
+public class LongHashMap<V> {
+	
+	// PRIVATE ====================================================================================
+	
+	private static final int MIN_CAPACITY = 16;
+	
+	private long [] mKeys;
+	private Object [] mValues;
+	private int mSize = 0;
+	private int mMask;
+	
+	// PUBLIC =====================================================================================
+	
+	/**
+	 * Create empty map.
+	 */
+	public LongHashMap() {
+		this(0);
+	}
+	
+	/**
+	 * Create empty map for an expected amount of entries.
+	 * 
+	 * @param expectedSize
+	 *            amount of entries which can be put without growing the map
+	 */
+	public LongHashMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		
+		// keep load factor below 3/4
+		while (capacity * 3 / 4 <= expectedSize) {
+			capacity <<= 1;
+		}
+		
+		allocate(capacity);
+	}
+	
+	/**
+	 * Get value of key.
+	 * 
+	 * @param key
+	 *            key
+	 * 
+	 * @return value or {@code null} if there's no value for the key
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int i = hash(key) & mMask;
+		
+		while (mValues[i] != null) {
+			if (mKeys[i] == key) {
+				return (V) mValues[i];
+			}
+			
+			i = (i + 1) & mMask;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Does map contain key?
+	 * 
+	 * @param key
+	 *            key
+	 * 
+	 * @return {@code true} if there's a value for the key
+	 */
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+	
+	/**
+	 * Put value for key.
+	 * 
+	 * @param key
+	 *            key
+	 * @param value
+	 *            value (not {@code null})
+	 * 
+	 * @return previous value of key or {@code null}
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("null values are not allowed");
+		}
+		
+		int i = hash(key) & mMask;
+		
+		while (mValues[i] != null) {
+			if (mKeys[i] == key) {
+				V previous = (V) mValues[i];
+				mValues[i] = value;
+				return previous;
+			}
+			
+			i = (i + 1) & mMask;
+		}
+		
+		mKeys[i] = key;
+		mValues[i] = value;
+		
+		if (++mSize > mKeys.length * 3 / 4) {
+			rehash(mKeys.length << 1);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Remove value of key.
+	 * 
+	 * @param key
+	 *            key
+	 * 
+	 * @return removed value or {@code null} if there was no value for the key
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = hash(key) & mMask;
+		
+		while (mValues[i] != null) {
+			if (mKeys[i] == key) {
+				V previous = (V) mValues[i];
+				closeGap(i);
+				mSize--;
+				return previous;
+			}
+			
+			i = (i + 1) & mMask;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Get amount of entries.
+	 */
+	public int size() {
+		return mSize;
+	}
+	
+	/**
+	 * Remove all entries.
+	 */
+	public void clear() {
+		allocate(MIN_CAPACITY);
+		mSize = 0;
+	}
+	
+	// PRIVATE ====================================================================================
+	
+	private void allocate(int capacity) {
+		mKeys = new long [capacity];
+		mValues = new Object [capacity];
+		mMask = capacity - 1;
+	}
+	
+	private void rehash(int capacity) {
+		long [] keys = mKeys;
+		Object [] values = mValues;
+		allocate(capacity);
+		
+		for (int j = 0; j < keys.length; j++) {
+			if (values[j] != null) {
+				int i = hash(keys[j]) & mMask;
+				
+				while (mValues[i] != null) {
+					i = (i + 1) & mMask;
+				}
+				
+				mKeys[i] = keys[j];
+				mValues[i] = values[j];
+			}
+		}
+	}
+	
+	/**
+	 * Empty slot and move following entries of the probe sequence back (no tombstones needed).
+	 */
+	private void closeGap(int gap) {
+		int i = gap;
+		
+		while (true) {
+			mValues[gap] = null;
+			
+			while (true) {
+				i = (i + 1) & mMask;
+				
+				if (mValues[i] == null) {
+					return;
+				}
+				
+				int home = hash(mKeys[i]) & mMask;
+				
+				// entry can fill the gap if its home slot isn't between gap and its position
+				if (gap <= i ? (home <= gap || home > i) : (home <= gap && home > i)) {
+					break;
+				}
+			}
+			
+			mKeys[gap] = mKeys[i];
+			mValues[gap] = mValues[i];
+			gap = i;
+		}
+	}
+	
+	/**
+	 * Spread bits of key, IDs are usually consecutive.
+	 */
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
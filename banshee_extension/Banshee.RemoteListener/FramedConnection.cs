@@ -0,0 +1,591 @@
+using System;
+using System.Collections.Generic;
+using System.IO;
+using System.IO.Compression;
+using System.Net.Sockets;
+using System.Threading;
+
+using Hyena;
+
+namespace Banshee.RemoteListener
+{
+	/// <summary>
+	/// Long-lived client connection which handles length prefixed request frames.
+	/// </summary>
+	/// A client requests a framed connection with an extended test request which contains the
+	/// framed protocol version as first parameter byte (and capability flags as second one).
+	/// The handshake is answered with [access] [version] [server flags] and the connection stays
+	/// open. Older clients send a plain test request and will never get here.
+	///
+	/// All integers are encoded like in the rest of the protocol:
+	/// request frame - [length (4)] [request ID (4)] [request code] [parameters]
+	///                 (length counts request code and parameters)
+	/// response frame - [length (4)] [request ID (4)] [response]
+	///                  (an empty response means that the request failed)
+	///
+	/// Every connection is handled on its own thread and requests are processed in order.
+	///
+	/// A status subscription request turns the connection into a push channel. The current player
+	/// status is sent as response right away and again (with the same request ID) whenever play
+	/// state, volume, track or seek position (jump) change, at least every heartbeat interval.
+	///
+	/// If the client requests it (client flag) the player status of this connection is delta
+	/// encoded: [changed fields mask] followed by the changed fields only. Fields (in mask bit
+	/// order) are state, volume, seek position, change flag and song ID like in the full status.
+	///
+	/// If the client requests it (client flag) responses above a size threshold are deflated.
+	/// The highest bit of the frame length marks a compressed response whose payload is
+	/// [length of response (4)] [deflated response]. Covers are never compressed (JPEG) and a
+	/// response is only sent compressed if that actually saves something.
+	public class FramedConnection
+	{
+		#region Attributes
+		
+		/// <summary>
+		/// Supported version of framed protocol.
+		/// </summary>
+		public const byte VERSION = 1;
+		
+		/// <summary>
+		/// Server flag: batch requests are supported.
+		/// </summary>
+		public const byte FLAG_BATCH = 0x01;
+		
+		/// <summary>
+		/// Server flag: player status subscription is supported.
+		/// </summary>
+		public const byte FLAG_STATUS_SUBSCRIPTION = 0x02;
+		
+		/// <summary>
+		/// Server flag: player status is delta encoded on this connection.
+		/// </summary>
+		public const byte FLAG_STATUS_DELTA = 0x04;
+		
+		/// <summary>
+		/// Server flag: large responses are compressed on this connection.
+		/// </summary>
+		public const byte FLAG_COMPRESSION = 0x08;
+		
+		/// <summary>
+		/// Client flag: client wants to receive a delta encoded player status.
+		/// </summary>
+		public const byte CLIENT_FLAG_STATUS_DELTA = 0x01;
+		
+		/// <summary>
+		/// Client flag: client is able to inflate compressed responses.
+		/// </summary>
+		public const byte CLIENT_FLAG_COMPRESSION = 0x02;
+		
+		/// <summary>
+		/// Responses smaller than this aren't worth compressing (bytes).
+		/// </summary>
+		private const int _COMPRESSION_THRESHOLD = 1024;
+		
+		/// <summary>
+		/// Frame length bit which marks a compressed response.
+		/// </summary>
+		private const uint _COMPRESSED_FRAME = 0x80000000;
+		
+		/// <summary>
+		/// Offsets of player status fields (delta encoding).
+		/// </summary>
+		private static int [] _STATUS_FIELD_OFFSETS = new int [] {0, 1, 2, 6, 8};
+		
+		/// <summary>
+		/// Sizes of player status fields (delta encoding).
+		/// </summary>
+		private static int [] _STATUS_FIELD_SIZES = new int [] {1, 1, 4, 2, 4};
+		
+		/// <summary>
+		/// Interval in which the player status is checked for changes (milliseconds).
+		/// </summary>
+		private const int _STATUS_SAMPLE_INTERVAL = 250;
+		
+		/// <summary>
+		/// Status is pushed at least in this interval, even if nothing changed (milliseconds).
+		/// </summary>
+		/// Client uses it to detect a dead connection and we detect a vanished client on send.
+		private const int _STATUS_HEARTBEAT_INTERVAL = 30 * 1000;
+		
+		/// <summary>
+		/// Seek position deviation from the expected position which counts as jump (milliseconds).
+		/// </summary>
+		private const int _SEEK_TOLERANCE = 2000;
+		
+		/// <summary>
+		/// Connection will be closed if client doesn't send anything for this time (milliseconds).
+		/// </summary>
+		/// The client will reconnect transparently, so we don't keep threads of vanished clients.
+		private const int _IDLE_TIMEOUT = 5 * 60 * 1000;
+		
+		/// <summary>
+		/// Size of frame header (length and request ID).
+		/// </summary>
+		private const int _HEADER_SIZE = 8;
+		
+		/// <summary>
+		/// Currently open connections.
+		/// </summary>
+		private static List<FramedConnection> _connections = new List<FramedConnection>();
+		
+		/// <summary>
+		/// Client socket of this connection.
+		/// </summary>
+		private Socket _client;
+		
+		/// <summary>
+		/// Lock for writing to client socket (responses and pushed status).
+		/// </summary>
+		private object _sendLock = new object();
+		
+		/// <summary>
+		/// Was connection closed?
+		/// </summary>
+		private volatile bool _closed = false;
+		
+		/// <summary>
+		/// Thread which pushes the player status (null if there's no subscription).
+		/// </summary>
+		private Thread _statusThread = null;
+		
+		/// <summary>
+		/// Flags which were sent by the client on handshake.
+		/// </summary>
+		private int _clientFlags;
+		
+		/// <summary>
+		/// Last player status which was sent to the client (base of delta encoding).
+		/// </summary>
+		private byte [] _lastStatus = null;
+		
+		#endregion
+		
+		
+		#region Handshake
+		
+		/// <summary>
+		/// Is the test request (located in request buffer) a framed connection handshake?
+		/// </summary>
+		/// <param name="readBytes">
+		/// Amount of parameter bytes in the request buffer.
+		/// </param>
+		/// <returns>
+		/// True if the client requests a framed connection.
+		/// </returns>
+		public static bool IsHandshake(int readBytes) {
+			return readBytes > 0 && Helper.Buffer[0] >= 1;
+		}
+		
+		/// <summary>
+		/// Get flags of client from handshake (located in request buffer).
+		/// </summary>
+		/// <param name="readBytes">
+		/// Amount of parameter bytes in the request buffer.
+		/// </param>
+		/// <returns>
+		/// Client flags.
+		/// </returns>
+		public static int ClientFlags(int readBytes) {
+			return readBytes > 1 ? Helper.Buffer[1] : 0;
+		}
+		
+		/// <summary>
+		/// Get handshake response.
+		/// </summary>
+		/// <param name="clientFlags">
+		/// Flags which were sent by client.
+		/// </param>
+		/// <returns>
+		/// Response which confirms the framed connection.
+		/// </returns>
+		public static byte [] HandshakeResult(int clientFlags) {
+			byte flags = FLAG_BATCH | FLAG_STATUS_SUBSCRIPTION;
+			
+			if ((clientFlags & CLIENT_FLAG_STATUS_DELTA) != 0) {
+				flags |= FLAG_STATUS_DELTA;
+			}
+			
+			if ((clientFlags & CLIENT_FLAG_COMPRESSION) != 0) {
+				flags |= FLAG_COMPRESSION;
+			}
+			
+			return new byte [] {1, VERSION, flags};
+		}
+		
+		#endregion
+		
+		
+		#region Connection
+		
+		/// <summary>
+		/// Create framed connection.
+		/// </summary>
+		/// <param name="client">
+		/// Client socket which passed the handshake.
+		/// </param>
+		/// <param name="clientFlags">
+		/// Flags which were sent by client on handshake.
+		/// </param>
+		public FramedConnection(Socket client, int clientFlags) {
+			_client = client;
+			_clientFlags = clientFlags;
+		}
+		
+		/// <summary>
+		/// Start handling frames of the client on a background thread.
+		/// </summary>
+		public void Start() {
+			lock (_connections) {
+				_connections.Add(this);
+			}
+			
+			Thread thread = new Thread(Run);
+			thread.IsBackground = true;
+			thread.Name = "RemoteListener framed connection";
+			thread.Start();
+		}
+		
+		/// <summary>
+		/// Close all open connections (banshee shutdown).
+		/// </summary>
+		public static void CloseAll() {
+			List<FramedConnection> connections;
+			
+			lock (_connections) {
+				connections = new List<FramedConnection>(_connections);
+				_connections.Clear();
+			}
+			
+			foreach (FramedConnection c in connections) {
+				c.Close();
+			}
+		}
+		
+		/// <summary>
+		/// Read and handle request frames until the client closes the connection.
+		/// </summary>
+		private void Run() {
+			byte [] header = new byte [_HEADER_SIZE];
+			
+			try {
+				_client.ReceiveTimeout = _IDLE_TIMEOUT;
+				_client.NoDelay = true;
+				
+				while (ReceiveFully(header, _HEADER_SIZE)) {
+					int length = (int) Helper.IntFromArray(header, 0);
+					uint requestId = Helper.IntFromArray(header, 4);
+					
+					if (length < 1 || length > Helper.Buffer.Length) {
+						Log.Warning("remote listener received corrupt frame, closing connection");
+						break;
+					}
+					
+					byte [] request = new byte [length];
+					
+					if (!ReceiveFully(request, length)) {
+						break;
+					}
+					
+					RequestHandler.RequestCode code = (RequestHandler.RequestCode) request[0];
+					
+					if (code == RequestHandler.RequestCode.StatusSubscription) {
+						StartStatusSubscription(requestId);
+					} else if (code == RequestHandler.RequestCode.PlayerStatus) {
+						SendStatus(requestId, HandleRequest(request));
+					} else {
+						SendResponse(requestId, code, HandleRequest(request));
+					}
+				}
+			} catch (Exception) {
+				// client vanished or idle timeout - it will reconnect when needed
+			} finally {
+				Close();
+				
+				lock (_connections) {
+					_connections.Remove(this);
+				}
+			}
+		}
+		
+		/// <summary>
+		/// Handle request of a frame.
+		/// </summary>
+		/// <param name="request">
+		/// Request code followed by the parameters.
+		/// </param>
+		/// <returns>
+		/// Response or null if request failed.
+		/// </returns>
+		private byte [] HandleRequest(byte [] request) {
+			try {
+				RequestHandler.RequestCode code = (RequestHandler.RequestCode) request[0];
+				byte [] result;
+				
+				// database hashing shouldn't block the other connections and status pushes
+				if (RequestHandler.HandleUnlocked(code, request, 1, request.Length - 1,
+						out result)) {
+					return result;
+				}
+				
+				lock (RequestHandler.SyncRoot) {
+					Array.Copy(request, 1, Helper.Buffer, 0, request.Length - 1);
+					return RequestHandler.Handle(code, request.Length - 1);
+				}
+			} catch (Exception e) {
+				Exception cause = e.InnerException ?? e;
+				Log.Error("remote listener request error: ", cause.Message ?? "no message");
+				Log.Error("Stack: ", cause.StackTrace);
+				return null;
+			}
+		}
+		
+		/// <summary>
+		/// Start pushing the player status to the client.
+		/// </summary>
+		/// <param name="requestId">
+		/// ID of subscription request which is used for every pushed status.
+		/// </param>
+		private void StartStatusSubscription(uint requestId) {
+			if (_statusThread != null) {
+				SendResponse(requestId, null);
+				return;
+			}
+			
+			// client won't send anything anymore, the heartbeat detects a vanished client
+			_client.ReceiveTimeout = 0;
+			
+			_statusThread = new Thread(delegate() {
+				PushStatus(requestId);
+			});
+			_statusThread.IsBackground = true;
+			_statusThread.Name = "RemoteListener status subscription";
+			_statusThread.Start();
+		}
+		
+		/// <summary>
+		/// Check the player status periodically and push it on changes.
+		/// </summary>
+		/// <param name="requestId">
+		/// ID of subscription request.
+		/// </param>
+		private void PushStatus(uint requestId) {
+			byte [] last = null;
+			int lastChecked = 0;
+			int lastSent = 0;
+			
+			try {
+				while (!_closed) {
+					byte [] status;
+					
+					lock (RequestHandler.SyncRoot) {
+						status = Helper.PlayerStatusResult();
+					}
+					
+					int now = Environment.TickCount;
+					
+					if (last == null || IsStatusChanged(last, status, now - lastChecked)
+							|| now - lastSent >= _STATUS_HEARTBEAT_INTERVAL) {
+						SendStatus(requestId, status);
+						lastSent = now;
+					}
+					
+					last = status;
+					lastChecked = now;
+					Thread.Sleep(_STATUS_SAMPLE_INTERVAL);
+				}
+			} catch (Exception) {
+				// client vanished
+			} finally {
+				Close();
+			}
+		}
+		
+		/// <summary>
+		/// Did the player status change in a way the client should know about?
+		/// </summary>
+		/// <param name="last">
+		/// Last checked status.
+		/// </param>
+		/// <param name="status">
+		/// Current status.
+		/// </param>
+		/// <param name="elapsed">
+		/// Milliseconds passed since last check.
+		/// </param>
+		/// <returns>
+		/// True on change of play state, repeat, shuffle, volume, track or a seek position jump.
+		/// </returns>
+		private static bool IsStatusChanged(byte [] last, byte [] status, int elapsed) {
+			for (int i = 0; i < status.Length; i++) {
+				// bytes 2 to 5 are the seek position which changes all the time while playing
+				if ((i < 2 || i > 5) && last[i] != status[i]) {
+					return true;
+				}
+			}
+			
+			long expected = Helper.IntFromArray(last, 2) + ((status[0] & 0x40) != 0 ? elapsed : 0);
+			return Math.Abs(Helper.IntFromArray(status, 2) - expected) > _SEEK_TOLERANCE;
+		}
+		
+		/// <summary>
+		/// Send player status response frame (delta encoded if client requested it).
+		/// </summary>
+		/// <param name="requestId">
+		/// ID of handled request.
+		/// </param>
+		/// <param name="status">
+		/// Full player status (null or empty for a failed request).
+		/// </param>
+		private void SendStatus(uint requestId, byte [] status) {
+			if ((_clientFlags & CLIENT_FLAG_STATUS_DELTA) == 0 || status == null || status.Length != 12) {
+				SendResponse(requestId, status);
+				return;
+			}
+			
+			// encoding and sending has to be atomic, client applies the deltas in order
+			lock (_sendLock) {
+				MemoryStream delta = new MemoryStream();
+				byte mask = 0;
+				delta.WriteByte(0);
+				
+				for (int i = 0; i < _STATUS_FIELD_OFFSETS.Length; i++) {
+					int offset = _STATUS_FIELD_OFFSETS[i];
+					int size = _STATUS_FIELD_SIZES[i];
+					bool changed = _lastStatus == null;
+					
+					for (int j = offset; j < offset + size && !changed; j++) {
+						changed = _lastStatus[j] != status[j];
+					}
+					
+					if (changed) {
+						mask |= (byte) (1 << i);
+						delta.Write(status, offset, size);
+					}
+				}
+				
+				byte [] result = delta.ToArray();
+				result[0] = mask;
+				_lastStatus = status;
+				
+				SendResponse(requestId, result);
+			}
+		}
+		
+		/// <summary>
+		/// Send response frame (compressed if the client supports it and it's worth it).
+		/// </summary>
+		/// <param name="requestId">
+		/// ID of handled request.
+		/// </param>
+		/// <param name="code">
+		/// Code of handled request.
+		/// </param>
+		/// <param name="result">
+		/// Response (null or empty for a failed request).
+		/// </param>
+		private void SendResponse(uint requestId, RequestHandler.RequestCode code, byte [] result) {
+			if ((_clientFlags & CLIENT_FLAG_COMPRESSION) == 0 || result == null
+					|| result.Length < _COMPRESSION_THRESHOLD
+					|| code == RequestHandler.RequestCode.Cover) {
+				SendResponse(requestId, result);
+				return;
+			}
+			
+			MemoryStream compressed = new MemoryStream();
+			compressed.Write(Helper.IntToByte((uint) result.Length), 0, 4);
+			
+			using (DeflateStream deflate =
+					new DeflateStream(compressed, CompressionMode.Compress, true)) {
+				deflate.Write(result, 0, result.Length);
+			}
+			
+			if (compressed.Length >= result.Length) {
+				SendResponse(requestId, result);
+			} else {
+				SendFrame(requestId, compressed.ToArray(), true);
+			}
+		}
+		
+		/// <summary>
+		/// Send uncompressed response frame.
+		/// </summary>
+		/// <param name="requestId">
+		/// ID of handled request.
+		/// </param>
+		/// <param name="result">
+		/// Response (null or empty for a failed request).
+		/// </param>
+		private void SendResponse(uint requestId, byte [] result) {
+			SendFrame(requestId, result, false);
+		}
+		
+		/// <summary>
+		/// Send response frame.
+		/// </summary>
+		/// <param name="requestId">
+		/// ID of handled request.
+		/// </param>
+		/// <param name="result">
+		/// Payload of frame (null or empty for a failed request).
+		/// </param>
+		/// <param name="compressed">
+		/// Is payload a compressed response?
+		/// </param>
+		private void SendFrame(uint requestId, byte [] result, bool compressed) {
+			int length = result == null ? 0 : result.Length;
+			byte [] frame = new byte [_HEADER_SIZE + length];
+			
+			Array.Copy(Helper.IntToByte((uint) length | (compressed ? _COMPRESSED_FRAME : 0)),
+				0, frame, 0, 4);
+			Array.Copy(Helper.IntToByte(requestId), 0, frame, 4, 4);
+			
+			if (length != 0) {
+				Array.Copy(result, 0, frame, _HEADER_SIZE, length);
+			}
+			
+			lock (_sendLock) {
+				int sent = 0;
+				
+				while (sent < frame.Length) {
+					sent += _client.Send(frame, sent, frame.Length - sent, SocketFlags.None);
+				}
+			}
+		}
+		
+		/// <summary>
+		/// Receive exactly the given amount of bytes.
+		/// </summary>
+		/// <returns>
+		/// False if connection was closed by client.
+		/// </returns>
+		private bool ReceiveFully(byte [] buffer, int length) {
+			int offset = 0;
+			
+			while (offset < length) {
+				int read = _client.Receive(buffer, offset, length - offset, SocketFlags.None);
+				
+				if (read <= 0) {
+					return false;
+				}
+				
+				offset += read;
+			}
+			
+			return true;
+		}
+		
+		/// <summary>
+		/// Close client socket.
+		/// </summary>
+		private void Close() {
+			_closed = true;
+			
+			try {
+				_client.Close();
+			} catch {
+			}
+		}
+		
+		#endregion
+	}
+}
@@ -302,9 +302,25 @@ namespace Banshee.RemoteListener
 		/// Read integer value. 
 		/// </returns>
 		public static uint IntFromBuffer(int p) {
-			return (uint) (_buffer[p] + ((_buffer[p + 1] << 8) & 0xff00)
-				+ ((_buffer[p + 2] << 16) & 0xff0000)
-				+ ((_buffer[p + 3] << 24) & 0xff000000));
+			return IntFromArray(_buffer, p);
+		}
+		
+		/// <summary>
+		/// Read a big endian integer value from given array.
+		/// </summary>
+		/// <param name="array">
+		/// Array to read from.
+		/// </param>
+		/// <param name="p">
+		/// Position in array where the integer value is located.
+		/// </param>
+		/// <returns>
+		/// Read integer value. 
+		/// </returns>
+		public static uint IntFromArray(byte [] array, int p) {
+			return (uint) (array[p] + ((array[p + 1] << 8) & 0xff00)
+				+ ((array[p + 2] << 16) & 0xff0000)
+				+ ((array[p + 3] << 24) & 0xff000000));
 		}
 		
 		/// <summary>
@@ -321,6 +337,87 @@ namespace Banshee.RemoteListener
 					(byte) ((i >> 16) & 0xff), (byte) ((i >> 24) & 0xff)};
 		}
 		
+		/// <summary>
+		/// Compute Adler-32 checksum.
+		/// </summary>
+		/// <param name="data">
+		/// Array which contains the data.
+		/// </param>
+		/// <param name="offset">
+		/// Start of data in array.
+		/// </param>
+		/// <param name="length">
+		/// Length of data.
+		/// </param>
+		/// <returns>
+		/// Adler-32 checksum of data.
+		/// </returns>
+		public static uint Adler32(byte [] data, int offset, int length) {
+			uint a = 1;
+			uint b = 0;
+			
+			for (int i = offset; i < offset + length; i++) {
+				a = (a + data[i]) % 65521;
+				b = (b + a) % 65521;
+			}
+			
+			return (b << 16) | a;
+		}
+		
+		/// <summary>
+		/// Compute rolling (rsync like) checksum of a block.
+		/// </summary>
+		/// The lower 16 bits are the sum of all bytes, the upper 16 bits are the sum of all those
+		/// partial sums. The checksum of the block moved by one byte is RollChecksum.
+		/// <param name="data">
+		/// Array which contains the data.
+		/// </param>
+		/// <param name="offset">
+		/// Start of block in array.
+		/// </param>
+		/// <param name="length">
+		/// Length of block.
+		/// </param>
+		/// <returns>
+		/// Rolling checksum of block.
+		/// </returns>
+		public static uint RollingChecksum(byte [] data, int offset, int length) {
+			uint a = 0;
+			uint b = 0;
+			
+			for (int i = offset; i < offset + length; i++) {
+				a += data[i];
+				b += a;
+			}
+			
+			return ((b & 0xffff) << 16) | (a & 0xffff);
+		}
+		
+		/// <summary>
+		/// Move block of rolling checksum by one byte.
+		/// </summary>
+		/// <param name="checksum">
+		/// Rolling checksum of the current block.
+		/// </param>
+		/// <param name="length">
+		/// Length of block.
+		/// </param>
+		/// <param name="removed">
+		/// First byte of the current block.
+		/// </param>
+		/// <param name="added">
+		/// Byte which follows the current block.
+		/// </param>
+		/// <returns>
+		/// Rolling checksum of the next block.
+		/// </returns>
+		public static uint RollChecksum(uint checksum, int length, byte removed, byte added) {
+			uint a = ((checksum & 0xffff) - removed + added) & 0xffff;
+			uint b = ((checksum >> 16) - (uint) length * removed + a) & 0xffff;
+			
+			return (b << 16) | a;
+		}
+		
 		/// <summary>
 		/// Get (UTF-8) string from buffer (see StringToByte for more).
 		/// </summary>
@@ -32,6 +32,13 @@ namespace Banshee.RemoteListener
 		/// </summary>
 		private int _passId;
 		
+		/// <summary>
+		/// Buffer to which incoming one-shot requests are received.
+		/// </summary>
+		/// Requests are copied to the request buffer (Helper.Buffer) under the request lock before
+		/// they are handled, so framed connections which are using it are not disturbed.
+		private byte [] _receiveBuffer = new byte [Helper.Buffer.Length];
+		
 		/// <summary>
 		/// Was extension disposed (banshee shutdown).
 		/// </summary>
@@ -113,6 +120,8 @@ namespace Banshee.RemoteListener
 			
 			ServiceManager.SourceManager.SourceRemoved += OnSourceRemoved;
 			
+			FramedConnection.CloseAll();
+			
 			if (_listener != null) {
 				try {
 					_listener.Close();
@@ -182,7 +191,7 @@ namespace Banshee.RemoteListener
 			
 			try {
 				client = ((Socket)ar.AsyncState).EndAccept(ar);
-				client.BeginReceive(Helper.Buffer, 0, Helper.Buffer.Length, SocketFlags.None,
+				client.BeginReceive(_receiveBuffer, 0, _receiveBuffer.Length, SocketFlags.None,
 					OnReceiveRequest, client);
 			} catch (Exception e) {
 				if (!_disposed) {
@@ -207,21 +216,45 @@ namespace Banshee.RemoteListener
 				int readBytes = client.EndReceive(ar);
 				
 				byte [] result = null;
-				string requestName = ((RequestHandler.RequestCode) Helper.Buffer[0]).ToString();
+				bool framed = false;
+				int clientFlags = 0;
+				RequestHandler.RequestCode code = (RequestHandler.RequestCode) _receiveBuffer[0];
+				// database hashing is done without the lock (pass ID is checked upfront)
+				bool handled = readBytes >= 3
+					&& _receiveBuffer[1] + ((_receiveBuffer[2] << 8) & 0xff00) == _passId
+					&& RequestHandler.HandleUnlocked(code, _receiveBuffer, 3, readBytes - 3,
+						out result);
 				
-				if (Helper.ShortFromBuffer(1) == _passId) {
-					Helper.StripGlobalInfoFromBuffer(readBytes);
-					result = (byte []) typeof(RequestHandler).GetMethod(requestName).Invoke(
-						null,new object [] {readBytes - 3});
-				} else if ((RequestHandler.RequestCode) Helper.Buffer[0] == RequestHandler.RequestCode.Test) {
-					result = new byte [] {0};
+				if (!handled) {
+					lock (RequestHandler.SyncRoot) {
+						Array.Copy(_receiveBuffer, Helper.Buffer, readBytes);
+						
+						if (Helper.ShortFromBuffer(1) == _passId) {
+							Helper.StripGlobalInfoFromBuffer(readBytes);
+							
+							if (code == RequestHandler.RequestCode.Test
+									&& FramedConnection.IsHandshake(readBytes - 3)) {
+								framed = true;
+								clientFlags = FramedConnection.ClientFlags(readBytes - 3);
+								result = FramedConnection.HandshakeResult(clientFlags);
+							} else {
+								result = RequestHandler.Handle(code, readBytes - 3);
+							}
+						} else if (code == RequestHandler.RequestCode.Test) {
+							result = new byte [] {0};
+						}
+					}
 				}
 				
 				// we handled the request and have the data, handle other requests now
 				isListenerAccepting = true;
 				_listener.BeginAccept(new AsyncCallback(OnIncomingConnection), _listener);
 				
-				if (result != null && result.Length != 0) {
+				if (framed) {
+					// client keeps the connection open and sends request frames from now on
+					client.Send(result);
+					new FramedConnection(client, clientFlags).Start();
+				} else if (result != null && result.Length != 0) {
 					client.BeginSend(result, 0, result.Length, SocketFlags.None, 
 					                 OnSentResponse, client);
 				}
@@ -1,9 +1,11 @@
 using System;
 using System.Collections.Generic;
 using System.IO;
+using System.Security.Cryptography;
 using System.Text;
 
 using Hyena;
+using Hyena.Data.Sqlite;
 
 using Banshee.Base;
 using Banshee.Collection;
@@ -35,6 +37,32 @@ namespace Banshee.RemoteListener
 			SyncDatabase = 3,
 			Cover = 4,
 			Playlist = 5,
+			Batch = 6,
+			StatusSubscription = 7,
+		}
+		
+		/// <summary>
+		/// Lock which has to be held while a request is handled.
+		/// </summary>
+		/// Handlers share the request buffer (Helper.Buffer). Framed connections are handled on
+		/// their own threads so they have to synchronize with the listener.
+		public static readonly object SyncRoot = new object();
+		
+		/// <summary>
+		/// Invoke the handler of a request whose parameters are located in the request buffer.
+		/// </summary>
+		/// <param name="code">
+		/// Request code.
+		/// </param>
+		/// <param name="readBytes">
+		/// Amount of parameter bytes in the request buffer.
+		/// </param>
+		/// <returns>
+		/// Response of handler (null or empty on failure).
+		/// </returns>
+		public static byte [] Handle(RequestCode code, int readBytes) {
+			return (byte []) typeof(RequestHandler).GetMethod(code.ToString()).Invoke(
+				null, new object [] {readBytes});
 		}
 		
 		#endregion
@@ -42,6 +70,11 @@ namespace Banshee.RemoteListener
 		
 		#region Test
 		
+		/// <summary>
+		/// Test request.
+		/// </summary>
+		/// If the first parameter byte is set the client requests a framed connection, this is
+		/// handled by the listener (see FramedConnection).
 		public static byte [] Test(int readBytes) {
 			return new byte[] {1};
 		}
@@ -177,6 +210,49 @@ namespace Banshee.RemoteListener
 		
 		#region Sync database
 		
+		/// <summary>
+		/// Maximum length of a database chunk.
+		/// </summary>
+		private const int _MAX_DB_CHUNK = 256 * 1024;
+		
+		/// <summary>
+		/// MD5 hash of the compressed database (cached for the compression time in _dbHashTime).
+		/// </summary>
+		private static byte [] _dbHash = null;
+		
+		/// <summary>
+		/// Compression time of the database the hash was computed for.
+		/// </summary>
+		private static int _dbHashTime = 0;
+		
+		/// <summary>
+		/// Maximum amount of changed tracks for a delta (client should fetch the whole file).
+		/// </summary>
+		private const int _MAX_DELTA_TRACKS = 5000;
+		
+		/// <summary>
+		/// Margin (seconds) which is subtracted from the delta timestamp.
+		/// </summary>
+		/// The timestamp of the client is the UTC based compression time of the database while
+		/// banshee stamps its rows with the local time, so we rather send some rows twice.
+		private const int _DELTA_TIME_MARGIN = 24 * 60 * 60;
+		
+		/// <summary>
+		/// Minimum block size of a block delta.
+		/// </summary>
+		private const int _MIN_BLOCK_SIZE = 512;
+		
+		/// <summary>
+		/// Database synchronization request.
+		/// </summary>
+		/// 1 = timestamp, 2 = whole file, 3 = forced recompression,
+		/// 4 = file info [size (4)] [timestamp (4)] [MD5 hash (16)],
+		/// 5 = chunk [offset (4)] [length (4)] [timestamp (4)] which is answered with
+		/// [data] [Adler-32 checksum of data (4)] or [0] if the database has changed since,
+		/// 6 = delta [timestamp (4)] of rows which changed since the given timestamp (see
+		/// DatabaseDelta) or [0] if a delta isn't possible and the whole file should be fetched,
+		/// 7 = block delta [block size (4)] [count (4)] followed by the block signatures of the
+		/// client file (see DatabaseBlockDelta).
 		public static byte [] SyncDatabase(int readBytes) {
 			byte request = 0;
 			
@@ -202,11 +278,393 @@ namespace Banshee.RemoteListener
 				Helper.DbCompressTime = 0;
 				Helper.CompressDatabase();
 				return new byte [] {1};
+				
+			case 4:
+			case 7:
+				// requested database file info or block delta (see HandleUnlocked)
+				byte [] result;
+				
+				if (HandleUnlocked(RequestCode.SyncDatabase, Helper.Buffer, 0, readBytes,
+						out result)) {
+					return result;
+				}
+				break;
+				
+			case 5:
+				// requested database chunk
+				if (readBytes >= 13 && File.Exists(Helper.DatabasePath(true))) {
+					return DatabaseChunk(Helper.IntFromBuffer(1), Helper.IntFromBuffer(5),
+						(int) Helper.IntFromBuffer(9));
+				}
+				break;
+				
+			case 6:
+				// requested rows which changed since given timestamp
+				if (readBytes >= 5) {
+					return DatabaseDelta((int) Helper.IntFromBuffer(1));
+				}
+				break;
 			}
 			
 			return new byte [] {0};
 		}
 		
+		/// <summary>
+		/// Handle a database request which has to read the whole database file.
+		/// </summary>
+		/// Hashing and diffing the file takes a while so only the compression time is taken and
+		/// the file is opened while SyncRoot is held. A recompression meanwhile replaces the file
+		/// but the open handle keeps reading the old one, so the response is still consistent.
+		/// <param name="code">
+		/// Request code.
+		/// </param>
+		/// <param name="request">
+		/// Array which contains the request parameters.
+		/// </param>
+		/// <param name="offset">
+		/// Position of the parameters in the array.
+		/// </param>
+		/// <param name="readBytes">
+		/// Amount of parameter bytes.
+		/// </param>
+		/// <param name="result">
+		/// Response of the request (null if it wasn't handled).
+		/// </param>
+		/// <returns>
+		/// False if request isn't a file info or block delta request and has to be handled by
+		/// Handle under SyncRoot.
+		/// </returns>
+		public static bool HandleUnlocked(RequestCode code, byte [] request, int offset,
+				int readBytes, out byte [] result) {
+			result = null;
+			
+			if (code != RequestCode.SyncDatabase || readBytes < 1
+					|| request[offset] != 4 && request[offset] != 7) {
+				return false;
+			}
+			
+			byte [] parameters = new byte [readBytes];
+			Array.Copy(request, offset, parameters, 0, readBytes);
+			
+			FileStream stream;
+			int time;
+			byte [] hash;
+			
+			lock (SyncRoot) {
+				string path = Helper.DatabasePath(true);
+				
+				if (!File.Exists(path)) {
+					result = new byte [] {0};
+					return true;
+				}
+				
+				stream = File.OpenRead(path);
+				time = Helper.DbCompressTime;
+				hash = _dbHashTime == time ? _dbHash : null;
+			}
+			
+			using (stream) {
+				if (parameters[0] == 4) {
+					result = DatabaseFileInfo(stream, time, hash);
+				} else if (readBytes >= 9) {
+					result = DatabaseBlockDelta(parameters, ReadAll(stream));
+				} else {
+					result = new byte [] {0};
+				}
+			}
+			
+			return true;
+		}
+		
+		private static byte [] DatabaseFileInfo(FileStream stream, int time, byte [] hash) {
+			if (hash == null) {
+				hash = MD5.Create().ComputeHash(stream);
+				
+				lock (SyncRoot) {
+					_dbHash = hash;
+					_dbHashTime = time;
+				}
+			}
+			
+			byte [] result = new byte [24];
+			Array.Copy(Helper.IntToByte((uint) stream.Length), 0, result, 0, 4);
+			Array.Copy(Helper.IntToByte((uint) time), 0, result, 4, 4);
+			Array.Copy(hash, 0, result, 8, 16);
+			
+			return result;
+		}
+		
+		private static byte [] ReadAll(FileStream stream) {
+			byte [] data = new byte [stream.Length];
+			int read = 0;
+			
+			while (read < data.Length) {
+				int r = stream.Read(data, read, data.Length - read);
+				
+				if (r <= 0) {
+					throw new EndOfStreamException();
+				}
+				
+				read += r;
+			}
+			
+			return data;
+		}
+		
+		private static byte [] DatabaseChunk(uint offset, uint length, int timestamp) {
+			if (timestamp != Helper.DbCompressTime) {
+				// database was recompressed, client has to start over
+				return new byte [] {0};
+			}
+			
+			using (FileStream stream = File.OpenRead(Helper.DatabasePath(true))) {
+				if (offset >= stream.Length) {
+					return new byte [] {0};
+				}
+				
+				int count = (int) Math.Min(Math.Min(length, _MAX_DB_CHUNK), stream.Length - offset);
+				byte [] result = new byte [count + 4];
+				int read = 0;
+				
+				stream.Seek(offset, SeekOrigin.Begin);
+				
+				while (read < count) {
+					int r = stream.Read(result, read, count - read);
+					
+					if (r <= 0) {
+						return new byte [] {0};
+					}
+					
+					read += r;
+				}
+				
+				Array.Copy(Helper.IntToByte(Helper.Adler32(result, 0, count)), 0, result, count, 4);
+				
+				return result;
+			}
+		}
+		
+		/// <summary>
+		/// Get rows of the live database which changed since the given timestamp.
+		/// </summary>
+		/// Response is [current timestamp (4)]
+		/// [count (4)] tracks [ID (4)] [artist ID (4)] [album ID (4)] [title (string)]
+		///     [track number (4)] [duration (4)] [year (2)] [genre (string)] [rating (1)],
+		/// [count (4)] removed tracks [ID (4)],
+		/// [count (4)] albums (referenced by changed tracks) [ID (4)] [artist ID (4)]
+		///     [title (string)] [art ID (string)],
+		/// [count (4)] artists (referenced by changed tracks and albums) [ID (4)] [name (string)].
+		/// Albums and artists which aren't referenced anymore should be removed by the client.
+		private static byte [] DatabaseDelta(int since) {
+			HyenaSqliteConnection db = ServiceManager.DbConnection;
+			
+			if (since <= 0 || !db.TableExists("CoreRemovedTracks")
+					|| !db.ColumnExists("CoreAlbums", "ArtworkID")) {
+				return new byte [] {0};
+			}
+			
+			int now = Helper.Timestamp();
+			since -= _DELTA_TIME_MARGIN;
+			string changed = "DateUpdatedStamp > " + since + " OR DateAddedStamp > " + since;
+			
+			IDataReader r = db.Query("SELECT COUNT(*) FROM CoreTracks WHERE " + changed + ";");
+			int count = r.Read() ? r.Get<int>(0) : 0;
+			r.Dispose();
+			
+			if (count > _MAX_DELTA_TRACKS) {
+				return new byte [] {0};
+			}
+			
+			MemoryStream result = new MemoryStream();
+			WriteBytes(result, Helper.IntToByte((uint) now));
+			
+			r = db.Query("SELECT TrackID, ArtistID, AlbumID, Title, TrackNumber, Duration, Year, "
+				+ "Genre, Rating FROM CoreTracks WHERE " + changed + ";");
+			WriteRows(result, r, delegate (MemoryStream s, IDataReader row) {
+				WriteBytes(s, Helper.IntToByte((uint) row.Get<int>(0)));
+				WriteBytes(s, Helper.IntToByte((uint) row.Get<int>(1)));
+				WriteBytes(s, Helper.IntToByte((uint) row.Get<int>(2)));
+				WriteBytes(s, Helper.StringToByte(row.Get<string>(3)));
+				WriteBytes(s, Helper.IntToByte((uint) row.Get<int>(4)));
+				WriteBytes(s, Helper.IntToByte((uint) row.Get<int>(5)));
+				WriteBytes(s, Helper.ShortToByte((ushort) row.Get<int>(6)));
+				WriteBytes(s, Helper.StringToByte(row.Get<string>(7)));
+				s.WriteByte((byte) row.Get<int>(8));
+			});
+			
+			r = db.Query("SELECT TrackID FROM CoreRemovedTracks WHERE DateRemovedStamp > "
+				+ since + ";");
+			WriteRows(result, r, delegate (MemoryStream s, IDataReader row) {
+				WriteBytes(s, Helper.IntToByte((uint) row.Get<int>(0)));
+			});
+			
+			string albums = "SELECT AlbumID FROM CoreTracks WHERE " + changed;
+			r = db.Query("SELECT AlbumID, ArtistID, Title, ArtworkID FROM CoreAlbums "
+				+ "WHERE AlbumID IN (" + albums + ");");
+			WriteRows(result, r, delegate (MemoryStream s, IDataReader row) {
+				WriteBytes(s, Helper.IntToByte((uint) row.Get<int>(0)));
+				WriteBytes(s, Helper.IntToByte((uint) row.Get<int>(1)));
+				WriteBytes(s, Helper.StringToByte(row.Get<string>(2)));
+				WriteBytes(s, Helper.StringToByte(row.Get<string>(3)));
+			});
+			
+			r = db.Query("SELECT ArtistID, Name FROM CoreArtists WHERE ArtistID IN ("
+				+ "SELECT ArtistID FROM CoreTracks WHERE " + changed
+				+ " UNION SELECT ArtistID FROM CoreAlbums WHERE AlbumID IN (" + albums + "));");
+			WriteRows(result, r, delegate (MemoryStream s, IDataReader row) {
+				WriteBytes(s, Helper.IntToByte((uint) row.Get<int>(0)));
+				WriteBytes(s, Helper.StringToByte(row.Get<string>(1)));
+			});
+			
+			return result.ToArray();
+		}
+		
+		/// <summary>
+		/// Compare the compressed database with the blocks of the client file (rsync like).
+		/// </summary>
+		/// Request is [7] [block size (4)] [count (4)] followed by [rolling checksum (4)]
+		/// [first 8 bytes of MD5 hash (8)] for each block of the client file (last block might be
+		/// shorter and won't be used). Response is [size (4)] [MD5 hash (16)] of the database
+		/// followed by the instructions to rebuild it: [0] [length (4)] [literal data] or
+		/// [1] [block index (4)] [block count (4)] to copy blocks of the client file.
+		private static byte [] DatabaseBlockDelta(byte [] request, byte [] data) {
+			int blockSize = (int) Helper.IntFromArray(request, 1);
+			int count = (int) Helper.IntFromArray(request, 5);
+			
+			// count is checked by division, multiplying a large one would overflow
+			if (blockSize < _MIN_BLOCK_SIZE || blockSize > _MAX_DB_CHUNK
+					|| count < 0 || count > (request.Length - 9) / 12) {
+				return new byte [] {0};
+			}
+			
+			Dictionary<uint, List<int>> blocks = new Dictionary<uint, List<int>>();
+			byte [][] hashes = new byte [count][];
+			
+			for (int i = 0; i < count; i++) {
+				uint checksum = Helper.IntFromArray(request, 9 + i * 12);
+				List<int> list;
+				
+				if (!blocks.TryGetValue(checksum, out list)) {
+					list = new List<int>();
+					blocks[checksum] = list;
+				}
+				
+				list.Add(i);
+				hashes[i] = new byte [8];
+				Array.Copy(request, 13 + i * 12, hashes[i], 0, 8);
+			}
+			
+			MD5 md5 = MD5.Create();
+			MemoryStream result = new MemoryStream();
+			WriteBytes(result, Helper.IntToByte((uint) data.Length));
+			WriteBytes(result, md5.ComputeHash(data));
+			
+			int literal = 0;
+			int copyIndex = -1;
+			int copyCount = 0;
+			int p = 0;
+			uint rolling = data.Length >= blockSize
+				? Helper.RollingChecksum(data, 0, blockSize) : 0;
+			
+			while (p + blockSize <= data.Length) {
+				int match = -1;
+				List<int> candidates;
+				
+				if (blocks.TryGetValue(rolling, out candidates)) {
+					byte [] hash = md5.ComputeHash(data, p, blockSize);
+					
+					foreach (int index in candidates) {
+						if (StartsWith(hash, hashes[index])) {
+							match = index;
+							break;
+						}
+					}
+				}
+				
+				if (match >= 0) {
+					if (literal < p) {
+						WriteCopy(result, copyIndex, copyCount);
+						copyCount = 0;
+						result.WriteByte(0);
+						WriteBytes(result, Helper.IntToByte((uint) (p - literal)));
+						result.Write(data, literal, p - literal);
+					}
+					
+					if (copyCount > 0 && copyIndex + copyCount == match) {
+						copyCount++;
+					} else {
+						WriteCopy(result, copyIndex, copyCount);
+						copyIndex = match;
+						copyCount = 1;
+					}
+					
+					p += blockSize;
+					literal = p;
+					
+					if (p + blockSize <= data.Length) {
+						rolling = Helper.RollingChecksum(data, p, blockSize);
+					}
+				} else {
+					if (p + blockSize < data.Length) {
+						rolling = Helper.RollChecksum(rolling, blockSize, data[p], data[p + blockSize]);
+					}
+					
+					p++;
+				}
+			}
+			
+			WriteCopy(result, copyIndex, copyCount);
+			
+			if (literal < data.Length) {
+				result.WriteByte(0);
+				WriteBytes(result, Helper.IntToByte((uint) (data.Length - literal)));
+				result.Write(data, literal, data.Length - literal);
+			}
+			
+			return result.ToArray();
+		}
+		
+		private static void WriteCopy(MemoryStream stream, int index, int count) {
+			if (count > 0) {
+				stream.WriteByte(1);
+				WriteBytes(stream, Helper.IntToByte((uint) index));
+				WriteBytes(stream, Helper.IntToByte((uint) count));
+			}
+		}
+		
+		private static bool StartsWith(byte [] hash, byte [] prefix) {
+			for (int i = 0; i < prefix.Length; i++) {
+				if (hash[i] != prefix[i]) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		private delegate void RowWriter(MemoryStream stream, IDataReader row);
+		
+		/// <summary>
+		/// Write row count followed by the rows (reader is disposed).
+		/// </summary>
+		private static void WriteRows(MemoryStream stream, IDataReader reader, RowWriter writer) {
+			MemoryStream rows = new MemoryStream();
+			uint count = 0;
+			
+			while (reader.Read()) {
+				writer(rows, reader);
+				count++;
+			}
+			
+			reader.Dispose();
+			WriteBytes(stream, Helper.IntToByte(count));
+			rows.WriteTo(stream);
+		}
+		
+		private static void WriteBytes(MemoryStream stream, byte [] bytes) {
+			stream.Write(bytes, 0, bytes.Length);
+		}
+		
 		#endregion
 		
 		
@@ -450,6 +908,72 @@ namespace Banshee.RemoteListener
 		}
 		
 		#endregion
+		
+		
+		#region Status subscription
+		
+		/// <summary>
+		/// Player status subscription.
+		/// </summary>
+		/// This is a stream request which is only available on a framed connection and handled
+		/// there (see FramedConnection), so a plain request fails.
+		public static byte [] StatusSubscription(int readBytes) {
+			return null;
+		}
+		
+		#endregion
+		
+		
+		#region Batch
+		
+		/// <summary>
+		/// Handle several packed requests in one go.
+		/// </summary>
+		/// Request - [count] and for every packed request [request code] [length (4)] [parameters].
+		/// Response - [count] and for every packed request [length (4)] [response] where an empty
+		/// response means that the packed request failed. Batches can't be nested.
+		public static byte [] Batch(int readBytes) {
+			byte [] request = new byte [readBytes];
+			Array.Copy(Helper.Buffer, request, readBytes);
+			
+			int count = readBytes > 0 ? request[0] : 0;
+			int position = 1;
+			MemoryStream response = new MemoryStream();
+			response.WriteByte((byte) count);
+			
+			for (int i = 0; i < count; i++) {
+				byte [] result = null;
+				
+				if (position + 5 <= readBytes) {
+					RequestCode code = (RequestCode) request[position];
+					int length = (int) Helper.IntFromArray(request, position + 1);
+					position += 5;
+					
+					if (code != RequestCode.Batch && length >= 0 && position + length <= readBytes) {
+						try {
+							Array.Copy(request, position, Helper.Buffer, 0, length);
+							result = Handle(code, length);
+						} catch (Exception e) {
+							Exception cause = e.InnerException ?? e;
+							Log.Error("remote listener batch request error: ", cause.Message ?? "no message");
+						}
+					}
+					
+					position += length;
+				}
+				
+				int resultLength = result == null ? 0 : result.Length;
+				response.Write(Helper.IntToByte((uint) resultLength), 0, 4);
+				
+				if (resultLength != 0) {
+					response.Write(result, 0, resultLength);
+				}
+			}
+			
+			return response.ToArray();
+		}
+		
+		#endregion
 	}
 }
 